@@ -1,18 +1,40 @@
 package net.rychkov.lab.widgets.api.controllers;
 
+import net.rychkov.lab.widgets.api.model.WidgetBatchUpdateRequest;
+import net.rychkov.lab.widgets.dal.model.ChangeSet;
+import net.rychkov.lab.widgets.dal.model.CursorPage;
 import net.rychkov.lab.widgets.dal.model.Widget;
+import net.rychkov.lab.widgets.dal.model.WidgetChange;
 import net.rychkov.lab.widgets.api.model.WidgetCreateRequest;
 import net.rychkov.lab.widgets.api.model.WidgetUpdateRequest;
 import net.rychkov.lab.widgets.dal.repository.ConstraintViolationException;
+import net.rychkov.lab.widgets.dal.repository.WidgetChangeFeed;
 import net.rychkov.lab.widgets.service.WidgetService;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import javax.annotation.PreDestroy;
 import javax.transaction.NotSupportedException;
 import javax.validation.Valid;
-import java.util.Collection;
-import java.util.NoSuchElementException;
+import javax.validation.Validator;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @RestController
 @RequestMapping("/widget")
@@ -20,25 +42,129 @@ public class WidgetController {
 
     private final WidgetService service;
 
-    public WidgetController(WidgetService service) {
+    /**
+     * Validator of batch items (@Valid isn't applied to elements of collection)
+     */
+    private final Validator validator;
+
+    /**
+     * JSON mapper for streamed responses
+     */
+    private final ObjectMapper objectMapper;
+
+    /**
+     * Prefix of ETag - differs between runs (version of repository starts from 0 after restart)
+     */
+    private final String eTagPrefix = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+
+    /**
+     * Max count of changes read from feed at once
+     */
+    private static final int CHANGES_SLICE_SIZE = 256;
+
+    /**
+     * Interval of heartbeat of idle change stream (closed connections are detected by it)
+     */
+    private static final long CHANGES_HEARTBEAT_MILLIS = 15_000;
+
+    /**
+     * Max lifetime of change stream (client reconnects with Last-Event-ID)
+     */
+    private static final long CHANGES_TIMEOUT_MILLIS = 30 * 60_000;
+
+    /**
+     * Senders of change streams - thread per subscriber, so slow subscriber delays only itself
+     * Count of threads is bounded (subscribers over limit are rejected), idle threads are stopped
+     */
+    private final ExecutorService changeSenders;
+
+    public WidgetController(WidgetService service, Validator validator, ObjectMapper objectMapper,
+                            @Value("${widgets.changes.max-subscribers:256}") int maxSubscribers) {
         this.service = service;
+        this.validator = validator;
+        this.objectMapper = objectMapper;
+        this.changeSenders = new ThreadPoolExecutor(0, maxSubscribers, 60, TimeUnit.SECONDS, new SynchronousQueue<>());
+    }
+
+    @PreDestroy
+    public void close() {
+        changeSenders.shutdownNow();
     }
 
     /**
-     * Get all widgets or page if page number set
+     * Check If-None-Match by repository version (before repository query) and set ETag
+     * Version is read before query, so response isn't older than ETag
+     * @return true - if not modified (304 is set, response must be empty)
+     */
+    private boolean notModified(WebRequest request) {
+        return request.checkNotModified(eTagPrefix + "-" + service.getVersion());
+    }
+
+    /**
+     * Get page of widgets
      * @param page Page number
-     * @return Collection of widgets or page of widgets
+     * @return Page of widgets
      */
-    @GetMapping
-    public ResponseEntity getList(@RequestParam(required = false) Integer page) {
-        if(page!=null) {
-            return new ResponseEntity(service.getAllWidgets(page), HttpStatus.OK);
+    @GetMapping(params = "page")
+    public ResponseEntity getList(@RequestParam int page, WebRequest request) {
+        if(notModified(request)) {
+            return null;
         }
-        else {
-            return new ResponseEntity(service.getAllWidgets(), HttpStatus.OK);
+        return new ResponseEntity(service.getAllWidgets(page), HttpStatus.OK);
+    }
+
+    /**
+     * Get slice of widgets after z-coordinate (keyset pagination)
+     * @param afterZ nextAfterZ of previous slice (none - first slice)
+     * @param limit Max count of widgets
+     * @return Slice of widgets with cursor of next slice
+     */
+    @GetMapping(params = {"!page", "limit"})
+    public ResponseEntity<CursorPage<Widget>> getList(@RequestParam(required = false) Integer afterZ, @RequestParam int limit,
+                                                      WebRequest request) {
+        if(notModified(request)) {
+            return null;
+        }
+
+        try {
+            return new ResponseEntity<>(service.getWidgetsAfter(afterZ, limit), HttpStatus.OK);
+        }
+        catch(IllegalArgumentException e) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
         }
     }
 
+    /**
+     * Get all widgets
+     * JSON array is streamed: it's written while repository is read by slices
+     * @return Collection of widgets
+     */
+    @GetMapping(params = {"!page", "!limit", "!afterZ"})
+    public ResponseEntity<StreamingResponseBody> getList(WebRequest request) {
+
+        if(notModified(request)) {
+            return null;
+        }
+
+        Iterator<Widget> cursor = service.getAllWidgetsCursor();
+
+        // generator has own buffer - output isn't flushed after each widget
+        ObjectWriter writer = objectMapper.writerFor(Widget.class)
+                .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+        StreamingResponseBody body = out -> {
+            try(JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+                generator.writeStartArray();
+                while(cursor.hasNext()) {
+                    writer.writeValue(generator, cursor.next());
+                }
+                generator.writeEndArray();
+            }
+        };
+
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+    }
+
     /**
      * Get widgets that fall entirely into the region
      * Possible 501 NOT_IMPLEMENTED response
@@ -49,7 +175,12 @@ public class WidgetController {
      * @return Collection of widgets
      */
     @GetMapping("/filter")
-    public ResponseEntity<Collection<Widget>> getFilteredByRectangle(@RequestParam int x1, @RequestParam int y1, @RequestParam int x2, @RequestParam int y2) {
+    public ResponseEntity<Collection<Widget>> getFilteredByRectangle(@RequestParam int x1, @RequestParam int y1, @RequestParam int x2, @RequestParam int y2,
+                                                                     WebRequest request) {
+        if(notModified(request)) {
+            return null;
+        }
+
         try {
             return new ResponseEntity<>(service.getFilteredByRectangle(x1, y1, x2, y2), HttpStatus.OK);
         }
@@ -62,13 +193,129 @@ public class WidgetController {
 
     }
 
+    /**
+     * Stream changes of widgets (server-sent events "change" with id - token "epoch-sequence" of change)
+     * Writers never wait for subscriber: if subscriber falls behind change feed or reconnects
+     * with id issued before restart, event "resync" is sent and stream is completed (widgets must be reloaded)
+     * @param lastEventId Token of last received change (reconnect), none - only new changes
+     * @return Event stream, 400 - if token is malformed or 503 - if max count of subscribers is reached
+     */
+    @GetMapping(path = "/changes", params = "!since", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> getChanges(@RequestHeader(name = "Last-Event-ID", required = false) String lastEventId) {
+
+        WidgetChangeFeed feed = service.getChangeFeed();
+
+        Long sequence;
+        try {
+            sequence = lastEventId!=null ? feed.parseToken(lastEventId) : feed.getLastSequence();
+        }
+        catch(NoSuchElementException e) {
+            // issued by other feed - resync
+            sequence = null;
+        }
+        catch(IllegalArgumentException e) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        final Long afterSequence = sequence;
+
+        SseEmitter emitter = new SseEmitter(CHANGES_TIMEOUT_MILLIS);
+
+        AtomicBoolean closed = new AtomicBoolean();
+        emitter.onCompletion(() -> closed.set(true));
+        emitter.onTimeout(() -> closed.set(true));
+        emitter.onError(e -> closed.set(true));
+
+        try {
+            changeSenders.execute(() -> sendChanges(emitter, feed, afterSequence, closed));
+        }
+        catch(RejectedExecutionException e) {
+            return new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE);
+        }
+
+        return new ResponseEntity<>(emitter, HttpStatus.OK);
+    }
+
+    /**
+     * Get compacted changes of widgets since change (incremental sync after reconnect)
+     * @param since Token of last received change ("epoch-sequence")
+     * @return Changed widgets and removed IDs, or resync marker - if changes since token are no longer kept
+     * or token is issued before restart
+     */
+    @GetMapping(path = "/changes", params = "since")
+    public ResponseEntity<ChangeSet> getChangesSince(@RequestParam String since) {
+        try {
+            return new ResponseEntity<>(service.getChangesSince(since), HttpStatus.OK);
+        }
+        catch(IllegalArgumentException e) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+    }
+
+    /**
+     * Send changes from feed to subscriber until stream is closed
+     * @param afterSequence Sequence of last received change (null - resync)
+     */
+    private void sendChanges(SseEmitter emitter, WidgetChangeFeed feed, Long afterSequence, AtomicBoolean closed) {
+        try {
+            if(afterSequence==null) {
+                sendResync(emitter, feed);
+                return;
+            }
+
+            while(!closed.get()) {
+                List<WidgetChange> changes;
+                try {
+                    changes = feed.read(afterSequence, CHANGES_SLICE_SIZE);
+                }
+                catch(NoSuchElementException | IllegalArgumentException e) {
+                    sendResync(emitter, feed);
+                    return;
+                }
+
+                if(changes.isEmpty()) {
+                    if(!feed.await(afterSequence, CHANGES_HEARTBEAT_MILLIS)) {
+                        emitter.send(SseEmitter.event().comment("heartbeat"));
+                    }
+                    continue;
+                }
+
+                for(WidgetChange change : changes) {
+                    emitter.send(SseEmitter.event()
+                            .id(feed.token(change.getSequence()))
+                            .name("change")
+                            .data(change, MediaType.APPLICATION_JSON));
+                }
+                afterSequence = changes.get(changes.size() - 1).getSequence();
+            }
+        }
+        catch(InterruptedException e) {
+            emitter.complete();
+        }
+        catch(IOException | IllegalStateException e) {
+            // subscriber is disconnected
+            emitter.completeWithError(e);
+        }
+    }
+
+    /**
+     * Send token of last change (widgets must be reloaded) and complete stream
+     */
+    private static void sendResync(SseEmitter emitter, WidgetChangeFeed feed) throws IOException {
+        emitter.send(SseEmitter.event().name("resync").data(feed.token(feed.getLastSequence())));
+        emitter.complete();
+    }
+
     /**
      * Get widget details
      * @param widgetId Widget ID
      * @return Complete widget description
      */
     @GetMapping("/{widgetId}")
-    public ResponseEntity<Widget> getWidget(@PathVariable int widgetId) {
+    public ResponseEntity<Widget> getWidget(@PathVariable int widgetId, WebRequest request) {
+
+        if(notModified(request)) {
+            return null;
+        }
 
         Widget found = service.getWidget(widgetId);
 
@@ -128,4 +375,69 @@ public class WidgetController {
         return new ResponseEntity<>(HttpStatus.NO_CONTENT);
     }
 
+    /**
+     * Create new widgets (one request and one z-shifting for whole batch)
+     * @param widgets Widget deltas (only fields with values for set)
+     * @return Created widgets
+     */
+    @PostMapping("/batch")
+    public ResponseEntity<Collection<Widget>> createWidgets(@RequestBody List<WidgetCreateRequest> widgets) {
+
+        if(widgets.stream().anyMatch(w -> w==null || !validator.validate(w).isEmpty())) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+
+        return new ResponseEntity<>(service.addWidgets(widgets), HttpStatus.CREATED);
+    }
+
+    /**
+     * Update widgets (one request and one z-shifting for whole batch)
+     * @param widgets Widget deltas with widget ID (only fields with changed values)
+     * @return Updated widgets
+     */
+    @PatchMapping("/batch")
+    public ResponseEntity<Collection<Widget>> updateWidgets(@RequestBody List<WidgetBatchUpdateRequest> widgets) {
+
+        if(widgets.stream().anyMatch(w -> w==null || !validator.validate(w).isEmpty())) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+
+        Map<Integer, WidgetUpdateRequest> changes = new LinkedHashMap<>();
+        for(WidgetBatchUpdateRequest w : widgets) {
+            // same widget twice
+            if(changes.put(w.getId(), w)!=null) {
+                return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            }
+        }
+
+        try {
+            return new ResponseEntity<>(service.updateWidgets(changes), HttpStatus.OK);
+        }
+        catch(NoSuchElementException e) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+    }
+
+    /**
+     * Remove widgets
+     * @param ids Widgets ID
+     * @return Empty response
+     */
+    @DeleteMapping("/batch")
+    public ResponseEntity<Collection<Widget>> removeWidgets(@RequestBody List<Integer> ids) {
+
+        if(ids.contains(null) || new HashSet<>(ids).size()!=ids.size()) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+
+        try {
+            service.removeWidgets(ids);
+        }
+        catch(NoSuchElementException e) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+
+        return new ResponseEntity<>(HttpStatus.NO_CONTENT);
+    }
+
 }
@@ -0,0 +1,28 @@
+package net.rychkov.lab.widgets.api.model;
+
+import javax.validation.constraints.NotNull;
+
+public class WidgetBatchUpdateRequest extends WidgetUpdateRequest {
+
+    @NotNull(message = "Please provide widget id")
+    private Integer id;
+
+    public WidgetBatchUpdateRequest() {}
+
+    public WidgetBatchUpdateRequest(Integer id, Integer x, Integer y, Integer z, Integer width, Integer height) {
+        super(x, y, z, width, height);
+        this.id = id;
+    }
+
+    //region Getters-Setters
+
+    public Integer getId() {
+        return id;
+    }
+
+    public void setId(Integer id) {
+        this.id = id;
+    }
+
+    //endregion
+}
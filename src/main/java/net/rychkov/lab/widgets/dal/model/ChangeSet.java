@@ -0,0 +1,56 @@
+package net.rychkov.lab.widgets.dal.model;
+
+import org.springframework.data.annotation.Immutable;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Compacted changes of widgets after sequence of change feed (incremental sync)
+ * only last change of each widget is kept
+ */
+@Immutable
+public final class ChangeSet {
+    private final String since;
+    private final boolean resync;
+    private final Collection<WidgetChange> changed;
+    private final Collection<Integer> removed;
+
+    /**
+     * @param since Token of last included change - "since" of next request
+     * @param resync Full resync is required (requested changes are no longer kept), changed and removed are empty
+     * @param changed Changed widgets (full images)
+     * @param removed IDs of removed widgets
+     */
+    public ChangeSet(final String since, boolean resync, final Collection<WidgetChange> changed, final Collection<Integer> removed) {
+        this.since = since;
+        this.resync = resync;
+        this.changed = changed;
+        this.removed = removed;
+    }
+
+    /**
+     * Marker of full resync: client must reload all widgets (then request changes since token)
+     * @param since Token of last published change
+     * @return Change set
+     */
+    public static ChangeSet resync(final String since) {
+        return new ChangeSet(since, true, Collections.emptyList(), Collections.emptyList());
+    }
+
+    public String getSince() {
+        return since;
+    }
+
+    public boolean isResync() {
+        return resync;
+    }
+
+    public Collection<WidgetChange> getChanged() {
+        return changed;
+    }
+
+    public Collection<Integer> getRemoved() {
+        return removed;
+    }
+}
@@ -0,0 +1,39 @@
+package net.rychkov.lab.widgets.dal.model;
+
+import org.springframework.data.annotation.Immutable;
+
+import java.util.Collection;
+
+/**
+ * Slice of elements ordered by key with cursor of next slice (keyset pagination)
+ * @param <T> Element type
+ */
+@Immutable
+public final class CursorPage<T> {
+    private final int limit;
+    private final Integer nextAfterZ;
+    private final Collection<T> elements;
+
+    /**
+     * @param limit Max count of elements
+     * @param nextAfterZ Cursor of next slice - z of last element (null - no more elements)
+     * @param elements Elements
+     */
+    public CursorPage(int limit, Integer nextAfterZ, final Collection<T> elements) {
+        this.limit = limit;
+        this.nextAfterZ = nextAfterZ;
+        this.elements = elements;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public Integer getNextAfterZ() {
+        return nextAfterZ;
+    }
+
+    public Collection<T> getElements() {
+        return elements;
+    }
+}
@@ -6,6 +6,7 @@ import org.springframework.data.annotation.LastModifiedDate;
 import javax.persistence.*;
 import java.io.Serializable;
 import java.util.Date;
+import java.util.Objects;
 
 /**
  * Widget(rectangle) on plane
@@ -19,11 +20,12 @@ import java.util.Date;
 public final class Widget implements Cloneable, Serializable {
 
     /**
-     * Widget ID
+     * Widget ID (pooled sequence - IDs are allocated by blocks, so inserts can be batched)
      */
     @Id
     @Column
-    @GeneratedValue
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "widget_id_seq")
+    @SequenceGenerator(name = "widget_id_seq", sequenceName = "widget_id_seq", allocationSize = 64)
     private int id;
 
     /**
@@ -81,7 +83,8 @@ public final class Widget implements Cloneable, Serializable {
         this.z = z;
         this.width = width;
         this.height = height;
-        this.lastModificationDate = lastModificationDate;
+        // subclasses of Date (like sql Timestamp) aren't kept - their equals isn't symmetric with Date
+        this.lastModificationDate = lastModificationDate!=null ? new Date(lastModificationDate.getTime()) : null;
     }
 
     /**
@@ -140,6 +143,36 @@ public final class Widget implements Cloneable, Serializable {
         return lastModificationDate;
     }
 
+    /**
+     * Widgets are equal if all fields are equal
+     * (widget is immutable value, the same widget can be materialized as different objects)
+     * Dates are compared by time - entities loaded by Hibernate have sql Timestamps, other widgets - Dates
+     */
+    @Override
+    public boolean equals(Object o) {
+        if(this==o) {
+            return true;
+        }
+        if(!(o instanceof Widget)) {
+            return false;
+        }
+
+        // other widget is read by getters (it can be Hibernate proxy)
+        Widget other = (Widget)o;
+        return id==other.getId() && x==other.getX() && y==other.getY() && z==other.getZ() &&
+                width==other.getWidth() && height==other.getHeight() &&
+                Objects.equals(time(lastModificationDate), time(other.getLastModificationDate()));
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, x, y, z, width, height, time(lastModificationDate));
+    }
+
+    private static Long time(Date date) {
+        return date!=null ? date.getTime() : null;
+    }
+
     /**
      * Get widget deep clone
      * @return Deep clone
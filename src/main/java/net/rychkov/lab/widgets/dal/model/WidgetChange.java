@@ -1,11 +1,20 @@
 package net.rychkov.lab.widgets.dal.model;
 
+/**
+ * Change of widget published by repository
+ * delta is full image of widget after change, null - widget is removed
+ */
 public class WidgetChange {
 
     private int id;
 
     private WidgetDelta delta;
 
+    /**
+     * Sequence number in change feed (0 - not published)
+     */
+    private long sequence;
+
     public WidgetDelta getDelta() {
         return delta;
     }
@@ -22,8 +31,39 @@ public class WidgetChange {
         this.id = id;
     }
 
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public boolean isRemoved() {
+        return delta==null;
+    }
+
     public WidgetChange(int id, WidgetDelta delta) {
         this.id = id;
         this.delta = delta;
     }
+
+    /**
+     * Change of widget to its current image (insert or update)
+     * @param widget Widget after change
+     * @return Change
+     */
+    public static WidgetChange put(Widget widget) {
+        return new WidgetChange(widget.getId(),
+                new WidgetDelta(widget.getX(), widget.getY(), widget.getZ(), widget.getWidth(), widget.getHeight()));
+    }
+
+    /**
+     * Removal of widget
+     * @param id Widget ID
+     * @return Change
+     */
+    public static WidgetChange removed(int id) {
+        return new WidgetChange(id, null);
+    }
 }
@@ -0,0 +1,253 @@
+package net.rychkov.lab.widgets.dal.repository;
+
+import net.rychkov.lab.widgets.dal.model.Page;
+import net.rychkov.lab.widgets.dal.model.Widget;
+import net.rychkov.lab.widgets.dal.model.WidgetChange;
+import net.rychkov.lab.widgets.dal.model.WidgetDelta;
+
+import javax.transaction.NotSupportedException;
+import java.util.*;
+
+/**
+ * Read-through cache in front of repository (for h2 - every read goes through Hibernate otherwise)
+ * Widgets are immutable, so cached by ID in LRU cache, ordered reads (z-order, pages, slices) go to repository
+ * Cache is stamped by sequence of change feed: writes through repository invalidate IDs of all changed widgets
+ * (including shifted ones)
+ */
+public class CachingWidgetRepository implements WidgetRepository {
+
+    private final WidgetRepository repository;
+
+    private final WidgetChangeFeed changeFeed;
+
+    /**
+     * Widgets by ID
+     */
+    private final LruCache<Integer, Widget> byId;
+
+    /**
+     * Last change of feed applied to cache (guarded by this)
+     */
+    private long invalidatedSequence;
+
+    /**
+     * @param repository Cached repository
+     * @param maxSize Max count of cached widgets by ID
+     */
+    public CachingWidgetRepository(WidgetRepository repository, int maxSize) {
+        this.repository = repository;
+        this.changeFeed = repository.getChangeFeed();
+        this.byId = new LruCache<>(maxSize);
+        this.invalidatedSequence = changeFeed.getLastSequence();
+    }
+
+    //region Statistics
+
+    /**
+     * Count of reads served by cache
+     */
+    public long getHitCount() {
+        return byId.getHitCount();
+    }
+
+    /**
+     * Count of reads passed to repository
+     */
+    public long getMissCount() {
+        return byId.getMissCount();
+    }
+
+    /**
+     * Count of widgets evicted by size bound
+     */
+    public long getEvictionCount() {
+        return byId.getEvictionCount();
+    }
+
+    //endregion
+
+    /**
+     * Remove widgets changed after last invalidation (called after every write)
+     * value loaded before change is either removed here or rejected by stamp check on put
+     */
+    private synchronized void invalidate() {
+        try {
+            for(WidgetChange c : changeFeed.read(invalidatedSequence, Integer.MAX_VALUE)) {
+                byId.remove(c.getId());
+                invalidatedSequence = c.getSequence();
+            }
+        }
+        catch(NoSuchElementException e) {
+            // changes are overwritten in feed - drop everything
+            long last = changeFeed.getLastSequence();
+            byId.clear();
+            invalidatedSequence = last;
+        }
+    }
+
+    //region Read
+
+    @Override
+    public Widget get(int id) {
+        Widget cached = byId.get(id);
+        if(cached!=null) {
+            return cached;
+        }
+
+        long sequence = changeFeed.getLastSequence();
+        Widget widget = repository.get(id);
+
+        // stale value (changed while read) isn't cached
+        if(widget!=null) {
+            byId.putIf(id, widget, () -> changeFeed.getLastSequence()==sequence);
+        }
+
+        return widget;
+    }
+
+    @Override
+    public Collection<Widget> getAllOrderByZ() {
+        return repository.getAllOrderByZ();
+    }
+
+    @Override
+    public Page<Widget> getAllOrderByZ(int pageNum, int pageSize) {
+        return repository.getAllOrderByZ(pageNum, pageSize);
+    }
+
+    @Override
+    public Collection<Widget> getAllOrderByZAfter(Integer afterZ, int limit) {
+        return repository.getAllOrderByZAfter(afterZ, limit);
+    }
+
+    @Override
+    public Integer getMaxZ() {
+        return repository.getMaxZ();
+    }
+
+    @Override
+    public long getVersion() {
+        return repository.getVersion();
+    }
+
+    @Override
+    public WidgetChangeFeed getChangeFeed() {
+        return changeFeed;
+    }
+
+    @Override
+    public Collection<Widget> getFilteredByRectangle(int x1, int y1, int x2, int y2) throws NotSupportedException {
+        return repository.getFilteredByRectangle(x1, y1, x2, y2);
+    }
+
+    //endregion
+
+    //region Write
+
+    @Override
+    public Widget add(final WidgetDelta delta) throws ConstraintViolationException {
+        try {
+            return repository.add(delta);
+        }
+        finally {
+            invalidate();
+        }
+    }
+
+    @Override
+    public Collection<Widget> addAll(final Collection<WidgetDelta> deltas) throws ConstraintViolationException {
+        try {
+            return repository.addAll(deltas);
+        }
+        finally {
+            invalidate();
+        }
+    }
+
+    @Override
+    public Widget remove(int id) {
+        try {
+            return repository.remove(id);
+        }
+        finally {
+            invalidate();
+        }
+    }
+
+    @Override
+    public Collection<Widget> removeAll(final Collection<Integer> ids) {
+        try {
+            return repository.removeAll(ids);
+        }
+        finally {
+            invalidate();
+        }
+    }
+
+    @Override
+    public Widget update(int widgetId, final WidgetDelta widgetDelta)
+            throws IllegalArgumentException, NoSuchElementException, ConstraintViolationException {
+        try {
+            return repository.update(widgetId, widgetDelta);
+        }
+        finally {
+            invalidate();
+        }
+    }
+
+    @Override
+    public Collection<Widget> updateAll(final Map<Integer, WidgetDelta> changes)
+            throws IllegalArgumentException, NoSuchElementException, ConstraintViolationException {
+        try {
+            return repository.updateAll(changes);
+        }
+        finally {
+            invalidate();
+        }
+    }
+
+    @Override
+    public Widget insertAt(final WidgetDelta delta, final ZShiftStrategy strategy) throws ConstraintViolationException {
+        try {
+            return repository.insertAt(delta, strategy);
+        }
+        finally {
+            invalidate();
+        }
+    }
+
+    @Override
+    public Widget moveTo(int widgetId, final WidgetDelta delta, final ZShiftStrategy strategy)
+            throws IllegalArgumentException, NoSuchElementException, ConstraintViolationException {
+        try {
+            return repository.moveTo(widgetId, delta, strategy);
+        }
+        finally {
+            invalidate();
+        }
+    }
+
+    @Override
+    public Collection<Widget> insertAllAt(final Collection<WidgetDelta> deltas, final ZShiftStrategy strategy)
+            throws ConstraintViolationException {
+        try {
+            return repository.insertAllAt(deltas, strategy);
+        }
+        finally {
+            invalidate();
+        }
+    }
+
+    @Override
+    public Collection<Widget> moveAllTo(final Map<Integer, WidgetDelta> changes, final ZShiftStrategy strategy)
+            throws IllegalArgumentException, NoSuchElementException, ConstraintViolationException {
+        try {
+            return repository.moveAllTo(changes, strategy);
+        }
+        finally {
+            invalidate();
+        }
+    }
+
+    //endregion
+}
@@ -0,0 +1,51 @@
+package net.rychkov.lab.widgets.dal.repository;
+
+import net.rychkov.lab.widgets.dal.model.Widget;
+import net.rychkov.lab.widgets.dal.model.WidgetDelta;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cascade shifting: conflicting widget moves to the middle of gap to next widget,
+ * if there is no gap - next widget moves too (and so on)
+ * If more than half of widgets must be moved - tail of z-sequence is rebuilt with Z_STEP
+ */
+public class CascadeZShiftStrategy extends ZShiftStrategy {
+
+    @Override
+    protected Map<Integer, WidgetDelta> shiftMiddle(int z, final Tail tail, int allSize) {
+        int insertedZ = z;
+
+        Map<Integer, WidgetDelta> updateQueue = new HashMap<>();
+
+        for(int i = 0; ; i++) {
+            Widget widget = tail.get(i);
+
+            // no needs for cascade changes of z - break
+            if(widget==null || widget.getZ()>z) {
+                break;
+            }
+
+            // need to change z of existed widget (unique constraint)
+            // and go to next widget
+
+            Widget next = tail.get(i+1);
+            z += next==null ? Z_STEP : Math.round(((float)next.getZ()-z)/2);
+            WidgetDelta changes = new WidgetDelta();
+            changes.setZ(z);
+            updateQueue.put(widget.getId(), changes);
+        }
+
+        if((float)updateQueue.size()/allSize>0.5) {
+            // optimisation: force rebuild z-index (only part)
+            updateQueue.clear();
+            for(int i=0; tail.get(i)!=null; i++) {
+                WidgetDelta widgetDelta = new WidgetDelta(null, null,insertedZ+Z_STEP*(i+1), null, null);
+                updateQueue.put(tail.get(i).getId(), widgetDelta);
+            }
+        }
+
+        return updateQueue;
+    }
+}
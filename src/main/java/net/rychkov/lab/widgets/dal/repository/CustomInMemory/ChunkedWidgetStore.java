@@ -0,0 +1,265 @@
+package net.rychkov.lab.widgets.dal.repository.CustomInMemory;
+
+import net.rychkov.lab.widgets.dal.model.Widget;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Store of widget's fields in fixed-width slots, slot of widget is its ID
+ * Slots are split into chunks of fixed size: chunk allocated on first widget and released when it becomes empty
+ * Widget objects are created only on read
+ * Widget ID must be not negative
+ * @param <TChunk> Chunk type (defines how fields are stored)
+ */
+public abstract class ChunkedWidgetStore<TChunk extends ChunkedWidgetStore.Chunk> implements WidgetStore {
+
+    /**
+     * Slots per chunk (power of 2)
+     */
+    protected static final int CHUNK_BITS = 10;
+
+    protected static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     * Chunk of slots
+     */
+    protected static class Chunk {
+
+        /**
+         * Occupied slots bitmap
+         */
+        private final long[] used = new long[CHUNK_SIZE / Long.SIZE];
+
+        int count;
+
+        boolean isUsed(int slot) {
+            return (used[slot >>> 6] & (1L << slot)) != 0;
+        }
+
+        void setUsed(int slot, boolean value) {
+            if(value) {
+                used[slot >>> 6] |= 1L << slot;
+            }
+            else {
+                used[slot >>> 6] &= ~(1L << slot);
+            }
+        }
+    }
+
+    private Chunk[] chunks;
+
+    private int size;
+
+    private final ReentrantReadWriteLock lock;
+
+    public ChunkedWidgetStore() {
+        chunks = new Chunk[16];
+        lock = new ReentrantReadWriteLock();
+    }
+
+    //region Chunk layout
+
+    /**
+     * Allocate empty chunk
+     * @return New chunk
+     */
+    protected abstract TChunk createChunk();
+
+    /**
+     * Create widget by fields in slot
+     * @param chunk Chunk
+     * @param slot Slot in chunk
+     * @param id Widget ID
+     * @return Widget
+     */
+    protected abstract Widget read(TChunk chunk, int slot, int id);
+
+    /**
+     * Write widget's fields to slot
+     * @param chunk Chunk
+     * @param slot Slot in chunk
+     * @param widget Widget
+     */
+    protected abstract void write(TChunk chunk, int slot, Widget widget);
+
+    //endregion
+
+    //region Slot helpers
+
+    @SuppressWarnings("unchecked")
+    private TChunk chunk(int id) {
+        int chunkIndex = id >>> CHUNK_BITS;
+        return id>=0 && chunkIndex<chunks.length ? (TChunk) chunks[chunkIndex] : null;
+    }
+
+    private Widget read(TChunk chunk, int id) {
+        int slot = id & CHUNK_MASK;
+
+        if(chunk==null || !chunk.isUsed(slot)) {
+            return null;
+        }
+
+        return read(chunk, slot, id);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void write(Widget widget) {
+        int id = widget.getId();
+
+        if(id<0) {
+            throw new IllegalArgumentException("Widget ID must be not negative");
+        }
+
+        int chunkIndex = id >>> CHUNK_BITS;
+
+        if(chunkIndex>=chunks.length) {
+            chunks = Arrays.copyOf(chunks, Math.max(chunks.length * 2, chunkIndex + 1));
+        }
+
+        TChunk chunk = (TChunk) chunks[chunkIndex];
+        if(chunk==null) {
+            chunk = createChunk();
+            chunks[chunkIndex] = chunk;
+        }
+
+        int slot = id & CHUNK_MASK;
+
+        if(!chunk.isUsed(slot)) {
+            chunk.setUsed(slot, true);
+            chunk.count++;
+            size++;
+        }
+
+        write(chunk, slot, widget);
+    }
+
+    /**
+     * Get modification time of widget in milliseconds
+     */
+    protected static long modificationTime(Widget widget) {
+        return widget.getLastModificationDate()!=null ? widget.getLastModificationDate().getTime() : 0;
+    }
+
+    //endregion
+
+    @Override
+    public Widget get(int id) {
+        lock.readLock().lock();
+        try {
+            return read(chunk(id), id);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Widget> get(Collection<Integer> ids) {
+        List<Widget> result = new ArrayList<>(ids.size());
+
+        lock.readLock().lock();
+        try {
+            for(Integer id : ids) {
+                result.add(read(chunk(id), id));
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+
+        return result;
+    }
+
+    @Override
+    public void put(Widget widget) {
+        lock.writeLock().lock();
+        try {
+            write(widget);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Widget remove(int id) {
+        lock.writeLock().lock();
+        try {
+            TChunk chunk = chunk(id);
+            Widget removed = read(chunk, id);
+
+            if(removed!=null) {
+                chunk.setUsed(id & CHUNK_MASK, false);
+                chunk.count--;
+                size--;
+
+                // release empty chunk
+                if(chunk.count==0) {
+                    chunks[id >>> CHUNK_BITS] = null;
+                }
+            }
+
+            return removed;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Widget update(int id, UnaryOperator<Widget> change) {
+        lock.writeLock().lock();
+        try {
+            Widget origin = read(chunk(id), id);
+
+            if(origin==null) {
+                throw new NoSuchElementException("No widgets with id "+id);
+            }
+
+            Widget changed = change.apply(origin);
+            write(changed);
+            return changed;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEach(Consumer<Widget> action) {
+        lock.readLock().lock();
+        try {
+            for(int chunkIndex=0; chunkIndex<chunks.length; chunkIndex++) {
+                TChunk chunk = (TChunk) chunks[chunkIndex];
+                if(chunk==null) {
+                    continue;
+                }
+                for(int slot=0; slot<CHUNK_SIZE; slot++) {
+                    if(chunk.isUsed(slot)) {
+                        action.accept(read(chunk, slot, (chunkIndex << CHUNK_BITS) | slot));
+                    }
+                }
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package net.rychkov.lab.widgets.dal.repository.CustomInMemory;
+
+import net.rychkov.lab.widgets.dal.model.Widget;
+
+import java.util.Date;
+
+/**
+ * Columnar (struct-of-arrays) store of widgets
+ * fields are kept in parallel primitive arrays per chunk
+ */
+public class ColumnarWidgetStore extends ChunkedWidgetStore<ColumnarWidgetStore.ColumnChunk> {
+
+    /**
+     * Chunk of columns
+     */
+    static final class ColumnChunk extends ChunkedWidgetStore.Chunk {
+
+        final int[] x = new int[CHUNK_SIZE];
+        final int[] y = new int[CHUNK_SIZE];
+        final int[] z = new int[CHUNK_SIZE];
+        final int[] width = new int[CHUNK_SIZE];
+        final int[] height = new int[CHUNK_SIZE];
+        final long[] modified = new long[CHUNK_SIZE];
+    }
+
+    @Override
+    protected ColumnChunk createChunk() {
+        return new ColumnChunk();
+    }
+
+    @Override
+    protected Widget read(ColumnChunk chunk, int slot, int id) {
+        return new Widget(
+                id,
+                chunk.x[slot],
+                chunk.y[slot],
+                chunk.z[slot],
+                chunk.width[slot],
+                chunk.height[slot],
+                new Date(chunk.modified[slot])
+        );
+    }
+
+    @Override
+    protected void write(ColumnChunk chunk, int slot, Widget widget) {
+        chunk.x[slot] = widget.getX();
+        chunk.y[slot] = widget.getY();
+        chunk.z[slot] = widget.getZ();
+        chunk.width[slot] = widget.getWidth();
+        chunk.height[slot] = widget.getHeight();
+        chunk.modified[slot] = modificationTime(widget);
+    }
+}
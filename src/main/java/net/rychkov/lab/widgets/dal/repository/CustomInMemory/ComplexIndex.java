@@ -1,16 +1,26 @@
 package net.rychkov.lab.widgets.dal.repository.CustomInMemory;
 
 import net.rychkov.lab.widgets.dal.model.Widget;
-import net.rychkov.lab.widgets.dal.model.WidgetDelta;
 
 import java.util.*;
 
-public class ComplexIndex extends RepositoryIndex {
+/**
+ * Spatial index based on corner points
+ * each widget is stored as two points (left top and right bottom corners) in x-y ordered maps
+ */
+public class ComplexIndex extends SpatialIndex {
 
     private final TreeMap<Integer, TreeMap<Integer, ArrayList<Integer>>> map;
 
     public ComplexIndex() {
-        super("Spatial index",false);
+        this(new ReadWriteIndexLock());
+    }
+
+    /**
+     * @param lock Lock strategy
+     */
+    public ComplexIndex(final IndexLock lock) {
+        super("Spatial index", lock);
         map = new TreeMap<>();
     }
 
@@ -55,17 +65,6 @@ public class ComplexIndex extends RepositoryIndex {
         deletePoint(widget.getX()+widget.getWidth()/2, widget.getY()+widget.getHeight()/2, widget.getId());
     }
 
-    @Override
-    public boolean isAffected(final WidgetDelta changes) {
-        return changes!=null &&
-                (
-                    changes.getX()!=null ||
-                    changes.getY()!=null ||
-                    changes.getWidth()!=null ||
-                    changes.getHeight()!=null
-                );
-    }
-
     @Override
     public Collection<Integer> get() {
 
@@ -78,6 +77,7 @@ public class ComplexIndex extends RepositoryIndex {
         return result;
     }
 
+    @Override
     public Collection<Integer> getFilteredByRectangle(int x1, int y1, int x2, int y2) {
 
         // include high borders
@@ -3,22 +3,29 @@ package net.rychkov.lab.widgets.dal.repository.CustomInMemory;
 import net.rychkov.lab.widgets.dal.model.Widget;
 import net.rychkov.lab.widgets.dal.model.WidgetDelta;
 
-import java.util.Collection;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.*;
 import java.util.function.Function;
 
-public class FieldIndex<TField> extends RepositoryIndex {
+/**
+ * Index by widget's field
+ * based on order-statistic tree, so slice by position (page) costs O(log n + slice size)
+ * @param <TField> Field type (must be Comparable)
+ */
+public class FieldIndex<TField> extends OrderedIndex<TField> {
 
-    private final SortedMap<TField, Integer> map;
+    private final OrderStatisticTree<TField, Integer> map;
 
     private final Function<Widget, TField> fieldSelector;
 
     private final Function<WidgetDelta, TField> fieldSelectorForDelta;
 
     public FieldIndex(final String name, boolean unique, Function<Widget, TField> fieldSelector, Function<WidgetDelta, TField> fieldSelectorForDelta) {
-        super(name, unique);
-        map = new TreeMap<>();
+        this(name, unique, fieldSelector, fieldSelectorForDelta, new ReadWriteIndexLock());
+    }
+
+    public FieldIndex(final String name, boolean unique, Function<Widget, TField> fieldSelector, Function<WidgetDelta, TField> fieldSelectorForDelta, final IndexLock lock) {
+        super(name, unique, lock);
+        map = new OrderStatisticTree<>();
         this.fieldSelector = fieldSelector;
         this.fieldSelectorForDelta = fieldSelectorForDelta;
     }
@@ -28,6 +35,49 @@ public class FieldIndex<TField> extends RepositoryIndex {
         map.put(fieldSelector.apply(widget), widget.getId());
     }
 
+    @Override
+    public boolean tryAdd(final Widget widget) {
+        TField key = fieldSelector.apply(widget);
+
+        if(isUnique() && map.containsKey(key)) {
+            return false;
+        }
+
+        map.put(key, widget.getId());
+        return true;
+    }
+
+    /**
+     * Bulk add: sort and build balanced tree at once (if index is empty)
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void addAll(final Collection<Widget> widgets) {
+        if(map.size()>0) {
+            super.addAll(widgets);
+            return;
+        }
+
+        List<Widget> sorted = new ArrayList<>(widgets);
+        sorted.sort(Comparator.comparing(fieldSelector, (l, r) -> ((Comparable<? super TField>) l).compareTo(r)));
+
+        List<TField> keys = new ArrayList<>(sorted.size());
+        List<Integer> values = new ArrayList<>(sorted.size());
+
+        for(Widget w : sorted) {
+            TField key = fieldSelector.apply(w);
+            if(!keys.isEmpty() && keys.get(keys.size() - 1).equals(key)) {
+                // last widget wins (as for add)
+                values.set(values.size() - 1, w.getId());
+                continue;
+            }
+            keys.add(key);
+            values.add(w.getId());
+        }
+
+        map.build(keys, values);
+    }
+
     @Override
     public void remove(final Widget widget) {
         map.remove(fieldSelector.apply(widget));
@@ -49,10 +99,27 @@ public class FieldIndex<TField> extends RepositoryIndex {
         return map.containsKey(key);
     }
 
+    @Override
+    public Collection<Integer> get(int offset, int limit) {
+        return map.values(offset, limit);
+    }
+
+    @Override
+    public Iterator<Integer> iterator(TField fromKey) {
+        return map.values(fromKey);
+    }
+
+    @Override
     public int size() {
         return map.size();
     }
 
+    @Override
+    public TField firstKey() {
+        return map.firstKey();
+    }
+
+    @Override
     public TField lastKey() {
         return map.lastKey();
     }
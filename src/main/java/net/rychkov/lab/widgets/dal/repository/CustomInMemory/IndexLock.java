@@ -0,0 +1,38 @@
+package net.rychkov.lab.widgets.dal.repository.CustomInMemory;
+
+import java.util.function.Supplier;
+
+/**
+ * Lock strategy of repository index
+ */
+public interface IndexLock {
+
+    void readLock();
+
+    void readUnlock();
+
+    void writeLock();
+
+    void writeUnlock();
+
+    /**
+     * Lock for insert of new entries (by default - exclusive write lock)
+     */
+    default void insertLock() {
+        writeLock();
+    }
+
+    default void insertUnlock() {
+        writeUnlock();
+    }
+
+    /**
+     * Execute short read action under read lock
+     * Action must be free of side effects and bounded (limited count of entries, no unbounded loops)
+     * - implementation may execute it without lock on partially written index
+     * and repeat it under lock if index was changed meanwhile
+     * @param action Read action
+     * @return Result of action
+     */
+    <T> T read(Supplier<T> action);
+}
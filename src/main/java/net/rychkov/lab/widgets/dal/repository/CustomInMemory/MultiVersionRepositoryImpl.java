@@ -0,0 +1,619 @@
+package net.rychkov.lab.widgets.dal.repository.CustomInMemory;
+
+import net.rychkov.lab.widgets.dal.model.Page;
+import net.rychkov.lab.widgets.dal.model.Widget;
+import net.rychkov.lab.widgets.dal.model.WidgetChange;
+import net.rychkov.lab.widgets.dal.model.WidgetDelta;
+import net.rychkov.lab.widgets.dal.repository.ConstraintViolationException;
+import net.rychkov.lab.widgets.dal.repository.WidgetChangeFeed;
+import net.rychkov.lab.widgets.dal.repository.WidgetRepository;
+import net.rychkov.lab.widgets.dal.repository.ZSequence;
+import net.rychkov.lab.widgets.dal.repository.ZShiftStrategy;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Multi-version in-memory repository
+ * Indexes are persistent trees: writers (one at a time) build new version of all indexes
+ * and publish it atomically, readers take current version without any locks
+ * and see consistent point-in-time view (even during large updateAll)
+ */
+public class MultiVersionRepositoryImpl implements WidgetRepository {
+
+    /**
+     * Immutable version of repository content
+     */
+    private static final class Version {
+
+        /**
+         * Map id-widget
+         */
+        final PersistentTree<Integer, Widget> byId;
+
+        /**
+         * Sorted by z-field
+         */
+        final PersistentTree<Integer, Widget> byZ;
+
+        /**
+         * Sorted by left border (then by id) - for filter 'by rectangle'
+         */
+        final PersistentTree<Long, Widget> byLeft;
+
+        Version(PersistentTree<Integer, Widget> byId, PersistentTree<Integer, Widget> byZ, PersistentTree<Long, Widget> byLeft) {
+            this.byId = byId;
+            this.byZ = byZ;
+            this.byLeft = byLeft;
+        }
+
+        Version with(Widget widget) {
+            return new Version(
+                    byId.put(widget.getId(), widget),
+                    byZ.put(widget.getZ(), widget),
+                    byLeft.put(leftKey(widget), widget)
+            );
+        }
+
+        Version without(Widget widget) {
+            return new Version(
+                    byId.remove(widget.getId()),
+                    byZ.remove(widget.getZ()),
+                    byLeft.remove(leftKey(widget))
+            );
+        }
+    }
+
+    /**
+     * Current version
+     */
+    private volatile Version current;
+
+    /**
+     * Writers lock (only one writer at same time, readers are never blocked)
+     */
+    private final ReentrantLock writeLock;
+
+    /**
+     * Sequence for widget's id
+     */
+    private final AtomicInteger idSequence;
+
+    /**
+     * Modification version (incremented after every published version)
+     */
+    private final AtomicLong modificationVersion = new AtomicLong();
+
+    /**
+     * Published changes
+     */
+    private final WidgetChangeFeed changeFeed = new WidgetChangeFeed();
+
+    public MultiVersionRepositoryImpl() {
+        current = new Version(PersistentTree.empty(), PersistentTree.empty(), PersistentTree.empty());
+        writeLock = new ReentrantLock();
+        idSequence = new AtomicInteger(1);
+    }
+
+    //region Helpers
+
+    private static int left(final Widget widget) {
+        return widget.getX()-widget.getWidth()/2;
+    }
+
+    /**
+     * Key of spatial index: left border in high bits, widget ID in low bits
+     */
+    private static long leftKey(final Widget widget) {
+        return ((long)left(widget) << 32) | (widget.getId() & 0xFFFFFFFFL);
+    }
+
+    private static Widget getExisted(final Version version, int widgetId) {
+        Widget widget = version.byId.get(widgetId);
+
+        if(widget==null) {
+            throw new NoSuchElementException("No widgets with id "+widgetId);
+        }
+
+        return widget;
+    }
+
+    /**
+     * View of version's z-index for planning of z-shifting
+     */
+    private static ZSequence zSequence(final Version version) {
+        return new ZSequence() {
+            @Override
+            public int size() {
+                return version.byZ.size();
+            }
+
+            @Override
+            public Integer firstZ() {
+                return version.byZ.firstKey();
+            }
+
+            @Override
+            public Integer lastZ() {
+                return version.byZ.lastKey();
+            }
+
+            @Override
+            public Iterator<Widget> tail(int fromZ) {
+                return version.byZ.values(fromZ);
+            }
+        };
+    }
+
+    /**
+     * Apply changes of z-shifting (and moving) to version
+     * @return New version
+     */
+    private static Version applyShift(Version version, final Map<Integer, WidgetDelta> shifted) {
+        List<Widget> origin = new ArrayList<>();
+        for(Integer id : shifted.keySet()) {
+            origin.add(getExisted(version, id));
+        }
+
+        // remove all origins first - new z of one widget can be equal to old z of other
+        for(Widget w : origin) {
+            version = version.without(w);
+        }
+        for(Widget w : origin) {
+            version = version.with(shifted.get(w.getId()).applyTo(w));
+        }
+
+        return version;
+    }
+
+    /**
+     * Publish new version of repository content and its changes (under writers lock)
+     * @param version New version
+     * @param changedIds IDs of changed widgets (widgets absent in new version are removed)
+     */
+    private void publish(final Version version, final Collection<Integer> changedIds) {
+        current = version;
+        modificationVersion.incrementAndGet();
+
+        List<WidgetChange> changes = new ArrayList<>(changedIds.size());
+        for(Integer id : changedIds) {
+            Widget widget = version.byId.get(id);
+            changes.add(widget!=null ? WidgetChange.put(widget) : WidgetChange.removed(id));
+        }
+        changeFeed.publish(changes);
+    }
+
+    private static List<Integer> ids(final Collection<Widget> widgets) {
+        List<Integer> result = new ArrayList<>(widgets.size());
+        for(Widget w : widgets) {
+            result.add(w.getId());
+        }
+        return result;
+    }
+
+    //endregion
+
+    //region Read
+
+    @Override
+    public Widget get(int id) {
+        return current.byId.get(id);
+    }
+
+    @Override
+    public Collection<Widget> getAllOrderByZ() {
+        return current.byZ.values();
+    }
+
+    @Override
+    public Page<Widget> getAllOrderByZ(int pageNum, int pageSize) {
+        Version version = current;
+
+        int elementCount = version.byZ.size();
+
+        return new Page<>(
+                pageNum,
+                pageSize,
+                (elementCount / pageSize) + 1,
+                elementCount,
+                version.byZ.values(pageNum * pageSize, pageSize)
+        );
+    }
+
+    @Override
+    public Collection<Widget> getAllOrderByZAfter(Integer afterZ, int limit) {
+
+        if(afterZ!=null && afterZ==Integer.MAX_VALUE) {
+            return Collections.emptyList();
+        }
+
+        List<Widget> result = new ArrayList<>();
+
+        Iterator<Widget> iterator = current.byZ.values(afterZ!=null ? afterZ+1 : Integer.MIN_VALUE);
+        while(result.size()<limit && iterator.hasNext()) {
+            result.add(iterator.next());
+        }
+
+        return result;
+    }
+
+    @Override
+    public Integer getMaxZ() {
+        return current.byZ.lastKey();
+    }
+
+    @Override
+    public long getVersion() {
+        return modificationVersion.get();
+    }
+
+    @Override
+    public WidgetChangeFeed getChangeFeed() {
+        return changeFeed;
+    }
+
+    @Override
+    public Collection<Widget> getFilteredByRectangle(int x1, int y1, int x2, int y2) {
+        List<Widget> result = new ArrayList<>();
+
+        // widgets with left border in [x1, x2], check other borders
+        for(Widget w : current.byLeft.values((long)x1 << 32, ((long)x2 << 32) | 0xFFFFFFFFL)) {
+            if(w.getX()+w.getWidth()/2<=x2 &&
+                    w.getY()-w.getHeight()/2>=y1 &&
+                    w.getY()+w.getHeight()/2<=y2) {
+                result.add(w);
+            }
+        }
+
+        return result;
+    }
+
+    //endregion
+
+    //region Write
+
+    @Override
+    public Widget add(final WidgetDelta widgetDelta) throws ConstraintViolationException {
+
+        // check validation
+        if(widgetDelta==null) {
+            throw new IllegalArgumentException("widgetDelta must be not null");
+        }
+
+        if(widgetDelta.getZ()==null) {
+            throw new NullPointerException("Widget must have none null z-coordinate");
+        }
+
+        writeLock.lock();
+        try {
+            Version version = current;
+
+            if(version.byZ.containsKey(widgetDelta.getZ())) {
+                throw new ConstraintViolationException("Not unique for Z");
+            }
+
+            Widget createdWidget = widgetDelta.createNewWidget(idSequence.getAndAdd(1));
+
+            publish(version.with(createdWidget), Collections.singletonList(createdWidget.getId()));
+
+            return createdWidget;
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Collection<Widget> addAll(Collection<WidgetDelta> deltas) throws ConstraintViolationException {
+
+        if(! deltas.stream().map(d -> d.getZ()!=null).reduce((l,r) -> l && r).orElse(true) ) {
+            throw new NullPointerException("Widget must have none null z-coordinate");
+        }
+
+        writeLock.lock();
+        try {
+            Version version = current;
+
+            // check unique z (with existed widgets and inside collection)
+            Set<Integer> zs = new HashSet<>();
+            for(WidgetDelta wd : deltas) {
+                if(version.byZ.containsKey(wd.getZ()) || !zs.add(wd.getZ())) {
+                    throw new ConstraintViolationException("Not unique for Z");
+                }
+            }
+
+            List<Widget> createdWidgets = new ArrayList<>();
+            for(WidgetDelta wd : deltas) {
+                Widget widget = wd.createNewWidget(idSequence.getAndAdd(1));
+                createdWidgets.add(widget);
+                version = version.with(widget);
+            }
+
+            publish(version, ids(createdWidgets));
+
+            return createdWidgets;
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Widget remove(int widgetId) {
+        writeLock.lock();
+        try {
+            Version version = current;
+            Widget deletedWidget = getExisted(version, widgetId);
+
+            publish(version.without(deletedWidget), Collections.singletonList(widgetId));
+
+            return deletedWidget;
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Collection<Widget> removeAll(Collection<Integer> ids) {
+        writeLock.lock();
+        try {
+            Version version = current;
+            List<Widget> deletedWidgets = new ArrayList<>();
+
+            for(Integer id : ids) {
+                Widget deletedWidget = getExisted(version, id);
+                deletedWidgets.add(deletedWidget);
+                version = version.without(deletedWidget);
+            }
+
+            publish(version, ids(deletedWidgets));
+
+            return deletedWidgets;
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Update widget by delta
+     * @param widgetId Widget id
+     * @param widgetDelta Widget changed properties (other - null)
+     * @return Updated widget full description
+     * @throws IllegalArgumentException WidgetDelta must be not null
+     * @throws NoSuchElementException No widget with such id in repository
+     */
+    @Override
+    public Widget update(int widgetId, final WidgetDelta widgetDelta)
+            throws IllegalArgumentException, NoSuchElementException, ConstraintViolationException {
+
+        if(widgetDelta==null) {
+            throw new IllegalArgumentException("widgetDelta must be not null");
+        }
+
+        writeLock.lock();
+        try {
+            Version version = current;
+            Widget origin = getExisted(version, widgetId);
+
+            Widget changedWidget = widgetDelta.applyTo(origin);
+
+            Widget sameZ = version.byZ.get(changedWidget.getZ());
+            if(sameZ!=null && sameZ.getId()!=widgetId) {
+                throw new ConstraintViolationException("Not unique for Z");
+            }
+
+            publish(version.without(origin).with(changedWidget), Collections.singletonList(widgetId));
+
+            return changedWidget;
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Collection<Widget> updateAll(Map<Integer, WidgetDelta> changes) throws IllegalArgumentException, NoSuchElementException, ConstraintViolationException {
+
+        writeLock.lock();
+        try {
+            Version version = current;
+
+            List<Widget> origin = new ArrayList<>();
+            for(Integer id : changes.keySet()) {
+                origin.add(getExisted(version, id));
+            }
+
+            // remove all origins first - z of changed widgets can be swapped inside collection
+            for(Widget w : origin) {
+                version = version.without(w);
+            }
+
+            List<Widget> changedWidgets = new ArrayList<>();
+            for(Widget w : origin) {
+                Widget changedWidget = changes.get(w.getId()).applyTo(w);
+
+                if(version.byZ.containsKey(changedWidget.getZ())) {
+                    throw new ConstraintViolationException("Not unique for Z");
+                }
+
+                changedWidgets.add(changedWidget);
+                version = version.with(changedWidget);
+            }
+
+            // publish whole batch at once
+            publish(version, changes.keySet());
+
+            return changedWidgets;
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Widget insertAt(final WidgetDelta widgetDelta, final ZShiftStrategy strategy) throws ConstraintViolationException {
+
+        // check validation
+        if(widgetDelta==null) {
+            throw new IllegalArgumentException("widgetDelta must be not null");
+        }
+
+        if(widgetDelta.getZ()==null) {
+            throw new NullPointerException("Widget must have none null z-coordinate");
+        }
+
+        writeLock.lock();
+        try {
+            Version version = current;
+
+            Map<Integer, WidgetDelta> shifted = strategy.shift(widgetDelta, zSequence(version));
+            version = applyShift(version, shifted);
+
+            if(version.byZ.containsKey(widgetDelta.getZ())) {
+                throw new ConstraintViolationException("Not unique for Z");
+            }
+
+            Widget createdWidget = widgetDelta.createNewWidget(idSequence.getAndAdd(1));
+
+            List<Integer> changedIds = new ArrayList<>(shifted.keySet());
+            changedIds.add(createdWidget.getId());
+
+            // publish shifting and adding at once
+            publish(version.with(createdWidget), changedIds);
+
+            return createdWidget;
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Widget moveTo(int widgetId, final WidgetDelta widgetDelta, final ZShiftStrategy strategy)
+            throws IllegalArgumentException, NoSuchElementException, ConstraintViolationException {
+
+        if(widgetDelta==null || widgetDelta.getZ()==null) {
+            throw new IllegalArgumentException("widgetDelta with z-coordinate must be not null");
+        }
+
+        writeLock.lock();
+        try {
+            Version version = current;
+            Widget origin = getExisted(version, widgetId);
+
+            // moved widget is out of z-sequence while shifting is planned
+            version = version.without(origin);
+
+            List<Integer> changedIds = new ArrayList<>();
+
+            // shift only on z-coordinate conflict
+            if(version.byZ.containsKey(widgetDelta.getZ())) {
+                Map<Integer, WidgetDelta> shifted = strategy.shift(widgetDelta, zSequence(version));
+                version = applyShift(version, shifted);
+                changedIds.addAll(shifted.keySet());
+            }
+
+            Widget changedWidget = widgetDelta.applyTo(origin);
+
+            if(version.byZ.containsKey(changedWidget.getZ())) {
+                throw new ConstraintViolationException("Not unique for Z");
+            }
+
+            changedIds.add(widgetId);
+
+            // publish shifting and updating at once
+            publish(version.with(changedWidget), changedIds);
+
+            return changedWidget;
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Collection<Widget> insertAllAt(final Collection<WidgetDelta> deltas, final ZShiftStrategy strategy)
+            throws ConstraintViolationException {
+
+        if(deltas.stream().anyMatch(d -> d==null || d.getZ()==null)) {
+            throw new IllegalArgumentException("widgetDelta with z-coordinate must be not null");
+        }
+
+        writeLock.lock();
+        try {
+            Version version = current;
+
+            // plan shifting of whole batch in one pass (on copies - z is changed by planning)
+            List<WidgetDelta> planned = new ArrayList<>();
+            for(WidgetDelta wd : deltas) {
+                planned.add(new WidgetDelta(wd.getX(), wd.getY(), wd.getZ(), wd.getWidth(), wd.getHeight()));
+            }
+
+            Map<Integer, WidgetDelta> shifted = strategy.shiftAll(planned, zSequence(version));
+            version = applyShift(version, shifted);
+
+            List<Widget> createdWidgets = new ArrayList<>();
+            for(WidgetDelta wd : planned) {
+                if(version.byZ.containsKey(wd.getZ())) {
+                    throw new ConstraintViolationException("Not unique for Z");
+                }
+
+                Widget widget = wd.createNewWidget(idSequence.getAndAdd(1));
+                createdWidgets.add(widget);
+                version = version.with(widget);
+            }
+
+            List<Integer> changedIds = new ArrayList<>(shifted.keySet());
+            changedIds.addAll(ids(createdWidgets));
+
+            // publish shifting and adding at once
+            publish(version, changedIds);
+
+            return createdWidgets;
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Collection<Widget> moveAllTo(final Map<Integer, WidgetDelta> changes, final ZShiftStrategy strategy)
+            throws IllegalArgumentException, NoSuchElementException, ConstraintViolationException {
+
+        if(changes.values().stream().anyMatch(Objects::isNull)) {
+            throw new IllegalArgumentException("widgetDelta must be not null");
+        }
+
+        writeLock.lock();
+        try {
+            Version version = current;
+
+            for(Integer id : changes.keySet()) {
+                getExisted(version, id);
+            }
+
+            // plan moving and shifting of whole batch in one pass
+            Map<Integer, WidgetDelta> all = strategy.moveAll(changes, zSequence(version));
+            version = applyShift(version, all);
+
+            List<Widget> changedWidgets = new ArrayList<>();
+            for(Integer id : changes.keySet()) {
+                changedWidgets.add(version.byId.get(id));
+            }
+
+            // publish moving and shifting at once
+            publish(version, all.keySet());
+
+            return changedWidgets;
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    //endregion
+}
@@ -0,0 +1,71 @@
+package net.rychkov.lab.widgets.dal.repository.CustomInMemory;
+
+import net.rychkov.lab.widgets.dal.model.Widget;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+/**
+ * Store of widget objects in concurrent map
+ */
+public class ObjectWidgetStore implements WidgetStore {
+
+    /**
+     * Map id-widget
+     */
+    private final ConcurrentMap<Integer, AtomicReference<Widget>> widgets;
+
+    public ObjectWidgetStore() {
+        widgets = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public Widget get(int id) {
+        AtomicReference<Widget> holder = widgets.get(id);
+        return holder!=null ? holder.get() : null;
+    }
+
+    @Override
+    public List<Widget> get(Collection<Integer> ids) {
+        return ids.stream().map(this::get).collect(Collectors.toList());
+    }
+
+    @Override
+    public void put(Widget widget) {
+        widgets.put(widget.getId(), new AtomicReference<>(widget));
+    }
+
+    @Override
+    public Widget remove(int id) {
+        AtomicReference<Widget> holder = widgets.remove(id);
+        return holder!=null ? holder.get() : null;
+    }
+
+    @Override
+    public Widget update(int id, UnaryOperator<Widget> change) {
+        AtomicReference<Widget> holder = widgets.get(id);
+
+        if(holder==null) {
+            throw new NoSuchElementException("No widgets with id "+id);
+        }
+
+        return holder.updateAndGet(change);
+    }
+
+    @Override
+    public int size() {
+        return widgets.size();
+    }
+
+    @Override
+    public void forEach(Consumer<Widget> action) {
+        widgets.values().forEach(holder -> action.accept(holder.get()));
+    }
+}
@@ -0,0 +1,74 @@
+package net.rychkov.lab.widgets.dal.repository.CustomInMemory;
+
+import net.rychkov.lab.widgets.dal.model.Widget;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Date;
+
+/**
+ * Off-heap store of widgets
+ * each chunk is a direct buffer of fixed-width records, so widget's fields don't load GC
+ * (only small per-chunk bookkeeping stays on heap)
+ * Direct memory is limited by -XX:MaxDirectMemorySize
+ */
+public class OffHeapWidgetStore extends ChunkedWidgetStore<OffHeapWidgetStore.BufferChunk> {
+
+    //region Record layout
+
+    private static final int X_OFFSET = 0;
+    private static final int Y_OFFSET = 4;
+    private static final int Z_OFFSET = 8;
+    private static final int WIDTH_OFFSET = 12;
+    private static final int HEIGHT_OFFSET = 16;
+    private static final int MODIFIED_OFFSET = 24;
+
+    /**
+     * Record size (long field aligned to 8 bytes)
+     */
+    static final int RECORD_SIZE = 32;
+
+    //endregion
+
+    /**
+     * Chunk of records in direct buffer
+     */
+    static final class BufferChunk extends ChunkedWidgetStore.Chunk {
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE * RECORD_SIZE).order(ByteOrder.nativeOrder());
+    }
+
+    @Override
+    protected BufferChunk createChunk() {
+        return new BufferChunk();
+    }
+
+    @Override
+    protected Widget read(BufferChunk chunk, int slot, int id) {
+        ByteBuffer buffer = chunk.buffer;
+        int offset = slot * RECORD_SIZE;
+
+        return new Widget(
+                id,
+                buffer.getInt(offset + X_OFFSET),
+                buffer.getInt(offset + Y_OFFSET),
+                buffer.getInt(offset + Z_OFFSET),
+                buffer.getInt(offset + WIDTH_OFFSET),
+                buffer.getInt(offset + HEIGHT_OFFSET),
+                new Date(buffer.getLong(offset + MODIFIED_OFFSET))
+        );
+    }
+
+    @Override
+    protected void write(BufferChunk chunk, int slot, Widget widget) {
+        ByteBuffer buffer = chunk.buffer;
+        int offset = slot * RECORD_SIZE;
+
+        buffer.putInt(offset + X_OFFSET, widget.getX());
+        buffer.putInt(offset + Y_OFFSET, widget.getY());
+        buffer.putInt(offset + Z_OFFSET, widget.getZ());
+        buffer.putInt(offset + WIDTH_OFFSET, widget.getWidth());
+        buffer.putInt(offset + HEIGHT_OFFSET, widget.getHeight());
+        buffer.putLong(offset + MODIFIED_OFFSET, modificationTime(widget));
+    }
+}
@@ -0,0 +1,408 @@
+package net.rychkov.lab.widgets.dal.repository.CustomInMemory;
+
+import java.util.*;
+
+/**
+ * Sorted map based on AVL tree, each node knows size of its subtree
+ * so element with rank k (k-th in key order) is found in O(log n)
+ * Not thread-safe (like TreeMap) - synchronization is up to index
+ * Reads are iterative and descend only to nodes of smaller height, so read racing with writer
+ * (optimistic read of index) takes bounded steps and fails instead of looping on inconsistent links
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+final class OrderStatisticTree<K, V> {
+
+    private static final class Node<K, V> {
+
+        K key;
+
+        V value;
+
+        Node<K, V> left;
+
+        Node<K, V> right;
+
+        int height = 1;
+
+        int size = 1;
+
+        Node(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final Comparator<? super K> comparator;
+
+    private Node<K, V> root;
+
+    @SuppressWarnings("unchecked")
+    OrderStatisticTree() {
+        this.comparator = (l, r) -> ((Comparable<? super K>) l).compareTo(r);
+    }
+
+    //region Balancing
+
+    private static int height(Node<?, ?> node) {
+        return node!=null ? node.height : 0;
+    }
+
+    private static int size(Node<?, ?> node) {
+        return node!=null ? node.size : 0;
+    }
+
+    private static <K, V> Node<K, V> update(Node<K, V> node) {
+        node.height = 1 + Math.max(height(node.left), height(node.right));
+        node.size = 1 + size(node.left) + size(node.right);
+        return node;
+    }
+
+    private static <K, V> Node<K, V> rotateRight(Node<K, V> node) {
+        Node<K, V> left = node.left;
+        node.left = left.right;
+        left.right = update(node);
+        return update(left);
+    }
+
+    private static <K, V> Node<K, V> rotateLeft(Node<K, V> node) {
+        Node<K, V> right = node.right;
+        node.right = right.left;
+        right.left = update(node);
+        return update(right);
+    }
+
+    private static <K, V> Node<K, V> balance(Node<K, V> node) {
+        update(node);
+
+        int balance = height(node.left) - height(node.right);
+
+        if(balance>1) {
+            if(height(node.left.left) < height(node.left.right)) {
+                node.left = rotateLeft(node.left);
+            }
+            return rotateRight(node);
+        }
+
+        if(balance<-1) {
+            if(height(node.right.right) < height(node.right.left)) {
+                node.right = rotateRight(node.right);
+            }
+            return rotateLeft(node);
+        }
+
+        return node;
+    }
+
+    //endregion
+
+    //region Modification
+
+    /**
+     * Put value by key
+     * @return Previous value or null
+     */
+    V put(K key, V value) {
+        Object[] previous = new Object[1];
+        root = put(root, key, value, previous);
+        @SuppressWarnings("unchecked")
+        V result = (V) previous[0];
+        return result;
+    }
+
+    private Node<K, V> put(Node<K, V> node, K key, V value, Object[] previous) {
+        if(node==null) {
+            return new Node<>(key, value);
+        }
+
+        int cmp = comparator.compare(key, node.key);
+
+        if(cmp<0) {
+            node.left = put(node.left, key, value, previous);
+        }
+        else if(cmp>0) {
+            node.right = put(node.right, key, value, previous);
+        }
+        else {
+            previous[0] = node.value;
+            node.value = value;
+            return node;
+        }
+
+        return balance(node);
+    }
+
+    /**
+     * Remove value by key
+     * @return Removed value or null
+     */
+    V remove(K key) {
+        Object[] removed = new Object[1];
+        root = remove(root, key, removed);
+        @SuppressWarnings("unchecked")
+        V result = (V) removed[0];
+        return result;
+    }
+
+    private Node<K, V> remove(Node<K, V> node, K key, Object[] removed) {
+        if(node==null) {
+            return null;
+        }
+
+        int cmp = comparator.compare(key, node.key);
+
+        if(cmp<0) {
+            node.left = remove(node.left, key, removed);
+        }
+        else if(cmp>0) {
+            node.right = remove(node.right, key, removed);
+        }
+        else {
+            removed[0] = node.value;
+
+            if(node.left==null) {
+                return node.right;
+            }
+            if(node.right==null) {
+                return node.left;
+            }
+
+            // replace by successor
+            Node<K, V> successor = node.right;
+            while(successor.left!=null) {
+                successor = successor.left;
+            }
+            node.key = successor.key;
+            node.value = successor.value;
+            node.right = remove(node.right, successor.key, new Object[1]);
+        }
+
+        return balance(node);
+    }
+
+    /**
+     * Build tree from sorted entries in O(n) (tree must be empty)
+     * @param keys Keys in ascending order without duplicates
+     * @param values Values in sequence of keys
+     */
+    void build(List<K> keys, List<V> values) {
+        if(root!=null) {
+            throw new IllegalStateException("Tree is not empty");
+        }
+        root = build(keys, values, 0, keys.size() - 1);
+    }
+
+    private static <K, V> Node<K, V> build(List<K> keys, List<V> values, int from, int to) {
+        if(from>to) {
+            return null;
+        }
+
+        int middle = (from + to) >>> 1;
+
+        Node<K, V> node = new Node<>(keys.get(middle), values.get(middle));
+        node.left = build(keys, values, from, middle - 1);
+        node.right = build(keys, values, middle + 1, to);
+
+        return update(node);
+    }
+
+    //endregion
+
+    //region Search
+
+    /**
+     * Child on descent from node: height of child is less than height of node in consistent tree,
+     * so descent takes at most height of root steps even on links read during concurrent rebalancing
+     * @throws ConcurrentModificationException Link is inconsistent (tree is being changed concurrently)
+     */
+    private static <K, V> Node<K, V> child(Node<K, V> node, Node<K, V> child) {
+        if(child!=null && child.height>=node.height) {
+            throw new ConcurrentModificationException();
+        }
+        return child;
+    }
+
+    V get(K key) {
+        Node<K, V> node = root;
+
+        while(node!=null) {
+            int cmp = comparator.compare(key, node.key);
+            if(cmp==0) {
+                return node.value;
+            }
+            node = child(node, cmp<0 ? node.left : node.right);
+        }
+
+        return null;
+    }
+
+    boolean containsKey(K key) {
+        Node<K, V> node = root;
+
+        while(node!=null) {
+            int cmp = comparator.compare(key, node.key);
+            if(cmp==0) {
+                return true;
+            }
+            node = child(node, cmp<0 ? node.left : node.right);
+        }
+
+        return false;
+    }
+
+    int size() {
+        return size(root);
+    }
+
+    /**
+     * Get first (lowest) key
+     * @return First key or null - if tree is empty
+     */
+    K firstKey() {
+        Node<K, V> node = root;
+        if(node==null) {
+            return null;
+        }
+        while(node.left!=null) {
+            node = child(node, node.left);
+        }
+        return node.key;
+    }
+
+    /**
+     * Get last (highest) key
+     * @return Last key or null - if tree is empty
+     */
+    K lastKey() {
+        Node<K, V> node = root;
+        if(node==null) {
+            return null;
+        }
+        while(node.right!=null) {
+            node = child(node, node.right);
+        }
+        return node.key;
+    }
+
+    //endregion
+
+    //region Iteration
+
+    /**
+     * Get values in key order starting from rank
+     * @param fromRank Rank of first value (0 - first)
+     * @param limit Max count of values
+     * @return List of values
+     */
+    List<V> values(int fromRank, int limit) {
+        List<V> result = new ArrayList<>(Math.max(0, Math.min(limit, size() - fromRank)));
+
+        Iterator<V> iterator = new ValueIterator().seekRank(fromRank);
+        while(result.size()<limit && iterator.hasNext()) {
+            result.add(iterator.next());
+        }
+
+        return result;
+    }
+
+    /**
+     * Get values in key order starting from key
+     * @param fromKey Low key (included)
+     * @return Iterator of values
+     */
+    Iterator<V> values(K fromKey) {
+        return new ValueIterator().seekKey(fromKey);
+    }
+
+    /**
+     * Get all values in key order (view)
+     * @return Collection of values
+     */
+    Collection<V> values() {
+        return new AbstractCollection<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new ValueIterator().seekRank(0);
+            }
+
+            @Override
+            public int size() {
+                return OrderStatisticTree.this.size();
+            }
+        };
+    }
+
+    /**
+     * In-order iterator starting from rank or key
+     */
+    private final class ValueIterator implements Iterator<V> {
+
+        private final Deque<Node<K, V>> stack = new ArrayDeque<>();
+
+        ValueIterator seekRank(int fromRank) {
+            Node<K, V> node = root;
+            int rank = fromRank;
+
+            // descend to node with rank, keep path of nodes with greater keys
+            while(node!=null) {
+                int leftSize = size(node.left);
+                if(rank<leftSize) {
+                    stack.push(node);
+                    node = child(node, node.left);
+                }
+                else if(rank==leftSize) {
+                    stack.push(node);
+                    break;
+                }
+                else {
+                    rank -= leftSize + 1;
+                    node = child(node, node.right);
+                }
+            }
+
+            return this;
+        }
+
+        ValueIterator seekKey(K fromKey) {
+            Node<K, V> node = root;
+
+            // descend to first key not less than fromKey, keep path of nodes with greater keys
+            while(node!=null) {
+                if(comparator.compare(node.key, fromKey)>=0) {
+                    stack.push(node);
+                    node = child(node, node.left);
+                }
+                else {
+                    node = child(node, node.right);
+                }
+            }
+
+            return this;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !stack.isEmpty();
+        }
+
+        @Override
+        public V next() {
+            if(stack.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+
+            Node<K, V> node = stack.pop();
+
+            // successor - leftmost node of right subtree
+            Node<K, V> next = child(node, node.right);
+            while(next!=null) {
+                stack.push(next);
+                next = child(next, next.left);
+            }
+
+            return node.value;
+        }
+    }
+
+    //endregion
+}
@@ -0,0 +1,44 @@
+package net.rychkov.lab.widgets.dal.repository.CustomInMemory;
+
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * Index ordered by widget's field
+ * @param <TField> Field type (must be Comparable)
+ */
+public abstract class OrderedIndex<TField> extends RepositoryIndex {
+
+    public OrderedIndex(final String name, boolean unique, final IndexLock lock) {
+        super(name, unique, lock);
+    }
+
+    /**
+     * Get slice of widget's ID ordered by field
+     * @param offset Position of first element
+     * @param limit Max count of elements
+     * @return Collection of widget's ID
+     */
+    public abstract Collection<Integer> get(int offset, int limit);
+
+    /**
+     * Get widget's ID ordered by field starting from key
+     * @param fromKey Low value of field (included)
+     * @return Iterator of widget's ID (valid under index lock)
+     */
+    public abstract Iterator<Integer> iterator(TField fromKey);
+
+    public abstract int size();
+
+    /**
+     * Get min value of field
+     * @return Min value or null - if index is empty
+     */
+    public abstract TField firstKey();
+
+    /**
+     * Get max value of field
+     * @return Max value or null - if index is empty
+     */
+    public abstract TField lastKey();
+}
@@ -0,0 +1,379 @@
+package net.rychkov.lab.widgets.dal.repository.CustomInMemory;
+
+import java.util.*;
+
+/**
+ * Persistent (immutable) sorted map based on AVL tree
+ * every modification returns new tree sharing unchanged nodes with origin (path copying - O(log n)),
+ * so any tree instance is a consistent snapshot and can be read without locks
+ * Each node knows size of its subtree, so element with rank k is found in O(log n)
+ * @param <K> Key type (must be Comparable)
+ * @param <V> Value type
+ */
+final class PersistentTree<K extends Comparable<? super K>, V> {
+
+    private static final class Node<K, V> {
+
+        final K key;
+
+        final V value;
+
+        final Node<K, V> left;
+
+        final Node<K, V> right;
+
+        final int height;
+
+        final int size;
+
+        Node(K key, V value, Node<K, V> left, Node<K, V> right) {
+            this.key = key;
+            this.value = value;
+            this.left = left;
+            this.right = right;
+            this.height = 1 + Math.max(height(left), height(right));
+            this.size = 1 + size(left) + size(right);
+        }
+    }
+
+    private static final PersistentTree<?, ?> EMPTY = new PersistentTree<>(null);
+
+    private final Node<K, V> root;
+
+    private PersistentTree(Node<K, V> root) {
+        this.root = root;
+    }
+
+    /**
+     * Get empty tree
+     * @return Empty tree
+     */
+    @SuppressWarnings("unchecked")
+    static <K extends Comparable<? super K>, V> PersistentTree<K, V> empty() {
+        return (PersistentTree<K, V>) EMPTY;
+    }
+
+    //region Balancing
+
+    private static int height(Node<?, ?> node) {
+        return node!=null ? node.height : 0;
+    }
+
+    private static int size(Node<?, ?> node) {
+        return node!=null ? node.size : 0;
+    }
+
+    /**
+     * Create node with balanced subtrees (heights of subtrees differ at most by 2)
+     */
+    private static <K, V> Node<K, V> balance(K key, V value, Node<K, V> left, Node<K, V> right) {
+        int hl = height(left);
+        int hr = height(right);
+
+        if(hl>hr+1) {
+            if(height(left.left)>=height(left.right)) {
+                return new Node<>(left.key, left.value, left.left, new Node<>(key, value, left.right, right));
+            }
+            Node<K, V> lr = left.right;
+            return new Node<>(lr.key, lr.value,
+                    new Node<>(left.key, left.value, left.left, lr.left),
+                    new Node<>(key, value, lr.right, right));
+        }
+
+        if(hr>hl+1) {
+            if(height(right.right)>=height(right.left)) {
+                return new Node<>(right.key, right.value, new Node<>(key, value, left, right.left), right.right);
+            }
+            Node<K, V> rl = right.left;
+            return new Node<>(rl.key, rl.value,
+                    new Node<>(key, value, left, rl.left),
+                    new Node<>(right.key, right.value, rl.right, right.right));
+        }
+
+        return new Node<>(key, value, left, right);
+    }
+
+    //endregion
+
+    //region Modification
+
+    /**
+     * Put value by key
+     * @return New tree
+     */
+    PersistentTree<K, V> put(K key, V value) {
+        return new PersistentTree<>(put(root, key, value));
+    }
+
+    private static <K extends Comparable<? super K>, V> Node<K, V> put(Node<K, V> node, K key, V value) {
+        if(node==null) {
+            return new Node<>(key, value, null, null);
+        }
+
+        int cmp = key.compareTo(node.key);
+
+        if(cmp<0) {
+            return balance(node.key, node.value, put(node.left, key, value), node.right);
+        }
+        if(cmp>0) {
+            return balance(node.key, node.value, node.left, put(node.right, key, value));
+        }
+
+        return new Node<>(key, value, node.left, node.right);
+    }
+
+    /**
+     * Remove value by key
+     * @return New tree (or this tree - if no such key)
+     */
+    PersistentTree<K, V> remove(K key) {
+        Node<K, V> newRoot = remove(root, key);
+        return newRoot==root ? this : new PersistentTree<>(newRoot);
+    }
+
+    private static <K extends Comparable<? super K>, V> Node<K, V> remove(Node<K, V> node, K key) {
+        if(node==null) {
+            return null;
+        }
+
+        int cmp = key.compareTo(node.key);
+
+        if(cmp<0) {
+            Node<K, V> left = remove(node.left, key);
+            return left==node.left ? node : balance(node.key, node.value, left, node.right);
+        }
+        if(cmp>0) {
+            Node<K, V> right = remove(node.right, key);
+            return right==node.right ? node : balance(node.key, node.value, node.left, right);
+        }
+
+        if(node.left==null) {
+            return node.right;
+        }
+        if(node.right==null) {
+            return node.left;
+        }
+
+        // replace by successor
+        Node<K, V> successor = node.right;
+        while(successor.left!=null) {
+            successor = successor.left;
+        }
+
+        return balance(successor.key, successor.value, node.left, removeMin(node.right));
+    }
+
+    private static <K, V> Node<K, V> removeMin(Node<K, V> node) {
+        if(node.left==null) {
+            return node.right;
+        }
+        return balance(node.key, node.value, removeMin(node.left), node.right);
+    }
+
+    //endregion
+
+    //region Search
+
+    V get(K key) {
+        Node<K, V> node = root;
+
+        while(node!=null) {
+            int cmp = key.compareTo(node.key);
+            if(cmp==0) {
+                return node.value;
+            }
+            node = cmp<0 ? node.left : node.right;
+        }
+
+        return null;
+    }
+
+    boolean containsKey(K key) {
+        return get(key)!=null;
+    }
+
+    int size() {
+        return size(root);
+    }
+
+    /**
+     * Get first (lowest) key
+     * @return First key or null - if tree is empty
+     */
+    K firstKey() {
+        Node<K, V> node = root;
+        if(node==null) {
+            return null;
+        }
+        while(node.left!=null) {
+            node = node.left;
+        }
+        return node.key;
+    }
+
+    /**
+     * Get last (highest) key
+     * @return Last key or null - if tree is empty
+     */
+    K lastKey() {
+        Node<K, V> node = root;
+        if(node==null) {
+            return null;
+        }
+        while(node.right!=null) {
+            node = node.right;
+        }
+        return node.key;
+    }
+
+    //endregion
+
+    //region Iteration
+
+    /**
+     * Get values in key order starting from rank
+     * @param fromRank Rank of first value (0 - first)
+     * @param limit Max count of values
+     * @return List of values
+     */
+    List<V> values(int fromRank, int limit) {
+        List<V> result = new ArrayList<>(Math.max(0, Math.min(limit, size() - fromRank)));
+
+        Deque<Node<K, V>> stack = new ArrayDeque<>();
+        Node<K, V> node = root;
+        int rank = fromRank;
+
+        // descend to node with rank, keep path of nodes with greater keys
+        while(node!=null) {
+            int leftSize = size(node.left);
+            if(rank<leftSize) {
+                stack.push(node);
+                node = node.left;
+            }
+            else if(rank==leftSize) {
+                stack.push(node);
+                break;
+            }
+            else {
+                rank -= leftSize + 1;
+                node = node.right;
+            }
+        }
+
+        while(result.size()<limit && !stack.isEmpty()) {
+            result.add(next(stack).value);
+        }
+
+        return result;
+    }
+
+    /**
+     * Get values with keys in range
+     * @param from Low key (included)
+     * @param to High key (included)
+     * @return List of values in key order
+     */
+    List<V> values(K from, K to) {
+        List<V> result = new ArrayList<>();
+
+        Deque<Node<K, V>> stack = seek(from);
+
+        while(!stack.isEmpty()) {
+            Node<K, V> next = next(stack);
+            if(next.key.compareTo(to)>0) {
+                break;
+            }
+            result.add(next.value);
+        }
+
+        return result;
+    }
+
+    /**
+     * Get values starting from key
+     * @param from Low key (included)
+     * @return Iterator of values in key order
+     */
+    Iterator<V> values(K from) {
+        return iterator(seek(from));
+    }
+
+    /**
+     * Get all values in key order (immutable view)
+     * @return Collection of values
+     */
+    Collection<V> values() {
+        return new AbstractCollection<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                Deque<Node<K, V>> stack = new ArrayDeque<>();
+                for(Node<K, V> node = root; node!=null; node = node.left) {
+                    stack.push(node);
+                }
+
+                return PersistentTree.iterator(stack);
+            }
+
+            @Override
+            public int size() {
+                return PersistentTree.this.size();
+            }
+        };
+    }
+
+    /**
+     * Path to first node with key not less than from (nodes with greater keys)
+     */
+    private Deque<Node<K, V>> seek(K from) {
+        Deque<Node<K, V>> stack = new ArrayDeque<>();
+        Node<K, V> node = root;
+
+        // descend to first key not less than from
+        while(node!=null) {
+            if(node.key.compareTo(from)>=0) {
+                stack.push(node);
+                node = node.left;
+            }
+            else {
+                node = node.right;
+            }
+        }
+
+        return stack;
+    }
+
+    /**
+     * In-order iterator of values by path of nodes
+     */
+    private static <K, V> Iterator<V> iterator(final Deque<Node<K, V>> stack) {
+        return new Iterator<V>() {
+            @Override
+            public boolean hasNext() {
+                return !stack.isEmpty();
+            }
+
+            @Override
+            public V next() {
+                if(stack.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                return PersistentTree.next(stack).value;
+            }
+        };
+    }
+
+    /**
+     * Pop next in-order node and push path to its successor
+     */
+    private static <K, V> Node<K, V> next(Deque<Node<K, V>> stack) {
+        Node<K, V> node = stack.pop();
+
+        for(Node<K, V> next = node.right; next!=null; next = next.left) {
+            stack.push(next);
+        }
+
+        return node;
+    }
+
+    //endregion
+}
@@ -0,0 +1,531 @@
+package net.rychkov.lab.widgets.dal.repository.CustomInMemory;
+
+import net.rychkov.lab.widgets.dal.model.Widget;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Spatial index based on R-tree (Guttman, quadratic split)
+ * indexes whole bounding boxes of widgets, rectangle queries prune subtrees
+ * which bounding boxes don't intersect the region
+ */
+public class RTreeIndex extends SpatialIndex {
+
+    /**
+     * Default max entries per node
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 16;
+
+    private final int maxEntries;
+
+    private final int minEntries;
+
+    private Node root;
+
+    private int size;
+
+    /**
+     * Tree node
+     * entries are stored as parallel arrays of bounding boxes
+     * plus children (inner node) or widget's ID (leaf)
+     */
+    private static final class Node {
+
+        final boolean leaf;
+
+        Node parent;
+
+        int count;
+
+        final int[] x1;
+        final int[] y1;
+        final int[] x2;
+        final int[] y2;
+
+        final Node[] children;
+
+        final int[] ids;
+
+        Node(boolean leaf, int maxEntries) {
+            // one extra entry for overflow before split
+            int capacity = maxEntries + 1;
+            this.leaf = leaf;
+            this.x1 = new int[capacity];
+            this.y1 = new int[capacity];
+            this.x2 = new int[capacity];
+            this.y2 = new int[capacity];
+            this.children = leaf ? null : new Node[capacity];
+            this.ids = leaf ? new int[capacity] : null;
+        }
+
+        int minX() {
+            int result = Integer.MAX_VALUE;
+            for(int i=0; i<count; i++) { result = Math.min(result, x1[i]); }
+            return result;
+        }
+
+        int minY() {
+            int result = Integer.MAX_VALUE;
+            for(int i=0; i<count; i++) { result = Math.min(result, y1[i]); }
+            return result;
+        }
+
+        int maxX() {
+            int result = Integer.MIN_VALUE;
+            for(int i=0; i<count; i++) { result = Math.max(result, x2[i]); }
+            return result;
+        }
+
+        int maxY() {
+            int result = Integer.MIN_VALUE;
+            for(int i=0; i<count; i++) { result = Math.max(result, y2[i]); }
+            return result;
+        }
+
+        void put(int ax1, int ay1, int ax2, int ay2, Node child, int id) {
+            x1[count] = ax1;
+            y1[count] = ay1;
+            x2[count] = ax2;
+            y2[count] = ay2;
+            if(leaf) {
+                ids[count] = id;
+            }
+            else {
+                children[count] = child;
+                child.parent = this;
+            }
+            count++;
+        }
+
+        void removeAt(int index) {
+            int last = count - 1;
+            x1[index] = x1[last];
+            y1[index] = y1[last];
+            x2[index] = x2[last];
+            y2[index] = y2[last];
+            if(leaf) {
+                ids[index] = ids[last];
+            }
+            else {
+                children[index] = children[last];
+                children[last] = null;
+            }
+            count--;
+        }
+
+        int indexOf(Node child) {
+            for(int i=0; i<count; i++) {
+                if(children[i]==child) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    public RTreeIndex() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param maxEntries Max entries per node (at least 4)
+     */
+    public RTreeIndex(int maxEntries) {
+        this(maxEntries, new ReadWriteIndexLock());
+    }
+
+    /**
+     * @param maxEntries Max entries per node (at least 4)
+     * @param lock Lock strategy
+     */
+    public RTreeIndex(int maxEntries, final IndexLock lock) {
+        super("Spatial R-tree index", lock);
+
+        if(maxEntries<4) {
+            throw new IllegalArgumentException("maxEntries must be at least 4");
+        }
+
+        this.maxEntries = maxEntries;
+        this.minEntries = Math.max(2, maxEntries * 2 / 5);
+        this.root = new Node(true, maxEntries);
+    }
+
+    //region Geometry helpers
+
+    private static long area(int ax1, int ay1, int ax2, int ay2) {
+        return ((long)ax2 - ax1) * ((long)ay2 - ay1);
+    }
+
+    private static long enlargement(Node node, int i, int ax1, int ay1, int ax2, int ay2) {
+        return area(
+                Math.min(node.x1[i], ax1), Math.min(node.y1[i], ay1),
+                Math.max(node.x2[i], ax2), Math.max(node.y2[i], ay2)
+        ) - area(node.x1[i], node.y1[i], node.x2[i], node.y2[i]);
+    }
+
+    //endregion
+
+    //region Insert
+
+    private void insert(int ax1, int ay1, int ax2, int ay2, int id) {
+        Node leaf = chooseLeaf(ax1, ay1, ax2, ay2);
+        leaf.put(ax1, ay1, ax2, ay2, null, id);
+        adjustTree(leaf);
+        size++;
+    }
+
+    /**
+     * Descend from root choosing entry with least enlargement (ties - least area)
+     */
+    private Node chooseLeaf(int ax1, int ay1, int ax2, int ay2) {
+        Node node = root;
+
+        while(!node.leaf) {
+            int best = 0;
+            long bestEnlargement = Long.MAX_VALUE;
+            long bestArea = Long.MAX_VALUE;
+
+            for(int i=0; i<node.count; i++) {
+                long e = enlargement(node, i, ax1, ay1, ax2, ay2);
+                long a = area(node.x1[i], node.y1[i], node.x2[i], node.y2[i]);
+                if(e<bestEnlargement || (e==bestEnlargement && a<bestArea)) {
+                    best = i;
+                    bestEnlargement = e;
+                    bestArea = a;
+                }
+            }
+
+            node = node.children[best];
+        }
+
+        return node;
+    }
+
+    /**
+     * Propagate bounding box changes and splits up to the root
+     */
+    private void adjustTree(Node node) {
+        while(true) {
+            Node sibling = node.count>maxEntries ? split(node) : null;
+            Node parent = node.parent;
+
+            if(parent==null) {
+                if(sibling!=null) {
+                    // root split - grow tree
+                    Node newRoot = new Node(false, maxEntries);
+                    newRoot.put(node.minX(), node.minY(), node.maxX(), node.maxY(), node, 0);
+                    newRoot.put(sibling.minX(), sibling.minY(), sibling.maxX(), sibling.maxY(), sibling, 0);
+                    root = newRoot;
+                }
+                return;
+            }
+
+            refreshEntry(parent, node);
+            if(sibling!=null) {
+                parent.put(sibling.minX(), sibling.minY(), sibling.maxX(), sibling.maxY(), sibling, 0);
+            }
+
+            node = parent;
+        }
+    }
+
+    private void refreshEntry(Node parent, Node child) {
+        int i = parent.indexOf(child);
+        parent.x1[i] = child.minX();
+        parent.y1[i] = child.minY();
+        parent.x2[i] = child.maxX();
+        parent.y2[i] = child.maxY();
+    }
+
+    /**
+     * Quadratic split of overflowed node
+     * @param node Overflowed node (keeps first group)
+     * @return New sibling node (second group)
+     */
+    private Node split(Node node) {
+        int n = node.count;
+
+        // copy entries
+        int[] ex1 = node.x1.clone();
+        int[] ey1 = node.y1.clone();
+        int[] ex2 = node.x2.clone();
+        int[] ey2 = node.y2.clone();
+        Node[] ec = node.leaf ? null : node.children.clone();
+        int[] eid = node.leaf ? node.ids.clone() : null;
+
+        // pick seeds - pair with the most wasted area
+        int seed1 = 0, seed2 = 1;
+        long worst = Long.MIN_VALUE;
+        for(int i=0; i<n; i++) {
+            for(int j=i+1; j<n; j++) {
+                long waste = area(
+                        Math.min(ex1[i], ex1[j]), Math.min(ey1[i], ey1[j]),
+                        Math.max(ex2[i], ex2[j]), Math.max(ey2[i], ey2[j])
+                ) - area(ex1[i], ey1[i], ex2[i], ey2[i]) - area(ex1[j], ey1[j], ex2[j], ey2[j]);
+                if(waste>worst) {
+                    worst = waste;
+                    seed1 = i;
+                    seed2 = j;
+                }
+            }
+        }
+
+        Node sibling = new Node(node.leaf, maxEntries);
+        node.count = 0;
+        if(!node.leaf) {
+            Arrays.fill(node.children, null);
+        }
+
+        boolean[] assigned = new boolean[n];
+        assigned[seed1] = true;
+        assigned[seed2] = true;
+        node.put(ex1[seed1], ey1[seed1], ex2[seed1], ey2[seed1], ec!=null ? ec[seed1] : null, eid!=null ? eid[seed1] : 0);
+        sibling.put(ex1[seed2], ey1[seed2], ex2[seed2], ey2[seed2], ec!=null ? ec[seed2] : null, eid!=null ? eid[seed2] : 0);
+
+        // group bounding boxes
+        int g1x1 = ex1[seed1], g1y1 = ey1[seed1], g1x2 = ex2[seed1], g1y2 = ey2[seed1];
+        int g2x1 = ex1[seed2], g2y1 = ey1[seed2], g2x2 = ex2[seed2], g2y2 = ey2[seed2];
+
+        int remaining = n - 2;
+
+        while(remaining>0) {
+
+            // one group needs all remaining entries to reach min
+            Node forced = null;
+            if(node.count + remaining <= minEntries) {
+                forced = node;
+            }
+            else if(sibling.count + remaining <= minEntries) {
+                forced = sibling;
+            }
+
+            int next = -1;
+            Node target;
+
+            if(forced!=null) {
+                for(int i=0; i<n; i++) {
+                    if(!assigned[i]) {
+                        next = i;
+                        break;
+                    }
+                }
+                target = forced;
+            }
+            else {
+                // pick entry with max preference for one group
+                long bestDiff = -1;
+                long next1 = 0, next2 = 0;
+                for(int i=0; i<n; i++) {
+                    if(assigned[i]) {
+                        continue;
+                    }
+                    long d1 = area(Math.min(g1x1, ex1[i]), Math.min(g1y1, ey1[i]), Math.max(g1x2, ex2[i]), Math.max(g1y2, ey2[i]))
+                            - area(g1x1, g1y1, g1x2, g1y2);
+                    long d2 = area(Math.min(g2x1, ex1[i]), Math.min(g2y1, ey1[i]), Math.max(g2x2, ex2[i]), Math.max(g2y2, ey2[i]))
+                            - area(g2x1, g2y1, g2x2, g2y2);
+                    long diff = Math.abs(d1 - d2);
+                    if(diff>bestDiff) {
+                        bestDiff = diff;
+                        next = i;
+                        next1 = d1;
+                        next2 = d2;
+                    }
+                }
+
+                if(next1!=next2) {
+                    target = next1<next2 ? node : sibling;
+                }
+                else {
+                    long a1 = area(g1x1, g1y1, g1x2, g1y2);
+                    long a2 = area(g2x1, g2y1, g2x2, g2y2);
+                    if(a1!=a2) {
+                        target = a1<a2 ? node : sibling;
+                    }
+                    else {
+                        target = node.count<=sibling.count ? node : sibling;
+                    }
+                }
+            }
+
+            assigned[next] = true;
+            remaining--;
+            target.put(ex1[next], ey1[next], ex2[next], ey2[next], ec!=null ? ec[next] : null, eid!=null ? eid[next] : 0);
+
+            if(target==node) {
+                g1x1 = Math.min(g1x1, ex1[next]); g1y1 = Math.min(g1y1, ey1[next]);
+                g1x2 = Math.max(g1x2, ex2[next]); g1y2 = Math.max(g1y2, ey2[next]);
+            }
+            else {
+                g2x1 = Math.min(g2x1, ex1[next]); g2y1 = Math.min(g2y1, ey1[next]);
+                g2x2 = Math.max(g2x2, ex2[next]); g2y2 = Math.max(g2y2, ey2[next]);
+            }
+        }
+
+        return sibling;
+    }
+
+    //endregion
+
+    //region Remove
+
+    private boolean delete(int ax1, int ay1, int ax2, int ay2, int id) {
+        Node leaf = findLeaf(root, ax1, ay1, ax2, ay2, id);
+
+        if(leaf==null) {
+            return false;
+        }
+
+        for(int i=0; i<leaf.count; i++) {
+            if(leaf.ids[i]==id) {
+                leaf.removeAt(i);
+                break;
+            }
+        }
+
+        condenseTree(leaf);
+        size--;
+        return true;
+    }
+
+    private Node findLeaf(Node node, int ax1, int ay1, int ax2, int ay2, int id) {
+        if(node.leaf) {
+            for(int i=0; i<node.count; i++) {
+                if(node.ids[i]==id) {
+                    return node;
+                }
+            }
+            return null;
+        }
+
+        for(int i=0; i<node.count; i++) {
+            if(node.x1[i]<=ax1 && node.y1[i]<=ay1 && node.x2[i]>=ax2 && node.y2[i]>=ay2) {
+                Node found = findLeaf(node.children[i], ax1, ay1, ax2, ay2, id);
+                if(found!=null) {
+                    return found;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Remove underflowed nodes up to the root and reinsert their entries
+     */
+    private void condenseTree(Node leaf) {
+        List<Node> eliminated = new ArrayList<>();
+
+        Node node = leaf;
+        while(node.parent!=null) {
+            Node parent = node.parent;
+            if(node.count<minEntries) {
+                parent.removeAt(parent.indexOf(node));
+                node.parent = null;
+                eliminated.add(node);
+            }
+            else {
+                refreshEntry(parent, node);
+            }
+            node = parent;
+        }
+
+        shortenTree();
+
+        for(Node e : eliminated) {
+            reinsert(e);
+        }
+
+        shortenTree();
+    }
+
+    private void shortenTree() {
+        while(!root.leaf && root.count==1) {
+            root = root.children[0];
+            root.parent = null;
+        }
+        if(!root.leaf && root.count==0) {
+            root = new Node(true, maxEntries);
+        }
+    }
+
+    private void reinsert(Node node) {
+        for(int i=0; i<node.count; i++) {
+            if(node.leaf) {
+                Node leaf = chooseLeaf(node.x1[i], node.y1[i], node.x2[i], node.y2[i]);
+                leaf.put(node.x1[i], node.y1[i], node.x2[i], node.y2[i], null, node.ids[i]);
+                adjustTree(leaf);
+            }
+            else {
+                reinsert(node.children[i]);
+            }
+        }
+    }
+
+    //endregion
+
+    //region Search
+
+    private static void collect(Node node, Collection<Integer> result) {
+        for(int i=0; i<node.count; i++) {
+            if(node.leaf) {
+                result.add(node.ids[i]);
+            }
+            else {
+                collect(node.children[i], result);
+            }
+        }
+    }
+
+    private static void search(Node node, int qx1, int qy1, int qx2, int qy2, Collection<Integer> result) {
+        for(int i=0; i<node.count; i++) {
+
+            boolean contained = node.x1[i]>=qx1 && node.y1[i]>=qy1 && node.x2[i]<=qx2 && node.y2[i]<=qy2;
+
+            if(node.leaf) {
+                if(contained) {
+                    result.add(node.ids[i]);
+                }
+            }
+            else if(contained) {
+                // whole subtree is inside the region
+                collect(node.children[i], result);
+            }
+            else if(node.x1[i]<=qx2 && node.x2[i]>=qx1 && node.y1[i]<=qy2 && node.y2[i]>=qy1) {
+                search(node.children[i], qx1, qy1, qx2, qy2, result);
+            }
+        }
+    }
+
+    //endregion
+
+    @Override
+    public void add(final Widget widget) {
+        insert(left(widget), top(widget), right(widget), bottom(widget), widget.getId());
+    }
+
+    @Override
+    public void remove(final Widget widget) {
+        delete(left(widget), top(widget), right(widget), bottom(widget), widget.getId());
+    }
+
+    @Override
+    public Collection<Integer> get() {
+        List<Integer> result = new ArrayList<>(size);
+        collect(root, result);
+        return result;
+    }
+
+    @Override
+    public Collection<Integer> getFilteredByRectangle(int x1, int y1, int x2, int y2) {
+        List<Integer> result = new ArrayList<>();
+        search(root, x1, y1, x2, y2, result);
+        return result;
+    }
+
+    public int size() {
+        return size;
+    }
+}
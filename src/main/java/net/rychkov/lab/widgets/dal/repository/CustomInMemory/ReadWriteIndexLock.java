@@ -0,0 +1,43 @@
+package net.rychkov.lab.widgets.dal.repository.CustomInMemory;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Index lock based on ReentrantReadWriteLock (default)
+ */
+public class ReadWriteIndexLock implements IndexLock {
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    @Override
+    public void readLock() {
+        lock.readLock().lock();
+    }
+
+    @Override
+    public void readUnlock() {
+        lock.readLock().unlock();
+    }
+
+    @Override
+    public void writeLock() {
+        lock.writeLock().lock();
+    }
+
+    @Override
+    public void writeUnlock() {
+        lock.writeLock().unlock();
+    }
+
+    @Override
+    public <T> T read(Supplier<T> action) {
+        readLock();
+        try {
+            return action.get();
+        }
+        finally {
+            readUnlock();
+        }
+    }
+}
@@ -2,20 +2,26 @@ package net.rychkov.lab.widgets.dal.repository.CustomInMemory;
 
 import net.rychkov.lab.widgets.dal.model.Page;
 import net.rychkov.lab.widgets.dal.model.Widget;
+import net.rychkov.lab.widgets.dal.model.WidgetChange;
 import net.rychkov.lab.widgets.dal.model.WidgetDelta;
 import net.rychkov.lab.widgets.dal.repository.ConstraintViolationException;
+import net.rychkov.lab.widgets.dal.repository.WidgetChangeFeed;
 import net.rychkov.lab.widgets.dal.repository.WidgetRepository;
-import org.springframework.stereotype.Repository;
+import net.rychkov.lab.widgets.dal.repository.ZSequence;
+import net.rychkov.lab.widgets.dal.repository.ZShiftStrategy;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 
-@Repository("customInMemory")
-public class RepositoryImpl implements WidgetRepository {
+public class RepositoryImpl implements WidgetRepository, Closeable {
 
     /**
      * List of repository indexes
@@ -27,47 +33,369 @@ public class RepositoryImpl implements WidgetRepository {
     /**
      * Index for filter 'by rectangle'
      */
-    private final ComplexIndex xyIndex;
+    private final SpatialIndex xyIndex;
 
     /**
      * Sorted by z-field
      */
-    private final FieldIndex<Integer> zIndex;
+    private final OrderedIndex<Integer> zIndex;
 
     /**
-     * Map id-widget
+     * Store id-widget
      */
-    private final ConcurrentMap<Integer, AtomicReference<Widget>> widgets;
+    private final WidgetStore widgets;
 
     /**
      * Sequence for widget's id
      */
     private final AtomicInteger idSequence;
 
+    /**
+     * Modification version (incremented after every write is visible)
+     */
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * Published changes
+     */
+    private final WidgetChangeFeed changeFeed = new WidgetChangeFeed();
+
+    /**
+     * Locks of z-ranges for inserting (with shifting) - inserts into disjoint ranges run concurrently
+     * if indexes allow concurrent inserts
+     */
+    private final ZRangeLock zRanges = new ZRangeLock();
+
+    /**
+     * Write-ahead log (null - repository is not durable)
+     */
+    private final WriteAheadLog log;
+
+    /**
+     * Snapshot file (null - snapshots are disabled)
+     */
+    private final Path snapshotFile;
+
     public RepositoryImpl() {
+        this(new ComplexIndex());
+    }
+
+    /**
+     * @param xyIndex Index for filter 'by rectangle'
+     */
+    public RepositoryImpl(final SpatialIndex xyIndex) {
+        this(xyIndex, new ObjectWidgetStore());
+    }
+
+    /**
+     * @param xyIndex Index for filter 'by rectangle'
+     * @param store Backing store of widgets
+     */
+    public RepositoryImpl(final SpatialIndex xyIndex, final WidgetStore store) {
+        this(xyIndex, store, new ReadWriteIndexLock());
+    }
+
+    /**
+     * @param xyIndex Index for filter 'by rectangle'
+     * @param store Backing store of widgets
+     * @param zIndexLock Lock strategy of z-index
+     */
+    public RepositoryImpl(final SpatialIndex xyIndex, final WidgetStore store, final IndexLock zIndexLock) {
+        this(xyIndex, store, new FieldIndex<>("Z",true, Widget::getZ, WidgetDelta::getZ, zIndexLock));
+    }
+
+    /**
+     * @param xyIndex Index for filter 'by rectangle'
+     * @param store Backing store of widgets
+     * @param zIndex Unique index by z-coordinate
+     */
+    public RepositoryImpl(final SpatialIndex xyIndex, final WidgetStore store, final OrderedIndex<Integer> zIndex) {
 
         idSequence = new AtomicInteger(1);
 
-        widgets = new ConcurrentHashMap<>();
+        widgets = store;
 
-        zIndex = new FieldIndex<>("Z",true, Widget::getZ, WidgetDelta::getZ);
-        xyIndex = new ComplexIndex();
+        this.zIndex = zIndex;
+        this.xyIndex = xyIndex;
         indexes = Arrays.asList(zIndex, xyIndex);
+
+        log = null;
+        snapshotFile = null;
+    }
+
+    /**
+     * Durable repository: state is restored from write-ahead log, all changes are logged
+     * @param xyIndex Index for filter 'by rectangle'
+     * @param store Backing store of widgets (must be empty)
+     * @param zIndex Unique index by z-coordinate (must be empty)
+     * @param log Write-ahead log
+     * @throws IOException Log can't be replayed
+     */
+    public RepositoryImpl(final SpatialIndex xyIndex, final WidgetStore store, final OrderedIndex<Integer> zIndex,
+                          final WriteAheadLog log) throws IOException {
+        this(xyIndex, store, zIndex, log, null);
+    }
+
+    /**
+     * Durable repository with snapshots: state is restored from snapshot and write-ahead log after it
+     * @param xyIndex Index for filter 'by rectangle'
+     * @param store Backing store of widgets (must be empty)
+     * @param zIndex Unique index by z-coordinate (must be empty)
+     * @param log Write-ahead log
+     * @param snapshotFile Snapshot file (null - snapshots are disabled)
+     * @throws IOException Snapshot or log can't be read
+     */
+    public RepositoryImpl(final SpatialIndex xyIndex, final WidgetStore store, final OrderedIndex<Integer> zIndex,
+                          final WriteAheadLog log, final Path snapshotFile) throws IOException {
+
+        widgets = store;
+
+        this.zIndex = zIndex;
+        this.xyIndex = xyIndex;
+        indexes = Arrays.asList(zIndex, xyIndex);
+
+        this.log = log;
+        this.snapshotFile = snapshotFile;
+
+        Map<Integer, Widget> state = new HashMap<>();
+        long generation = 0;
+        int[] nextId = {1};
+
+        // load snapshot
+        if(snapshotFile!=null && Files.exists(snapshotFile)) {
+            WidgetSnapshot snapshot = WidgetSnapshot.read(snapshotFile);
+            for(Widget w : snapshot.getWidgets()) {
+                state.put(w.getId(), w);
+            }
+            generation = snapshot.getGeneration();
+            nextId[0] = snapshot.getIdSequence();
+        }
+
+        // replay log after snapshot (last image of each widget wins)
+        log.replay(
+                generation,
+                w -> {
+                    state.put(w.getId(), w);
+                    nextId[0] = Math.max(nextId[0], w.getId() + 1);
+                },
+                id -> {
+                    state.remove(id);
+                    nextId[0] = Math.max(nextId[0], id + 1);
+                }
+        );
+
+        // bulk build
+        Collection<Widget> restored = state.values();
+        restored.forEach(widgets::put);
+        indexes.forEach(i -> i.addAll(restored));
+
+        idSequence = new AtomicInteger(nextId[0]);
+    }
+
+    //region Helpers
+
+    /**
+     * Get widgets by ID from store
+     * index may be weakly consistent (read without lock), so widgets removed meanwhile are skipped
+     */
+    private List<Widget> getWidgets(final Collection<Integer> ids) {
+        List<Widget> result = widgets.get(ids);
+        result.removeIf(Objects::isNull);
+        return result;
+    }
+
+    /**
+     * Add new widgets to indexes
+     * unique constraint is finally checked on adding (index may allow concurrent inserts),
+     * on violation all changes are rolled back
+     */
+    private void addToIndexes(final List<RepositoryIndex> lockedIndexes, final List<Widget> createdWidgets)
+            throws ConstraintViolationException {
+
+        Map<RepositoryIndex, List<Widget>> added = new HashMap<>();
+
+        for (RepositoryIndex i : lockedIndexes) {
+            List<Widget> addedToIndex = new ArrayList<>();
+            added.put(i, addedToIndex);
+
+            for(Widget w : createdWidgets) {
+                if(!i.tryAdd(w)) {
+                    added.forEach((index, list) -> list.forEach(index::remove));
+                    throw new ConstraintViolationException("Not unique for " + i.getName());
+                }
+                addedToIndex.add(w);
+            }
+        }
+    }
+
+    /**
+     * Replace widgets in affected indexes
+     * all widgets are removed first - new z of one widget can be equal to old z of other
+     * @param changes Changes of widgets (widgetId, delta)
+     * @param from Widgets in indexes
+     * @param to Widgets for replacing
+     */
+    private void replaceInIndexes(final List<RepositoryIndex> lockedIndexes, final Map<Integer, WidgetDelta> changes,
+                                  final List<Widget> from, final List<Widget> to) {
+        for (RepositoryIndex i : lockedIndexes) {
+            for (Widget w : from) {
+                if (i.isAffected(changes.get(w.getId()))) {
+                    i.remove(w);
+                }
+            }
+            for (Widget w : to) {
+                if (i.isAffected(changes.get(w.getId()))) {
+                    i.add(w);
+                }
+            }
+        }
+    }
+
+    /**
+     * View of z-index for planning of z-shifting (under z-index lock, concurrent index - weakly consistent)
+     */
+    private ZSequence zSequence() {
+        return new ZSequence() {
+            @Override
+            public int size() {
+                return zIndex.size();
+            }
+
+            @Override
+            public Integer firstZ() {
+                return zIndex.firstKey();
+            }
+
+            @Override
+            public Integer lastZ() {
+                return zIndex.lastKey();
+            }
+
+            @Override
+            public Iterator<Widget> tail(int fromZ) {
+                Iterator<Integer> ids = zIndex.iterator(fromZ);
+
+                // widgets added to index by concurrent insert but not stored yet are skipped
+                return new Iterator<Widget>() {
+
+                    private Widget next = advance();
+
+                    private Widget advance() {
+                        while(ids.hasNext()) {
+                            Widget widget = widgets.get(ids.next());
+                            if(widget!=null) {
+                                return widget;
+                            }
+                        }
+                        return null;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next!=null;
+                    }
+
+                    @Override
+                    public Widget next() {
+                        if(next==null) {
+                            throw new NoSuchElementException();
+                        }
+                        Widget result = next;
+                        next = advance();
+                        return result;
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Changes of one write: applied to store, recorded to write-ahead log batch and collected for change feed
+     */
+    private final class Transaction {
+
+        private WriteAheadLog.Batch batch;
+
+        private final List<WidgetChange> changes = new ArrayList<>();
+
+        void put(final Widget widget) {
+            widgets.put(widget);
+            batch.put(widget);
+            changes.add(WidgetChange.put(widget));
+        }
+
+        Widget update(int widgetId, final UnaryOperator<Widget> change) {
+            Widget widget = widgets.update(widgetId, change);
+            batch.put(widget);
+            changes.add(WidgetChange.put(widget));
+            return widget;
+        }
+
+        void remove(int widgetId) {
+            widgets.remove(widgetId);
+            batch.remove(widgetId);
+            changes.add(WidgetChange.removed(widgetId));
+        }
+    }
+
+    /**
+     * Apply changes to store, append them to write-ahead log as one frame and publish them to change feed
+     * (under index locks - changes of one widget are published in order)
+     * @param changes Action that changes store through transaction
+     * @return Sequence number of log frame (0 - log is disabled)
+     */
+    private long commit(final Consumer<Transaction> changes) {
+        Transaction transaction = new Transaction();
+        long sequence = 0;
+
+        if(log==null) {
+            transaction.batch = WriteAheadLog.Batch.DISCARD;
+            changes.accept(transaction);
+        }
+        else {
+            sequence = log.append(batch -> {
+                transaction.batch = batch;
+                changes.accept(transaction);
+            });
+        }
+
+        changeFeed.publish(transaction.changes);
+
+        return sequence;
+    }
+
+    /**
+     * Wait for durability of log frame (outside of index locks - concurrent writers share one fsync)
+     */
+    private void awaitDurable(long sequence) {
+        if(log!=null && sequence>0) {
+            log.await(sequence);
+        }
     }
 
+    /**
+     * Complete successful write: increment version (changes are visible already) and wait for durability
+     * @param logSequence Sequence number of log frame
+     */
+    private void completeWrite(long logSequence) {
+        version.incrementAndGet();
+        awaitDurable(logSequence);
+    }
+
+    //endregion
+
     //region Read
 
     @Override
     public Widget get(int id) {
-        AtomicReference<Widget> holder = widgets.get(id);
-        return holder!=null ? holder.get() : null;
+        return widgets.get(id);
     }
 
     @Override
     public Collection<Widget> getAllOrderByZ() {
         zIndex.readLock();
         try {
-            return zIndex.get().stream().map(widgetId -> widgets.get(widgetId).get()).collect(Collectors.toList());
+            return getWidgets(zIndex.get());
         }
         finally {
             zIndex.readUnlock();
@@ -76,8 +404,8 @@ public class RepositoryImpl implements WidgetRepository {
 
     @Override
     public Page<Widget> getAllOrderByZ(int pageNum, int pageSize) {
-        zIndex.readLock();
-        try {
+        // short read - may be optimistic (depends on lock strategy)
+        return zIndex.read(() -> {
 
             int elementCount = zIndex.size();
 
@@ -86,25 +414,45 @@ public class RepositoryImpl implements WidgetRepository {
                     pageSize,
                     (elementCount / pageSize) + 1,
                     elementCount,
-                    zIndex.get().stream().skip(pageNum * pageSize).limit(pageSize)
-                            .map(widgetId -> widgets.get(widgetId).get()).collect(Collectors.toList())
+                    getWidgets(zIndex.get(pageNum * pageSize, pageSize))
             );
+        });
+    }
+
+    @Override
+    public Collection<Widget> getAllOrderByZAfter(Integer afterZ, int limit) {
+
+        if(afterZ!=null && afterZ==Integer.MAX_VALUE) {
+            return Collections.emptyList();
         }
-        finally {
-            zIndex.readUnlock();
-        }
+
+        // short read - may be optimistic (depends on lock strategy)
+        return zIndex.read(() -> {
+
+            List<Integer> ids = new ArrayList<>(Math.min(limit, zIndex.size()));
+
+            Iterator<Integer> iterator = zIndex.iterator(afterZ!=null ? afterZ+1 : Integer.MIN_VALUE);
+            while(ids.size()<limit && iterator.hasNext()) {
+                ids.add(iterator.next());
+            }
+
+            return getWidgets(ids);
+        });
     }
 
     @Override
     public Integer getMaxZ() {
-        zIndex.readLock();
-        try {
-            // todo: make field?
-            return zIndex.lastKey();
-        }
-        finally {
-            zIndex.readUnlock();
-        }
+        return zIndex.read(zIndex::lastKey);
+    }
+
+    @Override
+    public long getVersion() {
+        return version.get();
+    }
+
+    @Override
+    public WidgetChangeFeed getChangeFeed() {
+        return changeFeed;
     }
 
     @Override
@@ -112,9 +460,13 @@ public class RepositoryImpl implements WidgetRepository {
 
         xyIndex.readLock();
         try {
-            return xyIndex.getFilteredByRectangle(x1, y1, x2, y2).stream()
-                    .map(widgetId -> widgets.get(widgetId).get())
-                    .collect(Collectors.toList());
+            List<Widget> result = getWidgets(xyIndex.getFilteredByRectangle(x1, y1, x2, y2));
+
+            // tiled index doesn't block readers by repository lock: widget can be moved (store is changed before tiles)
+            // after its tile is read - stored position is checked again
+            result.removeIf(w -> !SpatialIndex.isInside(w, x1, y1, x2, y2));
+
+            return result;
         }
         finally {
             xyIndex.readUnlock();
@@ -139,15 +491,22 @@ public class RepositoryImpl implements WidgetRepository {
 
         ArrayList<RepositoryIndex> lockedIndexes = new ArrayList<>();
 
+        ZRangeLock.Range range = null;
+
         Widget createdWidget = null;
 
+        long logSequence = 0;
+
         try {
-            // write-lock affected indexes in sequence of indexes array
+            // insert-lock affected indexes in sequence of indexes array
             for (RepositoryIndex i : indexes) {
-
-                i.writeLock();
+                i.insertLock();
                 lockedIndexes.add(i);
+            }
 
+            range = zRanges.lock(widgetDelta.getZ(), widgetDelta.getZ());
+
+            for (RepositoryIndex i : lockedIndexes) {
                 if(i.isUnique() && i.checkConstrainsViolation(widgetDelta)) {
                     throw new ConstraintViolationException("Not unique for " + i.getName());
                 }
@@ -155,23 +514,28 @@ public class RepositoryImpl implements WidgetRepository {
 
             // create widget
             int newId = idSequence.getAndAdd(1);
-            createdWidget = widgetDelta.createNewWidget(newId);
-
-            widgets.put(newId, new AtomicReference<>(createdWidget));
+            Widget widget = widgetDelta.createNewWidget(newId);
 
             // add to affected indexes
-            for (RepositoryIndex i : lockedIndexes) {
-                i.add(createdWidget);
-            }
+            addToIndexes(lockedIndexes, Collections.singletonList(widget));
 
+            logSequence = commit(tx -> tx.put(widget));
+
+            createdWidget = widget;
         }
         finally {
+            if(range!=null) {
+                zRanges.unlock(range);
+            }
+
             // unlock locked indexes
             for(RepositoryIndex i : lockedIndexes) {
-                i.writeUnlock();
+                i.insertUnlock();
             }
         }
 
+        completeWrite(logSequence);
+
         return createdWidget;
 
     }
@@ -185,17 +549,27 @@ public class RepositoryImpl implements WidgetRepository {
 
         ArrayList<RepositoryIndex> lockedIndexes = new ArrayList<>();
 
+        ZRangeLock.Range range = null;
+
         List<Widget> createdWidgets = new ArrayList<>();
 
+        long logSequence = 0;
+
         try {
-            // write-lock affected indexes in sequence of indexes array
+            // insert-lock affected indexes in sequence of indexes array
             for (RepositoryIndex i : indexes) {
-
-                i.writeLock();
+                i.insertLock();
                 lockedIndexes.add(i);
+            }
 
+            if(!deltas.isEmpty()) {
+                IntSummaryStatistics zs = deltas.stream().mapToInt(WidgetDelta::getZ).summaryStatistics();
+                range = zRanges.lock(zs.getMin(), zs.getMax());
+            }
+
+            for (RepositoryIndex i : lockedIndexes) {
                 if(i.isUnique()) {
-                    if(! deltas.stream().map(i::checkConstrainsViolation).reduce((l, r) -> l && r).orElse(true) ) {
+                    if(deltas.stream().anyMatch(i::checkConstrainsViolation)) {
                         throw new ConstraintViolationException("Not unique for " + i.getName());
                     }
                 }
@@ -203,26 +577,31 @@ public class RepositoryImpl implements WidgetRepository {
 
             // create widgets
             for(WidgetDelta wd : deltas) {
-                Widget widget = wd.createNewWidget(idSequence.getAndAdd(1));
-                createdWidgets.add(widget);
-                widgets.put(widget.getId(), new AtomicReference<>(widget));
+                createdWidgets.add(wd.createNewWidget(idSequence.getAndAdd(1)));
             }
 
-
-
             // add to affected indexes
-            for (RepositoryIndex i : lockedIndexes) {
-                createdWidgets.forEach(i::add);
-            }
+            addToIndexes(lockedIndexes, createdWidgets);
 
+            logSequence = commit(tx -> {
+                for(Widget w : createdWidgets) {
+                    tx.put(w);
+                }
+            });
         }
         finally {
+            if(range!=null) {
+                zRanges.unlock(range);
+            }
+
             // unlock locked indexes
             for(RepositoryIndex i : lockedIndexes) {
-                i.writeUnlock();
+                i.insertUnlock();
             }
         }
 
+        completeWrite(logSequence);
+
         return createdWidgets;
     }
 
@@ -237,6 +616,8 @@ public class RepositoryImpl implements WidgetRepository {
 
         Widget deletedWidget = null;
 
+        long logSequence = 0;
+
         try {
             // write-lock affected indexes in sequence of indexes array
             for (RepositoryIndex i : indexes) {
@@ -244,14 +625,17 @@ public class RepositoryImpl implements WidgetRepository {
                 lockedIndexes.add(i);
             }
 
+            deletedWidget = widgets.get(widgetId);
+            if(deletedWidget==null) {
+                throw new NoSuchElementException("No widgets with id "+widgetId);
+            }
 
-            deletedWidget = widgets.remove(widgetId).get();
-
-            // add to affected indexes
+            // remove from indexes first - readers of index without lock must find widget in store
             for (RepositoryIndex i : lockedIndexes) {
                 i.remove(deletedWidget);
             }
 
+            logSequence = commit(tx -> tx.remove(widgetId));
         }
         finally {
             // unlock locked indexes
@@ -260,6 +644,8 @@ public class RepositoryImpl implements WidgetRepository {
             }
         }
 
+        completeWrite(logSequence);
+
         return deletedWidget;
     }
 
@@ -270,6 +656,8 @@ public class RepositoryImpl implements WidgetRepository {
 
         List<Widget> deletedWidgets = new ArrayList<>();
 
+        long logSequence = 0;
+
         try {
             // write-lock affected indexes in sequence of indexes array
             for (RepositoryIndex i : indexes) {
@@ -278,14 +666,23 @@ public class RepositoryImpl implements WidgetRepository {
             }
 
             for (Integer id : ids) {
-                deletedWidgets.add(widgets.remove(id).get());
+                Widget deletedWidget = widgets.get(id);
+                if(deletedWidget==null) {
+                    throw new NoSuchElementException("No widgets with id "+id);
+                }
+                deletedWidgets.add(deletedWidget);
             }
 
-            // remove from affected indexes
+            // remove from indexes first - readers of index without lock must find widget in store
             for (RepositoryIndex i : lockedIndexes) {
                 deletedWidgets.forEach(i::remove);
             }
 
+            logSequence = commit(tx -> {
+                for (Widget w : deletedWidgets) {
+                    tx.remove(w.getId());
+                }
+            });
         }
         finally {
             // unlock locked indexes
@@ -294,6 +691,8 @@ public class RepositoryImpl implements WidgetRepository {
             }
         }
 
+        completeWrite(logSequence);
+
         return deletedWidgets;
     }
 
@@ -315,7 +714,9 @@ public class RepositoryImpl implements WidgetRepository {
 
         ArrayList<RepositoryIndex> lockedIndexes = new ArrayList<>();
 
-        Widget changedWidget = null;
+        Widget[] changedWidget = new Widget[1];
+
+        long logSequence = 0;
 
         try {
             // write-lock affected indexes in sequence of indexes array
@@ -330,18 +731,17 @@ public class RepositoryImpl implements WidgetRepository {
                 }
             }
 
-            // remove origin from indexes
-            Widget origin = widgets.get(widgetId).get();
-            for(RepositoryIndex i : lockedIndexes) {
-                i.remove(origin);
+            Widget origin = widgets.get(widgetId);
+            if(origin==null) {
+                throw new NoSuchElementException("No widgets with id "+widgetId);
             }
 
             // update widget
-            changedWidget = widgets.get(widgetId).updateAndGet(widgetDelta::applyTo);
+            logSequence = commit(tx -> changedWidget[0] = tx.update(widgetId, widgetDelta::applyTo));
 
-            // add to affected indexes
+            // replace origin in affected indexes
             for (RepositoryIndex i : lockedIndexes) {
-                i.add(changedWidget);
+                i.update(origin, changedWidget[0]);
             }
 
         }
@@ -352,7 +752,9 @@ public class RepositoryImpl implements WidgetRepository {
             }
         }
 
-        return changedWidget;
+        completeWrite(logSequence);
+
+        return changedWidget[0];
     }
 
     @Override
@@ -362,6 +764,8 @@ public class RepositoryImpl implements WidgetRepository {
 
         List<Widget> changedWidgets = new ArrayList<>();
 
+        long logSequence = 0;
+
         try {
             // write-lock affected indexes in sequence of indexes array
             for (RepositoryIndex i : indexes) {
@@ -372,7 +776,10 @@ public class RepositoryImpl implements WidgetRepository {
             }
 
 
-            List<Widget> origin = changes.keySet().stream().map(id -> widgets.get(id).get()).collect(Collectors.toList());
+            List<Widget> origin = widgets.get(changes.keySet());
+            if(origin.contains(null)) {
+                throw new NoSuchElementException("No widgets with some of id "+changes.keySet());
+            }
 
             // remove origin from indexes
             for (RepositoryIndex lockedIndex : lockedIndexes) {
@@ -384,9 +791,12 @@ public class RepositoryImpl implements WidgetRepository {
             }
 
             // update widget
-            for (Widget w : origin) {
-                changedWidgets.add(widgets.get(w.getId()).updateAndGet(changes.get(w.getId())::applyTo));
-            };
+            logSequence = commit(tx -> {
+                for (Widget w : origin) {
+                    Widget changedWidget = tx.update(w.getId(), changes.get(w.getId())::applyTo);
+                    changedWidgets.add(changedWidget);
+                }
+            });
 
             // add to affected indexes
             for (RepositoryIndex lockedIndex : lockedIndexes) {
@@ -404,8 +814,361 @@ public class RepositoryImpl implements WidgetRepository {
             }
         }
 
+        completeWrite(logSequence);
+
+        return changedWidgets;
+    }
+
+    @Override
+    public Widget insertAt(final WidgetDelta widgetDelta, final ZShiftStrategy strategy) throws ConstraintViolationException {
+
+        // check validation
+        if(widgetDelta==null) {
+            throw new IllegalArgumentException("widgetDelta must be not null");
+        }
+
+        if(widgetDelta.getZ()==null) {
+            throw new NullPointerException("Widget must have none null z-coordinate");
+        }
+
+        ArrayList<RepositoryIndex> lockedIndexes = new ArrayList<>();
+
+        ZRangeLock.Range range = null;
+
+        Widget createdWidget = null;
+
+        long logSequence = 0;
+
+        try {
+            // insert-lock indexes in sequence of indexes array (concurrent inserts - if index allows),
+            // removing and updating are excluded, z-range touched by shifting is locked separately
+            for (RepositoryIndex i : indexes) {
+                i.insertLock();
+                lockedIndexes.add(i);
+            }
+
+            WidgetDelta planned;
+            Map<Integer, WidgetDelta> shifted;
+            List<Widget> origin;
+
+            // plan shifting, lock touched z-range and plan again under lock (range could be changed meanwhile)
+            while(true) {
+                planned = new WidgetDelta(widgetDelta.getX(), widgetDelta.getY(), widgetDelta.getZ(),
+                        widgetDelta.getWidth(), widgetDelta.getHeight());
+                shifted = strategy.shift(planned, zSequence());
+                origin = widgets.get(shifted.keySet());
+
+                long from = planned.getZ();
+                long to = planned.getZ();
+                for (Widget w : origin) {
+                    int newZ = shifted.get(w.getId()).getZ();
+                    from = Math.min(from, Math.min(w.getZ(), newZ));
+                    to = Math.max(to, Math.max(w.getZ(), newZ));
+                }
+
+                if(range!=null) {
+                    if(range.contains(from, to)) {
+                        break;
+                    }
+                    from = Math.min(from, range.getFrom());
+                    to = Math.max(to, range.getTo());
+                    zRanges.unlock(range);
+                }
+
+                range = zRanges.lock(from, to);
+            }
+
+            Map<Integer, WidgetDelta> changes = shifted;
+            List<Widget> shiftedOrigin = origin;
+            List<Widget> shiftedWidgets = origin.stream()
+                    .map(w -> changes.get(w.getId()).applyTo(w))
+                    .collect(Collectors.toList());
+
+            replaceInIndexes(lockedIndexes, changes, shiftedOrigin, shiftedWidgets);
+
+            // create widget
+            Widget widget = planned.createNewWidget(idSequence.getAndAdd(1));
+
+            try {
+                addToIndexes(lockedIndexes, Collections.singletonList(widget));
+            }
+            catch (ConstraintViolationException e) {
+                replaceInIndexes(lockedIndexes, changes, shiftedWidgets, shiftedOrigin);
+                throw e;
+            }
+
+            // shifting and adding - one log frame
+            logSequence = commit(tx -> {
+                for (Widget w : shiftedWidgets) {
+                    tx.put(w);
+                }
+                tx.put(widget);
+            });
+
+            createdWidget = widget;
+        }
+        finally {
+            if(range!=null) {
+                zRanges.unlock(range);
+            }
+
+            // unlock locked indexes
+            for(RepositoryIndex i : lockedIndexes) {
+                i.insertUnlock();
+            }
+        }
+
+        completeWrite(logSequence);
+
+        return createdWidget;
+    }
+
+    @Override
+    public Widget moveTo(int widgetId, final WidgetDelta widgetDelta, final ZShiftStrategy strategy)
+            throws IllegalArgumentException, NoSuchElementException, ConstraintViolationException {
+
+        if(widgetDelta==null || widgetDelta.getZ()==null) {
+            throw new IllegalArgumentException("widgetDelta with z-coordinate must be not null");
+        }
+
+        ArrayList<RepositoryIndex> lockedIndexes = new ArrayList<>();
+
+        Widget changedWidget = null;
+
+        long logSequence = 0;
+
+        try {
+            // write-lock all indexes in sequence of indexes array (shifting changes z-index)
+            for (RepositoryIndex i : indexes) {
+                i.writeLock();
+                lockedIndexes.add(i);
+            }
+
+            Widget origin = widgets.get(widgetId);
+            if(origin==null) {
+                throw new NoSuchElementException("No widgets with id "+widgetId);
+            }
+
+            // moved widget is out of z-sequence while shifting is planned
+            for (RepositoryIndex i : lockedIndexes) {
+                i.remove(origin);
+            }
+
+            Map<Integer, WidgetDelta> shifted = Collections.emptyMap();
+            List<Widget> shiftedOrigin = Collections.emptyList();
+            List<Widget> shiftedWidgets = Collections.emptyList();
+
+            Widget widget;
+
+            try {
+                // shift only on z-coordinate conflict
+                if(zIndex.checkConstrainsViolation(widgetDelta)) {
+                    shifted = strategy.shift(widgetDelta, zSequence());
+
+                    Map<Integer, WidgetDelta> changes = shifted;
+                    shiftedOrigin = widgets.get(shifted.keySet());
+                    shiftedWidgets = shiftedOrigin.stream()
+                            .map(w -> changes.get(w.getId()).applyTo(w))
+                            .collect(Collectors.toList());
+
+                    replaceInIndexes(lockedIndexes, shifted, shiftedOrigin, shiftedWidgets);
+                }
+
+                widget = widgetDelta.applyTo(origin);
+                addToIndexes(lockedIndexes, Collections.singletonList(widget));
+            }
+            catch (ConstraintViolationException | RuntimeException e) {
+                // rollback
+                replaceInIndexes(lockedIndexes, shifted, shiftedWidgets, shiftedOrigin);
+                for (RepositoryIndex i : lockedIndexes) {
+                    i.add(origin);
+                }
+                throw e;
+            }
+
+            // shifting and updating - one log frame
+            List<Widget> changedWidgets = new ArrayList<>(shiftedWidgets);
+            changedWidgets.add(widget);
+
+            logSequence = commit(tx -> {
+                for (Widget w : changedWidgets) {
+                    tx.put(w);
+                }
+            });
+
+            changedWidget = widget;
+        }
+        finally {
+            // unlock locked indexes
+            for(RepositoryIndex i : lockedIndexes) {
+                i.writeUnlock();
+            }
+        }
+
+        completeWrite(logSequence);
+
+        return changedWidget;
+    }
+
+    @Override
+    public Collection<Widget> insertAllAt(final Collection<WidgetDelta> deltas, final ZShiftStrategy strategy)
+            throws ConstraintViolationException {
+
+        if(deltas.stream().anyMatch(d -> d==null || d.getZ()==null)) {
+            throw new IllegalArgumentException("widgetDelta with z-coordinate must be not null");
+        }
+
+        ArrayList<RepositoryIndex> lockedIndexes = new ArrayList<>();
+
+        List<Widget> createdWidgets = new ArrayList<>();
+
+        long logSequence = 0;
+
+        try {
+            // write-lock all indexes in sequence of indexes array once for whole batch
+            for (RepositoryIndex i : indexes) {
+                i.writeLock();
+                lockedIndexes.add(i);
+            }
+
+            // plan shifting of whole batch in one pass (on copies - z is changed by planning)
+            List<WidgetDelta> planned = deltas.stream()
+                    .map(d -> new WidgetDelta(d.getX(), d.getY(), d.getZ(), d.getWidth(), d.getHeight()))
+                    .collect(Collectors.toList());
+            Map<Integer, WidgetDelta> shifted = strategy.shiftAll(planned, zSequence());
+
+            List<Widget> shiftedOrigin = widgets.get(shifted.keySet());
+            List<Widget> shiftedWidgets = shiftedOrigin.stream()
+                    .map(w -> shifted.get(w.getId()).applyTo(w))
+                    .collect(Collectors.toList());
+
+            replaceInIndexes(lockedIndexes, shifted, shiftedOrigin, shiftedWidgets);
+
+            for(WidgetDelta wd : planned) {
+                createdWidgets.add(wd.createNewWidget(idSequence.getAndAdd(1)));
+            }
+
+            try {
+                addToIndexes(lockedIndexes, createdWidgets);
+            }
+            catch (ConstraintViolationException e) {
+                replaceInIndexes(lockedIndexes, shifted, shiftedWidgets, shiftedOrigin);
+                throw e;
+            }
+
+            // shifting and adding - one log frame
+            logSequence = commit(tx -> {
+                for (Widget w : shiftedWidgets) {
+                    tx.put(w);
+                }
+                for (Widget w : createdWidgets) {
+                    tx.put(w);
+                }
+            });
+        }
+        finally {
+            // unlock locked indexes
+            for(RepositoryIndex i : lockedIndexes) {
+                i.writeUnlock();
+            }
+        }
+
+        completeWrite(logSequence);
+
+        return createdWidgets;
+    }
+
+    @Override
+    public Collection<Widget> moveAllTo(final Map<Integer, WidgetDelta> changes, final ZShiftStrategy strategy)
+            throws IllegalArgumentException, NoSuchElementException, ConstraintViolationException {
+
+        if(changes.values().stream().anyMatch(Objects::isNull)) {
+            throw new IllegalArgumentException("widgetDelta must be not null");
+        }
+
+        ArrayList<RepositoryIndex> lockedIndexes = new ArrayList<>();
+
+        List<Widget> changedWidgets = new ArrayList<>();
+
+        long logSequence = 0;
+
+        try {
+            // write-lock all indexes in sequence of indexes array once for whole batch
+            for (RepositoryIndex i : indexes) {
+                i.writeLock();
+                lockedIndexes.add(i);
+            }
+
+            if(widgets.get(changes.keySet()).contains(null)) {
+                throw new NoSuchElementException("No widgets with some of id "+changes.keySet());
+            }
+
+            // plan moving and shifting of whole batch in one pass
+            Map<Integer, WidgetDelta> all = strategy.moveAll(changes, zSequence());
+
+            List<Widget> origin = widgets.get(all.keySet());
+            List<Widget> allChanged = origin.stream()
+                    .map(w -> all.get(w.getId()).applyTo(w))
+                    .collect(Collectors.toList());
+
+            replaceInIndexes(lockedIndexes, all, origin, allChanged);
+
+            // moving and shifting - one log frame
+            logSequence = commit(tx -> {
+                for (Widget w : allChanged) {
+                    tx.put(w);
+                    if(changes.containsKey(w.getId())) {
+                        changedWidgets.add(w);
+                    }
+                }
+            });
+        }
+        finally {
+            // unlock locked indexes
+            for(RepositoryIndex i : lockedIndexes) {
+                i.writeUnlock();
+            }
+        }
+
+        completeWrite(logSequence);
+
         return changedWidgets;
     }
 
     //endregion
+
+    /**
+     * Write snapshot of repository and delete write-ahead log segments covered by it
+     * Writers are blocked only while widgets are collected from store (at rotation of log), not during file writing
+     * @throws IOException Snapshot can't be written
+     * @throws IllegalStateException Repository has no write-ahead log or snapshot file
+     */
+    public synchronized void writeSnapshot() throws IOException {
+        if(log==null || snapshotFile==null) {
+            throw new IllegalStateException("Snapshot requires write-ahead log and snapshot file");
+        }
+
+        List<Widget> captured = new ArrayList<>(widgets.size());
+        int[] nextId = new int[1];
+
+        // store changes are made under log lock only - consistent view at rotation point
+        long generation = log.rotate(() -> {
+            widgets.forEach(captured::add);
+            nextId[0] = idSequence.get();
+        });
+
+        new WidgetSnapshot(generation, nextId[0], captured).write(snapshotFile);
+
+        log.deleteSegments(generation);
+    }
+
+    /**
+     * Close write-ahead log (if any)
+     */
+    @Override
+    public void close() throws IOException {
+        if(log!=null) {
+            log.close();
+        }
+    }
 }
@@ -4,18 +4,27 @@ import net.rychkov.lab.widgets.dal.model.Widget;
 import net.rychkov.lab.widgets.dal.model.WidgetDelta;
 
 import java.util.Collection;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
 public abstract class RepositoryIndex {
 
-    private final ReentrantReadWriteLock lock;
+    private final IndexLock lock;
 
     private final boolean unique;
 
     private final String name;
 
     public RepositoryIndex(final String name, boolean unique) {
-        this.lock = new ReentrantReadWriteLock();
+        this(name, unique, new ReadWriteIndexLock());
+    }
+
+    /**
+     * @param name Index name
+     * @param unique Unique index
+     * @param lock Lock strategy
+     */
+    public RepositoryIndex(final String name, boolean unique, final IndexLock lock) {
+        this.lock = lock;
         this.unique = unique;
         this.name = name;
     }
@@ -29,27 +38,72 @@ public abstract class RepositoryIndex {
     }
 
     public void readLock() {
-        lock.readLock().lock();
+        lock.readLock();
     }
 
     public void readUnlock() {
-        lock.readLock().unlock();
+        lock.readUnlock();
     }
 
     public void writeLock() {
-        lock.writeLock().lock();
+        lock.writeLock();
     }
 
     public void writeUnlock() {
-        lock.writeLock().unlock();
+        lock.writeUnlock();
+    }
+
+    public void insertLock() {
+        lock.insertLock();
+    }
+
+    public void insertUnlock() {
+        lock.insertUnlock();
+    }
+
+    /**
+     * Execute short read of index
+     * @param action Read action (without side effects)
+     * @return Result of action
+     */
+    public <T> T read(Supplier<T> action) {
+        return lock.read(action);
     }
 
     public boolean checkConstrainsViolation(final WidgetDelta widget) {return false;}
 
     public abstract void add(final Widget data);
 
+    /**
+     * Bulk add of widgets (e.g. on recovery)
+     * @param data Widgets
+     */
+    public void addAll(final Collection<Widget> data) {
+        data.forEach(this::add);
+    }
+
+    /**
+     * Add widget if it doesn't violate unique constraint
+     * @param data Widget
+     * @return False - if widget is not added (unique constraint violation)
+     */
+    public boolean tryAdd(final Widget data) {
+        add(data);
+        return true;
+    }
+
     public abstract void remove(final Widget data);
 
+    /**
+     * Replace widget in index
+     * @param origin Widget before change
+     * @param changed Widget after change
+     */
+    public void update(final Widget origin, final Widget changed) {
+        remove(origin);
+        add(changed);
+    }
+
     public abstract boolean isAffected(final WidgetDelta changes);
 
     public abstract Collection<Integer> get();
@@ -0,0 +1,165 @@
+package net.rychkov.lab.widgets.dal.repository.CustomInMemory;
+
+import net.rychkov.lab.widgets.dal.model.Widget;
+import net.rychkov.lab.widgets.dal.model.WidgetDelta;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Unique index by widget's field based on concurrent skip list
+ * Inserts run concurrently (uniqueness is enforced by putIfAbsent), only remove and update are exclusive,
+ * readers share lock with inserters - they don't block each other, but never see index and store
+ * in the middle of move or update (ordered iteration is weakly consistent only to concurrent inserts)
+ * Slice by position costs O(offset + slice size)
+ * @param <TField> Field type (must be Comparable)
+ */
+public class SkipListFieldIndex<TField> extends OrderedIndex<TField> {
+
+    /**
+     * Inserters and readers share lock with each other, exclusive writers wait for them
+     */
+    private static final class SharedInsertLock implements IndexLock {
+
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        @Override
+        public void readLock() {
+            lock.readLock().lock();
+        }
+
+        @Override
+        public void readUnlock() {
+            lock.readLock().unlock();
+        }
+
+        @Override
+        public void writeLock() {
+            lock.writeLock().lock();
+        }
+
+        @Override
+        public void writeUnlock() {
+            lock.writeLock().unlock();
+        }
+
+        @Override
+        public void insertLock() {
+            lock.readLock().lock();
+        }
+
+        @Override
+        public void insertUnlock() {
+            lock.readLock().unlock();
+        }
+
+        @Override
+        public <T> T read(Supplier<T> action) {
+            lock.readLock().lock();
+            try {
+                return action.get();
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    private final ConcurrentSkipListMap<TField, Integer> map;
+
+    /**
+     * Count of entries (size of skip list is O(n))
+     */
+    private final AtomicInteger size;
+
+    private final Function<Widget, TField> fieldSelector;
+
+    private final Function<WidgetDelta, TField> fieldSelectorForDelta;
+
+    public SkipListFieldIndex(final String name, Function<Widget, TField> fieldSelector, Function<WidgetDelta, TField> fieldSelectorForDelta) {
+        super(name, true, new SharedInsertLock());
+        map = new ConcurrentSkipListMap<>();
+        size = new AtomicInteger();
+        this.fieldSelector = fieldSelector;
+        this.fieldSelectorForDelta = fieldSelectorForDelta;
+    }
+
+    @Override
+    public void add(final Widget widget) {
+        tryAdd(widget);
+    }
+
+    @Override
+    public boolean tryAdd(final Widget widget) {
+        if(map.putIfAbsent(fieldSelector.apply(widget), widget.getId())!=null) {
+            return false;
+        }
+
+        size.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public void remove(final Widget widget) {
+        if(map.remove(fieldSelector.apply(widget), widget.getId())) {
+            size.decrementAndGet();
+        }
+    }
+
+    @Override
+    public boolean isAffected(final WidgetDelta changes) {
+        return changes!=null && fieldSelectorForDelta.apply(changes)!=null;
+    }
+
+    @Override
+    public Collection<Integer> get() {
+        return Collections.unmodifiableCollection(map.values());
+    }
+
+    @Override
+    public boolean checkConstrainsViolation(final WidgetDelta widget) {
+        return map.containsKey(fieldSelectorForDelta.apply(widget));
+    }
+
+    @Override
+    public Collection<Integer> get(int offset, int limit) {
+        List<Integer> result = new ArrayList<>(Math.max(0, Math.min(limit, size() - offset)));
+
+        Iterator<Integer> iterator = map.values().iterator();
+        for(int i=0; i<offset && iterator.hasNext(); i++) {
+            iterator.next();
+        }
+
+        while(result.size()<limit && iterator.hasNext()) {
+            result.add(iterator.next());
+        }
+
+        return result;
+    }
+
+    @Override
+    public Iterator<Integer> iterator(TField fromKey) {
+        return map.tailMap(fromKey).values().iterator();
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public TField firstKey() {
+        Map.Entry<TField, Integer> first = map.firstEntry();
+        return first!=null ? first.getKey() : null;
+    }
+
+    @Override
+    public TField lastKey() {
+        Map.Entry<TField, Integer> last = map.lastEntry();
+        return last!=null ? last.getKey() : null;
+    }
+}
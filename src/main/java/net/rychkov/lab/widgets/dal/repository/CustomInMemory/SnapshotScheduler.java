@@ -0,0 +1,63 @@
+package net.rychkov.lab.widgets.dal.repository.CustomInMemory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodic writer of repository snapshots (in background thread)
+ */
+public class SnapshotScheduler implements Closeable {
+
+    private final RepositoryImpl repository;
+
+    private final ScheduledExecutorService executor;
+
+    private volatile Exception lastFailure;
+
+    /**
+     * @param repository Durable repository with snapshot file
+     * @param intervalSeconds Interval between snapshots
+     */
+    public SnapshotScheduler(final RepositoryImpl repository, long intervalSeconds) {
+
+        if(intervalSeconds<=0) {
+            throw new IllegalArgumentException("intervalSeconds must be positive");
+        }
+
+        this.repository = repository;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "widgets-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        executor.scheduleWithFixedDelay(this::writeSnapshot, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    private void writeSnapshot() {
+        try {
+            repository.writeSnapshot();
+            lastFailure = null;
+        }
+        catch (IOException | RuntimeException e) {
+            // next attempt by schedule, log is still complete
+            lastFailure = e;
+        }
+    }
+
+    /**
+     * Get failure of last snapshot
+     * @return Exception or null - if last snapshot is written
+     */
+    public Exception getLastFailure() {
+        return lastFailure;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,75 @@
+package net.rychkov.lab.widgets.dal.repository.CustomInMemory;
+
+import net.rychkov.lab.widgets.dal.model.Widget;
+import net.rychkov.lab.widgets.dal.model.WidgetDelta;
+
+import java.util.Collection;
+
+/**
+ * Index for filter 'by rectangle'
+ * widget is indexed by its bounding box (left top and right bottom corners)
+ */
+public abstract class SpatialIndex extends RepositoryIndex {
+
+    public SpatialIndex(final String name) {
+        super(name, false);
+    }
+
+    public SpatialIndex(final String name, final IndexLock lock) {
+        super(name, false, lock);
+    }
+
+    //region Bounding box helpers
+
+    protected static int left(final Widget widget) {
+        return widget.getX()-widget.getWidth()/2;
+    }
+
+    protected static int top(final Widget widget) {
+        return widget.getY()-widget.getHeight()/2;
+    }
+
+    protected static int right(final Widget widget) {
+        return widget.getX()+widget.getWidth()/2;
+    }
+
+    protected static int bottom(final Widget widget) {
+        return widget.getY()+widget.getHeight()/2;
+    }
+
+    /**
+     * Check widget falls entirely into the region
+     * @param widget Widget
+     * @param x1 Left border (included)
+     * @param y1 Top border (included)
+     * @param x2 Right border (included)
+     * @param y2 Bottom border (included)
+     * @return true - widget is inside of region
+     */
+    public static boolean isInside(final Widget widget, int x1, int y1, int x2, int y2) {
+        return left(widget)>=x1 && top(widget)>=y1 && right(widget)<=x2 && bottom(widget)<=y2;
+    }
+
+    //endregion
+
+    @Override
+    public boolean isAffected(final WidgetDelta changes) {
+        return changes!=null &&
+                (
+                    changes.getX()!=null ||
+                    changes.getY()!=null ||
+                    changes.getWidth()!=null ||
+                    changes.getHeight()!=null
+                );
+    }
+
+    /**
+     * Get ID of widgets that fall entirely into the region
+     * @param x1 Left border (included)
+     * @param y1 Top border (included)
+     * @param x2 Right border (included)
+     * @param y2 Bottom border (included)
+     * @return Collection of widget's ID
+     */
+    public abstract Collection<Integer> getFilteredByRectangle(int x1, int y1, int x2, int y2);
+}
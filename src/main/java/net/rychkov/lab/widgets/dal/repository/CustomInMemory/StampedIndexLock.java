@@ -0,0 +1,71 @@
+package net.rychkov.lab.widgets.dal.repository.CustomInMemory;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+
+/**
+ * Index lock based on StampedLock
+ * short reads are optimistic: readers don't write to shared lock state at all,
+ * result is validated by stamp and read is repeated under read lock only if writer interfered
+ * Optimistic action may see partially written index: it must not loop without bound on inconsistent links
+ * (descents of OrderStatisticTree are bounded by node heights) and any failure of it is discarded if stamp is invalid
+ * Lock is not reentrant
+ */
+public class StampedIndexLock implements IndexLock {
+
+    private final StampedLock lock = new StampedLock();
+
+    private final Lock readLock = lock.asReadLock();
+
+    private final Lock writeLock = lock.asWriteLock();
+
+    @Override
+    public void readLock() {
+        readLock.lock();
+    }
+
+    @Override
+    public void readUnlock() {
+        readLock.unlock();
+    }
+
+    @Override
+    public void writeLock() {
+        writeLock.lock();
+    }
+
+    @Override
+    public void writeUnlock() {
+        writeLock.unlock();
+    }
+
+    @Override
+    public <T> T read(Supplier<T> action) {
+        long stamp = lock.tryOptimisticRead();
+
+        if(stamp!=0) {
+            try {
+                T result = action.get();
+                if(lock.validate(stamp)) {
+                    return result;
+                }
+            }
+            catch (Throwable e) {
+                // inconsistent state was seen during concurrent write - repeat under read lock
+                // (torn links may end in any failure, errors included; failure of consistent read is rethrown)
+                if(lock.validate(stamp)) {
+                    throw e;
+                }
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            return action.get();
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package net.rychkov.lab.widgets.dal.repository.CustomInMemory;
+
+import net.rychkov.lab.widgets.dal.model.Widget;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Spatial index striped by tiles
+ * plane is divided into square tiles, each tile has its own sub-index and lock,
+ * widget belongs to the tile of its left top corner
+ * Writers of different tiles don't block each other, query 'by rectangle' read-locks only overlapped tiles
+ * Own lock of index does nothing - all synchronization is made by tiles
+ */
+public class TiledSpatialIndex extends SpatialIndex {
+
+    public static final int DEFAULT_TILE_SIZE = 1000;
+
+    /**
+     * Lock of index itself - pass through (tiles are locked inside of index operations)
+     */
+    private static final class PassThroughLock implements IndexLock {
+
+        @Override
+        public void readLock() {
+        }
+
+        @Override
+        public void readUnlock() {
+        }
+
+        @Override
+        public void writeLock() {
+        }
+
+        @Override
+        public void writeUnlock() {
+        }
+
+        @Override
+        public <T> T read(Supplier<T> action) {
+            return action.get();
+        }
+    }
+
+    private final int tileSize;
+
+    private final Supplier<SpatialIndex> tileFactory;
+
+    /**
+     * Map tile key - tile index (tiles are created on demand and never removed)
+     */
+    private final ConcurrentHashMap<Long, SpatialIndex> tiles;
+
+    public TiledSpatialIndex() {
+        this(DEFAULT_TILE_SIZE, ComplexIndex::new);
+    }
+
+    /**
+     * @param tileSize Tile side length (positive)
+     * @param tileFactory Factory of tile sub-index (each tile needs own index with own lock)
+     */
+    public TiledSpatialIndex(int tileSize, final Supplier<SpatialIndex> tileFactory) {
+        super("Tiled spatial index", new PassThroughLock());
+
+        if(tileSize<=0) {
+            throw new IllegalArgumentException("tileSize must be positive");
+        }
+
+        this.tileSize = tileSize;
+        this.tileFactory = tileFactory;
+        this.tiles = new ConcurrentHashMap<>();
+    }
+
+    //region Tile helpers
+
+    private static long tileKey(int tileX, int tileY) {
+        return ((long)tileX << 32) | (tileY & 0xFFFFFFFFL);
+    }
+
+    private static int tileX(long key) {
+        return (int)(key >> 32);
+    }
+
+    private static int tileY(long key) {
+        return (int)key;
+    }
+
+    private int tile(int coordinate) {
+        return Math.floorDiv(coordinate, tileSize);
+    }
+
+    private long tileKey(final Widget widget) {
+        return tileKey(tile(left(widget)), tile(top(widget)));
+    }
+
+    private SpatialIndex getOrCreateTile(long key) {
+        return tiles.computeIfAbsent(key, k -> tileFactory.get());
+    }
+
+    //endregion
+
+    @Override
+    public void add(final Widget widget) {
+        SpatialIndex tile = getOrCreateTile(tileKey(widget));
+
+        tile.writeLock();
+        try {
+            tile.add(widget);
+        }
+        finally {
+            tile.writeUnlock();
+        }
+    }
+
+    @Override
+    public void remove(final Widget widget) {
+        SpatialIndex tile = tiles.get(tileKey(widget));
+        if(tile==null) {
+            return;
+        }
+
+        tile.writeLock();
+        try {
+            tile.remove(widget);
+        }
+        finally {
+            tile.writeUnlock();
+        }
+    }
+
+    /**
+     * Move widget between tiles atomically (both tiles are locked in key order)
+     */
+    @Override
+    public void update(final Widget origin, final Widget changed) {
+        long originKey = tileKey(origin);
+        long changedKey = tileKey(changed);
+
+        if(originKey==changedKey) {
+            SpatialIndex tile = getOrCreateTile(originKey);
+            tile.writeLock();
+            try {
+                tile.update(origin, changed);
+            }
+            finally {
+                tile.writeUnlock();
+            }
+            return;
+        }
+
+        SpatialIndex originTile = getOrCreateTile(originKey);
+        SpatialIndex changedTile = getOrCreateTile(changedKey);
+
+        SpatialIndex first = originKey<changedKey ? originTile : changedTile;
+        SpatialIndex second = originKey<changedKey ? changedTile : originTile;
+
+        first.writeLock();
+        try {
+            second.writeLock();
+            try {
+                originTile.remove(origin);
+                changedTile.add(changed);
+            }
+            finally {
+                second.writeUnlock();
+            }
+        }
+        finally {
+            first.writeUnlock();
+        }
+    }
+
+    @Override
+    public Collection<Integer> get() {
+        List<Integer> result = new ArrayList<>();
+
+        for(SpatialIndex tile : tiles.values()) {
+            tile.readLock();
+            try {
+                result.addAll(tile.get());
+            }
+            finally {
+                tile.readUnlock();
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public Collection<Integer> getFilteredByRectangle(int x1, int y1, int x2, int y2) {
+        if(x1>x2 || y1>y2) {
+            return Collections.emptyList();
+        }
+
+        // widget inside of region has left top corner inside of region too
+        int tileX1 = tile(x1);
+        int tileY1 = tile(y1);
+        int tileX2 = tile(x2);
+        int tileY2 = tile(y2);
+
+        // overlapped tiles in key order (lock order)
+        TreeMap<Long, SpatialIndex> overlapped = new TreeMap<>();
+
+        long tileCount = ((long)tileX2 - tileX1 + 1) * ((long)tileY2 - tileY1 + 1);
+        if(tileCount<=tiles.size()) {
+            for(int tx=tileX1; tx<=tileX2; tx++) {
+                for(int ty=tileY1; ty<=tileY2; ty++) {
+                    long key = tileKey(tx, ty);
+                    SpatialIndex tile = tiles.get(key);
+                    if(tile!=null) {
+                        overlapped.put(key, tile);
+                    }
+                }
+            }
+        }
+        else {
+            // region is larger than populated area - scan existed tiles
+            for(Map.Entry<Long, SpatialIndex> e : tiles.entrySet()) {
+                int tx = tileX(e.getKey());
+                int ty = tileY(e.getKey());
+                if(tx>=tileX1 && tx<=tileX2 && ty>=tileY1 && ty<=tileY2) {
+                    overlapped.put(e.getKey(), e.getValue());
+                }
+            }
+        }
+
+        List<SpatialIndex> locked = new ArrayList<>();
+        List<Integer> result = new ArrayList<>();
+
+        try {
+            // lock all overlapped tiles - consistent result over tiles
+            for(SpatialIndex tile : overlapped.values()) {
+                tile.readLock();
+                locked.add(tile);
+            }
+
+            for(SpatialIndex tile : locked) {
+                result.addAll(tile.getFilteredByRectangle(x1, y1, x2, y2));
+            }
+        }
+        finally {
+            for(SpatialIndex tile : locked) {
+                tile.readUnlock();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Get count of created tiles
+     * @return Tiles count
+     */
+    public int getTileCount() {
+        return tiles.size();
+    }
+}
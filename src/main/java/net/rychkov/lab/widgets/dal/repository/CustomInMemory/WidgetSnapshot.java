@@ -0,0 +1,176 @@
+package net.rychkov.lab.widgets.dal.repository.CustomInMemory;
+
+import net.rychkov.lab.widgets.dal.model.Widget;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Binary image of all widgets of CustomInMemory repository
+ * Format: [magic][version][log generation][id sequence][count][count fixed-width records][CRC32 of all previous bytes]
+ * Snapshot covers all changes of write-ahead log segments up to its generation
+ */
+public final class WidgetSnapshot {
+
+    private static final int MAGIC = 0x57534E50;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 3 * Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+    private static final int RECORD_SIZE = 6 * Integer.BYTES + Long.BYTES;
+
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    private final long generation;
+
+    private final int idSequence;
+
+    private final List<Widget> widgets;
+
+    /**
+     * @param generation Last write-ahead log generation covered by snapshot
+     * @param idSequence Next widget ID
+     * @param widgets All widgets
+     */
+    public WidgetSnapshot(long generation, int idSequence, final List<Widget> widgets) {
+        this.generation = generation;
+        this.idSequence = idSequence;
+        this.widgets = widgets;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public int getIdSequence() {
+        return idSequence;
+    }
+
+    public List<Widget> getWidgets() {
+        return widgets;
+    }
+
+    /**
+     * Write snapshot to file atomically (temporary file is synced and renamed)
+     * @param file Snapshot file
+     * @throws IOException File can't be written
+     */
+    public void write(final Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try(FileChannel channel = FileChannel.open(temp,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            CRC32 crc = new CRC32();
+
+            buffer.putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putLong(generation)
+                    .putInt(idSequence)
+                    .putInt(widgets.size());
+
+            for(Widget w : widgets) {
+                if(buffer.remaining()<RECORD_SIZE) {
+                    flush(channel, buffer, crc);
+                }
+                buffer.putInt(w.getId())
+                        .putInt(w.getX())
+                        .putInt(w.getY())
+                        .putInt(w.getZ())
+                        .putInt(w.getWidth())
+                        .putInt(w.getHeight())
+                        .putLong(w.getLastModificationDate()!=null ? w.getLastModificationDate().getTime() : NO_DATE);
+            }
+            flush(channel, buffer, crc);
+
+            buffer.putInt((int)crc.getValue());
+            buffer.flip();
+            while(buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+
+            channel.force(true);
+        }
+
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer, CRC32 crc) throws IOException {
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.flip();
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Read snapshot through memory-mapped file
+     * @param file Snapshot file
+     * @return Snapshot
+     * @throws IOException File can't be read or is corrupted
+     */
+    public static WidgetSnapshot read(final Path file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+
+            long size = channel.size();
+            if(size<HEADER_SIZE + Integer.BYTES || size>Integer.MAX_VALUE) {
+                throw new IOException("Corrupted snapshot " + file);
+            }
+
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            // check sum
+            int dataSize = (int)size - Integer.BYTES;
+            CRC32 crc = new CRC32();
+            byte[] chunk = new byte[64 * 1024];
+            ByteBuffer data = mapped.duplicate();
+            data.limit(dataSize);
+            while(data.hasRemaining()) {
+                int length = Math.min(chunk.length, data.remaining());
+                data.get(chunk, 0, length);
+                crc.update(chunk, 0, length);
+            }
+
+            if(mapped.getInt(dataSize)!=(int)crc.getValue() || mapped.getInt(0)!=MAGIC || mapped.getInt(Integer.BYTES)!=VERSION) {
+                throw new IOException("Corrupted snapshot " + file);
+            }
+
+            mapped.position(2 * Integer.BYTES);
+            long generation = mapped.getLong();
+            int idSequence = mapped.getInt();
+            int count = mapped.getInt();
+
+            if((long)HEADER_SIZE + (long)count * RECORD_SIZE != dataSize) {
+                throw new IOException("Corrupted snapshot " + file);
+            }
+
+            List<Widget> widgets = new ArrayList<>(count);
+            for(int i=0; i<count; i++) {
+                int id = mapped.getInt();
+                int x = mapped.getInt();
+                int y = mapped.getInt();
+                int z = mapped.getInt();
+                int width = mapped.getInt();
+                int height = mapped.getInt();
+                long modified = mapped.getLong();
+
+                widgets.add(new Widget(id, x, y, z, width, height, modified!=NO_DATE ? new Date(modified) : null));
+            }
+
+            return new WidgetSnapshot(generation, idSequence, widgets);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package net.rychkov.lab.widgets.dal.repository.CustomInMemory;
+
+import net.rychkov.lab.widgets.dal.model.Widget;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Backing store of widgets (id - widget) for CustomInMemory repository
+ * Implementations must be thread-safe
+ */
+public interface WidgetStore {
+
+    /**
+     * Get widget by ID
+     * @param id Widget ID
+     * @return Widget (or null)
+     */
+    Widget get(int id);
+
+    /**
+     * Get widgets by ID (in sequence of ids)
+     * @param ids Widgets ID
+     * @return List of widgets (null - for missing ID)
+     */
+    List<Widget> get(Collection<Integer> ids);
+
+    /**
+     * Put widget to store (insert or replace by widget's ID)
+     * @param widget Widget
+     */
+    void put(Widget widget);
+
+    /**
+     * Remove widget from store
+     * @param id Widget ID
+     * @return Removed widget (or null)
+     */
+    Widget remove(int id);
+
+    /**
+     * Atomically replace widget by result of change function
+     * @param id Widget ID
+     * @param change Function of origin widget returns new version of widget
+     * @return New version of widget
+     * @throws java.util.NoSuchElementException No widget with such ID in store
+     */
+    Widget update(int id, UnaryOperator<Widget> change);
+
+    /**
+     * Count of widgets in store
+     * @return Count of widgets
+     */
+    int size();
+
+    /**
+     * Perform action for each widget in store (order is not defined)
+     * @param action Action
+     */
+    void forEach(Consumer<Widget> action);
+}
@@ -0,0 +1,635 @@
+package net.rychkov.lab.widgets.dal.repository.CustomInMemory;
+
+import net.rychkov.lab.widgets.dal.model.Widget;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of CustomInMemory repository
+ * Each repository operation is one frame: [payload length][CRC32 of payload][records],
+ * records are full widget images (put) or widget ID (remove), so replay is idempotent
+ * Frames are appended to memory buffer, background flusher writes buffer and makes one fsync
+ * for all frames collected during max delay (or until max batch size) - group commit
+ * Torn frame at the end of file (crash during write) is dropped on replay
+ * Log consists of active segment (log file) and sealed segments (log file with generation suffix):
+ * rotation seals active segment at frame boundary, so sealed segments covered by snapshot can be deleted
+ */
+public class WriteAheadLog implements Closeable {
+
+    private static final byte RECORD_PUT = 1;
+
+    private static final byte RECORD_REMOVE = 2;
+
+    private static final int PUT_SIZE = 1 + 6 * Integer.BYTES + Long.BYTES;
+
+    private static final int REMOVE_SIZE = 1 + Integer.BYTES;
+
+    private static final int FRAME_HEADER_SIZE = 2 * Integer.BYTES;
+
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    /**
+     * Changes of one repository operation (one frame)
+     */
+    public static final class Batch {
+
+        /**
+         * Batch of disabled log - changes are not recorded
+         */
+        static final Batch DISCARD = new Batch(null);
+
+        private ByteBuffer records;
+
+        Batch() {
+            this(ByteBuffer.allocate(64));
+        }
+
+        private Batch(ByteBuffer records) {
+            this.records = records;
+        }
+
+        private void ensureCapacity(int bytes) {
+            if(records.remaining()<bytes) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(records.capacity() * 2, records.position() + bytes));
+                records.flip();
+                grown.put(records);
+                records = grown;
+            }
+        }
+
+        /**
+         * Record insert or replace of widget
+         * @param widget Widget full image
+         */
+        public void put(final Widget widget) {
+            if(records==null) {
+                return;
+            }
+            ensureCapacity(PUT_SIZE);
+            records.put(RECORD_PUT)
+                    .putInt(widget.getId())
+                    .putInt(widget.getX())
+                    .putInt(widget.getY())
+                    .putInt(widget.getZ())
+                    .putInt(widget.getWidth())
+                    .putInt(widget.getHeight())
+                    .putLong(widget.getLastModificationDate()!=null ? widget.getLastModificationDate().getTime() : NO_DATE);
+        }
+
+        /**
+         * Record remove of widget
+         * @param id Widget ID
+         */
+        public void remove(int id) {
+            if(records==null) {
+                return;
+            }
+            ensureCapacity(REMOVE_SIZE);
+            records.put(RECORD_REMOVE).putInt(id);
+        }
+
+        boolean isEmpty() {
+            return records.position()==0;
+        }
+    }
+
+    private final Path file;
+
+    private FileChannel channel;
+
+    private final int maxBatchSize;
+
+    private final long maxDelayNanos;
+
+    /**
+     * Guards buffer of pending frames and sequence numbers
+     */
+    private final ReentrantLock lock;
+
+    /**
+     * Signal for flusher: new frames or close
+     */
+    private final Condition pending;
+
+    /**
+     * Signal for writers: frames are durable
+     */
+    private final Condition flushed;
+
+    private ByteBuffer buffer;
+
+    private int pendingFrames;
+
+    /**
+     * Sequence number of last appended frame
+     */
+    private long appendedSequence;
+
+    /**
+     * Sequence number of last frame written and synced to disk
+     */
+    private long durableSequence;
+
+    /**
+     * Count of fsync calls
+     */
+    private long syncCount;
+
+    private IOException failure;
+
+    private boolean closed;
+
+    /**
+     * Last generation of sealed segment
+     */
+    private long generation;
+
+    /**
+     * Last sealed generation synced to disk
+     */
+    private long sealedGeneration;
+
+    /**
+     * Frames appended before requested rotation (null - no rotation requested)
+     */
+    private ByteBuffer beforeRotation;
+
+    private final Thread flusher;
+
+    /**
+     * Open (or create) log file
+     * @param file Log file
+     * @param maxBatchSize Max count of frames per fsync
+     * @param maxDelayMicros Max delay of fsync waiting for other frames (0 - sync immediately)
+     * @throws IOException Log file can't be opened
+     */
+    public WriteAheadLog(final Path file, int maxBatchSize, long maxDelayMicros) throws IOException {
+
+        if(maxBatchSize<=0) {
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        }
+        if(maxDelayMicros<0) {
+            throw new IllegalArgumentException("maxDelayMicros must be not negative");
+        }
+
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.channel.position(channel.size());
+
+        List<Long> sealed = getSealedGenerations();
+        this.generation = sealed.isEmpty() ? 0 : sealed.get(sealed.size() - 1);
+        this.sealedGeneration = generation;
+
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+
+        this.lock = new ReentrantLock();
+        this.pending = lock.newCondition();
+        this.flushed = lock.newCondition();
+        this.buffer = ByteBuffer.allocate(4096);
+
+        this.flusher = new Thread(this::flushLoop, "widgets-wal-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    //region Replay
+
+    /**
+     * Replay whole log (must be called before first append)
+     * @param put Consumer of widget images
+     * @param remove Consumer of removed widget's ID
+     * @throws IOException Log file can't be read
+     */
+    public void replay(final Consumer<Widget> put, final IntConsumer remove) throws IOException {
+        replay(0, put, remove);
+    }
+
+    /**
+     * Replay log after generation (must be called before first append)
+     * sealed segments of later generations, then active segment - torn or corrupted tail of it is truncated
+     * @param afterGeneration Generation covered by snapshot (segments up to it are skipped)
+     * @param put Consumer of widget images
+     * @param remove Consumer of removed widget's ID
+     * @throws IOException Log file can't be read
+     */
+    public void replay(long afterGeneration, final Consumer<Widget> put, final IntConsumer remove) throws IOException {
+
+        for(long sealed : getSealedGenerations()) {
+            if(sealed>afterGeneration) {
+                try(FileChannel segment = FileChannel.open(segmentFile(sealed), StandardOpenOption.READ)) {
+                    replay(segment, put, remove);
+                }
+            }
+        }
+
+        long position = replay(channel, put, remove);
+
+        // drop torn tail
+        if(position<channel.size()) {
+            channel.truncate(position);
+        }
+        channel.position(position);
+    }
+
+    /**
+     * Replay frames of segment
+     * @return Position after last valid frame
+     */
+    private static long replay(FileChannel segment, final Consumer<Widget> put, final IntConsumer remove) throws IOException {
+
+        long position = 0;
+        long size = segment.size();
+
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        CRC32 crc = new CRC32();
+
+        while(position + FRAME_HEADER_SIZE <= size) {
+
+            header.clear();
+            readFully(segment, header, position);
+            header.flip();
+
+            int length = header.getInt();
+            int checksum = header.getInt();
+
+            if(length<=0 || position + FRAME_HEADER_SIZE + length > size) {
+                break;
+            }
+
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(segment, payload, position + FRAME_HEADER_SIZE);
+
+            crc.reset();
+            crc.update(payload.array(), 0, length);
+            if((int)crc.getValue()!=checksum) {
+                break;
+            }
+
+            payload.flip();
+            if(!isValid(payload)) {
+                break;
+            }
+            apply(payload, put, remove);
+
+            position += FRAME_HEADER_SIZE + length;
+        }
+
+        return position;
+    }
+
+    private static void readFully(FileChannel segment, ByteBuffer target, long position) throws IOException {
+        while(target.hasRemaining()) {
+            if(segment.read(target, position + target.position())<0) {
+                throw new IOException("Unexpected end of log");
+            }
+        }
+    }
+
+    private static boolean isValid(ByteBuffer payload) {
+        ByteBuffer records = payload.duplicate();
+        while(records.hasRemaining()) {
+            byte type = records.get();
+            int size = type==RECORD_PUT ? PUT_SIZE : type==RECORD_REMOVE ? REMOVE_SIZE : -1;
+            if(size<0 || records.remaining()<size-1) {
+                return false;
+            }
+            records.position(records.position() + size - 1);
+        }
+        return true;
+    }
+
+    private static void apply(ByteBuffer records, final Consumer<Widget> put, final IntConsumer remove) {
+        while(records.hasRemaining()) {
+            if(records.get()==RECORD_PUT) {
+                int id = records.getInt();
+                int x = records.getInt();
+                int y = records.getInt();
+                int z = records.getInt();
+                int width = records.getInt();
+                int height = records.getInt();
+                long modified = records.getLong();
+
+                put.accept(new Widget(id, x, y, z, width, height, modified!=NO_DATE ? new Date(modified) : null));
+            }
+            else {
+                remove.accept(records.getInt());
+            }
+        }
+    }
+
+    //endregion
+
+    //region Segments
+
+    private Path segmentFile(long segmentGeneration) {
+        return file.resolveSibling(file.getFileName() + "." + segmentGeneration);
+    }
+
+    /**
+     * Get generations of sealed segments (ascending)
+     */
+    private List<Long> getSealedGenerations() throws IOException {
+        List<Long> result = new ArrayList<>();
+        String prefix = file.getFileName() + ".";
+
+        Path directory = file.toAbsolutePath().getParent();
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*")) {
+            for(Path segment : files) {
+                String suffix = segment.getFileName().toString().substring(prefix.length());
+                if(!suffix.isEmpty() && suffix.chars().allMatch(Character::isDigit)) {
+                    result.add(Long.parseLong(suffix));
+                }
+            }
+        }
+
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Seal active segment: frames appended before rotation stay in sealed segment, later frames go to new active segment
+     * @param capture Action executed at rotation point under log lock (no changes can be appended meanwhile)
+     * @return Generation of sealed segment (returns after sealed segment is synced to disk)
+     * @throws UncheckedIOException Log can't be written
+     */
+    public long rotate(final Runnable capture) {
+        lock.lock();
+        try {
+            if(closed) {
+                throw new IllegalStateException("Write-ahead log is closed");
+            }
+            if(beforeRotation!=null) {
+                throw new IllegalStateException("Rotation is in progress");
+            }
+
+            capture.run();
+
+            long target = ++generation;
+
+            beforeRotation = buffer;
+            buffer = ByteBuffer.allocate(4096);
+            pending.signal();
+
+            while(sealedGeneration<target) {
+                if(failure!=null) {
+                    throw new UncheckedIOException("Write-ahead log failure", failure);
+                }
+                flushed.awaitUninterruptibly();
+            }
+
+            return target;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Delete sealed segments (covered by snapshot)
+     * @param upToGeneration Last generation to delete
+     * @throws IOException Segment can't be deleted
+     */
+    public void deleteSegments(long upToGeneration) throws IOException {
+        for(long sealed : getSealedGenerations()) {
+            if(sealed<=upToGeneration) {
+                Files.deleteIfExists(segmentFile(sealed));
+            }
+        }
+    }
+
+    //endregion
+
+    //region Append
+
+    /**
+     * Append changes of one operation as one frame
+     * Changes are collected under log lock, so store changes made inside are logged in the order of applying
+     * @param changes Action that makes changes and records them to batch
+     * @return Sequence number of frame (to wait for durability)
+     */
+    public long append(final Consumer<Batch> changes) {
+        Batch batch = new Batch();
+
+        lock.lock();
+        try {
+            if(closed) {
+                throw new IllegalStateException("Write-ahead log is closed");
+            }
+
+            changes.accept(batch);
+
+            if(batch.isEmpty()) {
+                return appendedSequence;
+            }
+
+            ByteBuffer records = batch.records;
+            records.flip();
+
+            CRC32 crc = new CRC32();
+            crc.update(records.array(), 0, records.limit());
+
+            int frameSize = FRAME_HEADER_SIZE + records.limit();
+            if(buffer.remaining()<frameSize) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + frameSize));
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+
+            buffer.putInt(records.limit()).putInt((int)crc.getValue()).put(records);
+
+            pendingFrames++;
+            appendedSequence++;
+
+            // wake up flusher on first frame (starts delay) and on full batch
+            if(pendingFrames==1 || pendingFrames>=maxBatchSize) {
+                pending.signal();
+            }
+
+            return appendedSequence;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until frame is written and synced to disk
+     * @param sequence Sequence number of frame
+     * @throws UncheckedIOException Log can't be written
+     */
+    public void await(long sequence) {
+        lock.lock();
+        try {
+            while(durableSequence<sequence) {
+                if(failure!=null) {
+                    throw new UncheckedIOException("Write-ahead log failure", failure);
+                }
+                flushed.awaitUninterruptibly();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    //endregion
+
+    //region Flush
+
+    private void flushLoop() {
+        ByteBuffer spare = ByteBuffer.allocate(4096);
+
+        while(true) {
+            ByteBuffer sealedFrames;
+            long sealTarget;
+            ByteBuffer toWrite;
+            long sequence;
+
+            lock.lock();
+            try {
+                while(pendingFrames==0 && beforeRotation==null && !closed) {
+                    pending.awaitUninterruptibly();
+                }
+
+                if(pendingFrames==0 && beforeRotation==null) {
+                    return;
+                }
+
+                // collect more frames for one fsync
+                long delay = maxDelayNanos;
+                while(pendingFrames<maxBatchSize && beforeRotation==null && !closed && delay>0) {
+                    try {
+                        delay = pending.awaitNanos(delay);
+                    }
+                    catch (InterruptedException e) {
+                        break;
+                    }
+                }
+
+                // swap buffers
+                sealedFrames = beforeRotation;
+                sealTarget = generation;
+                toWrite = buffer;
+                spare.clear();
+                buffer = spare;
+                sequence = appendedSequence;
+                pendingFrames = 0;
+            }
+            finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            try {
+                if(sealedFrames!=null) {
+                    // frames before rotation - to active segment, then seal it
+                    write(sealedFrames);
+                    channel.close();
+                    Files.move(file, segmentFile(sealTarget), StandardCopyOption.ATOMIC_MOVE);
+                    channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                }
+                write(toWrite);
+            }
+            catch (IOException e) {
+                error = e;
+            }
+
+            lock.lock();
+            try {
+                if(error!=null) {
+                    failure = error;
+                }
+                else {
+                    durableSequence = sequence;
+                    syncCount++;
+                    if(sealedFrames!=null) {
+                        sealedGeneration = sealTarget;
+                        beforeRotation = null;
+                    }
+                }
+                flushed.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+
+            if(error!=null) {
+                return;
+            }
+
+            spare = toWrite;
+        }
+    }
+
+    /**
+     * Write frames to active segment and sync it to disk
+     */
+    private void write(ByteBuffer frames) throws IOException {
+        frames.flip();
+        while(frames.hasRemaining()) {
+            channel.write(frames);
+        }
+        channel.force(false);
+    }
+
+    //endregion
+
+    /**
+     * Get count of fsync calls (each covers all frames appended before it)
+     * @return Count of fsync calls
+     */
+    public long getSyncCount() {
+        lock.lock();
+        try {
+            return syncCount;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flush pending frames and close log
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            pending.signal();
+        }
+        finally {
+            lock.unlock();
+        }
+
+        try {
+            flusher.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        channel.close();
+    }
+}
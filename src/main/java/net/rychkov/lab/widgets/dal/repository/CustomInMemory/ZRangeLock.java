@@ -0,0 +1,99 @@
+package net.rychkov.lab.widgets.dal.repository.CustomInMemory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lock of z-coordinate ranges
+ * Owners of overlapping ranges wait for each other, disjoint ranges are held concurrently,
+ * so shifting in one part of z-sequence doesn't block inserts into another part
+ */
+public class ZRangeLock {
+
+    /**
+     * Locked range of z-coordinates (both borders are included)
+     */
+    public static final class Range {
+
+        private final long from;
+
+        private final long to;
+
+        private Range(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        public long getFrom() {
+            return from;
+        }
+
+        public long getTo() {
+            return to;
+        }
+
+        /**
+         * Check range covers other range
+         * @param from Low z (included)
+         * @param to High z (included)
+         * @return true - if covers
+         */
+        public boolean contains(long from, long to) {
+            return this.from<=from && to<=this.to;
+        }
+
+        private boolean overlaps(final Range other) {
+            return from<=other.to && other.from<=to;
+        }
+    }
+
+    /**
+     * Locked ranges
+     */
+    private final List<Range> locked = new ArrayList<>();
+
+    /**
+     * Lock range (wait while overlapping ranges are locked)
+     * @param from Low z (included)
+     * @param to High z (included)
+     * @return Locked range (for unlocking)
+     */
+    public synchronized Range lock(long from, long to) {
+
+        if(from>to) {
+            throw new IllegalArgumentException("from must be not greater than to");
+        }
+
+        Range range = new Range(from, to);
+
+        boolean interrupted = false;
+        while(locked.stream().anyMatch(range::overlaps)) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                // lock is not interruptible (like ReentrantLock.lock), keep interruption status
+                interrupted = true;
+            }
+        }
+
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        locked.add(range);
+
+        return range;
+    }
+
+    /**
+     * Unlock range
+     * @param range Locked range
+     */
+    public synchronized void unlock(final Range range) {
+        if(!locked.remove(range)) {
+            throw new IllegalMonitorStateException("Range is not locked");
+        }
+        notifyAll();
+    }
+}
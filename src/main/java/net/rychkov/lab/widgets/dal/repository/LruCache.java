@@ -0,0 +1,150 @@
+package net.rychkov.lab.widgets.dal.repository;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Size-bounded concurrent LRU cache
+ * Keys are spread over segments, each segment is access-ordered map under own lock
+ * and evicts its least recently used entry on overflow (LRU is approximate for whole cache)
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public class LruCache<K, V> {
+
+    private static final int MAX_SEGMENTS = 16;
+
+    private static final class Segment<K, V> extends LinkedHashMap<K, V> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        private final LongAdder evictions;
+
+        Segment(int maxSize, LongAdder evictions) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            if(size()>maxSize) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final Segment<K, V>[] segments;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxSize Max count of entries (positive)
+     */
+    @SuppressWarnings("unchecked")
+    public LruCache(int maxSize) {
+        if(maxSize<1) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+
+        int count = Math.min(MAX_SEGMENTS, maxSize);
+
+        segments = (Segment<K, V>[]) new Segment<?, ?>[count];
+        for(int i=0; i<count; i++) {
+            // segments share max size (first ones take remainder)
+            segments[i] = new Segment<>(maxSize / count + (i < maxSize % count ? 1 : 0), evictions);
+        }
+    }
+
+    private Segment<K, V> segment(K key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return segments[Math.floorMod(hash, segments.length)];
+    }
+
+    /**
+     * Get value (entry becomes most recently used)
+     * @param key Key
+     * @return Value or null - if not cached
+     */
+    public V get(K key) {
+        Segment<K, V> segment = segment(key);
+
+        V value;
+        synchronized(segment) {
+            value = segment.get(key);
+        }
+
+        (value!=null ? hits : misses).increment();
+
+        return value;
+    }
+
+    /**
+     * Put value if condition is true - condition is checked under lock of key,
+     * so concurrent remove of key is either before check or after put
+     * @param key Key
+     * @param value Value
+     * @param condition Condition of put (e.g. value isn't stale)
+     * @return true - value is put
+     */
+    public boolean putIf(K key, V value, BooleanSupplier condition) {
+        Segment<K, V> segment = segment(key);
+
+        synchronized(segment) {
+            if(!condition.getAsBoolean()) {
+                return false;
+            }
+            segment.put(key, value);
+            return true;
+        }
+    }
+
+    public void remove(K key) {
+        Segment<K, V> segment = segment(key);
+
+        synchronized(segment) {
+            segment.remove(key);
+        }
+    }
+
+    public void clear() {
+        for(Segment<K, V> segment : segments) {
+            synchronized(segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for(Segment<K, V> segment : segments) {
+            synchronized(segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+}
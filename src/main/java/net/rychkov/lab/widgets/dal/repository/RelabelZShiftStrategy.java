@@ -0,0 +1,73 @@
+package net.rychkov.lab.widgets.dal.repository;
+
+import net.rychkov.lab.widgets.dal.model.Widget;
+import net.rychkov.lab.widgets.dal.model.WidgetDelta;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Order-maintenance shifting (list labeling): widgets after inserting one are relabeled
+ * evenly inside the smallest window that is sparse enough
+ * Window grows twice from the insert position, window of level i (2^i widgets) is accepted
+ * if its density is not greater than threshold: 1 for one widget down to 1/2 for all widgets
+ * So dense places are spread over bigger range and next inserts there touch few widgets
+ * (amortized polylogarithmic count of changed widgets instead of linear)
+ */
+public class RelabelZShiftStrategy extends ZShiftStrategy {
+
+    @Override
+    protected Map<Integer, WidgetDelta> shiftMiddle(int z, final Tail tail, int allSize)
+            throws ConstraintViolationException {
+
+        // no conflict
+        if(tail.get(0).getZ()>z) {
+            return Collections.emptyMap();
+        }
+
+        // count of levels: from one widget to all widgets
+        int levels = 32 - Integer.numberOfLeadingZeros(allSize) + 1;
+
+        int count = 1;
+        for(int level=0; ; level++) {
+            Widget next = tail.get(count);
+
+            // free range (z, high): high is z of first widget after window or tail with Z_STEP gaps
+            long high = next!=null
+                    ? next.getZ()
+                    : Math.min((long)Integer.MAX_VALUE + 1, (long)z + (long)Z_STEP*(count+1));
+            long range = high - z;
+
+            double threshold = 1.0 - (double)level / (2 * levels);
+
+            if(range>count && (next==null || count+1 <= threshold*range)) {
+                return relabel(z, range, tail, count);
+            }
+
+            if(next==null) {
+                throw new ConstraintViolationException("No free z-coordinates for shifting");
+            }
+
+            count = tail.count(count*2);
+        }
+    }
+
+    /**
+     * Spread widgets of window evenly in range (z, z + range)
+     */
+    private static Map<Integer, WidgetDelta> relabel(int z, long range, final Tail tail, int count) {
+        Map<Integer, WidgetDelta> updateQueue = new HashMap<>();
+
+        for(int j=1; j<=count; j++) {
+            Widget widget = tail.get(j - 1);
+            int newZ = (int)(z + range*j/(count+1));
+
+            if(widget.getZ()!=newZ) {
+                updateQueue.put(widget.getId(), new WidgetDelta(null, null, newZ, null, null));
+            }
+        }
+
+        return updateQueue;
+    }
+}
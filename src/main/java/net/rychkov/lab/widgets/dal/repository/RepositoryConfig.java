@@ -1,9 +1,34 @@
 package net.rychkov.lab.widgets.dal.repository;
 
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.ColumnarWidgetStore;
+import net.rychkov.lab.widgets.dal.model.Widget;
+import net.rychkov.lab.widgets.dal.model.WidgetDelta;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.ComplexIndex;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.FieldIndex;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.IndexLock;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.MultiVersionRepositoryImpl;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.ObjectWidgetStore;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.OffHeapWidgetStore;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.OrderedIndex;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.RTreeIndex;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.ReadWriteIndexLock;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.RepositoryImpl;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.SkipListFieldIndex;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.SnapshotScheduler;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.SpatialIndex;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.StampedIndexLock;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.TiledSpatialIndex;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.WidgetStore;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.WriteAheadLog;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
+
+import java.io.IOException;
+import java.nio.file.Paths;
 
 @Configuration
 public class RepositoryConfig {
@@ -13,6 +38,84 @@ public class RepositoryConfig {
     @Value("${widgets.repository.mode}")
     private String mode;
 
+    /**
+     * Spatial index of CustomInMemory repository: complex(default), rtree or tiled
+     */
+    @Value("${widgets.repository.spatial-index:complex}")
+    private String spatialIndex;
+
+    /**
+     * Tile size of tiled spatial index
+     */
+    @Value("${widgets.repository.tile-size:" + TiledSpatialIndex.DEFAULT_TILE_SIZE + "}")
+    private int tileSize;
+
+    /**
+     * Backing store of CustomInMemory repository: objects(default), columnar or off-heap
+     */
+    @Value("${widgets.repository.store:objects}")
+    private String store;
+
+    /**
+     * Z-index of CustomInMemory repository: tree(default) or skip-list
+     */
+    @Value("${widgets.repository.z-index:tree}")
+    private String zIndex;
+
+    /**
+     * Lock strategy of CustomInMemory z-index: rw(default) or stamped
+     */
+    @Value("${widgets.repository.index-lock.z:rw}")
+    private String zIndexLock;
+
+    /**
+     * Lock strategy of CustomInMemory spatial index: rw(default) or stamped
+     */
+    @Value("${widgets.repository.index-lock.spatial:rw}")
+    private String spatialIndexLock;
+
+    /**
+     * Write-ahead log file of CustomInMemory repository (empty - log is disabled)
+     */
+    @Value("${widgets.repository.wal.path:}")
+    private String walPath;
+
+    /**
+     * Max count of operations per one fsync of write-ahead log
+     */
+    @Value("${widgets.repository.wal.max-batch-size:64}")
+    private int walMaxBatchSize;
+
+    /**
+     * Max delay of fsync waiting for other operations (microseconds)
+     */
+    @Value("${widgets.repository.wal.max-delay-micros:1000}")
+    private long walMaxDelayMicros;
+
+    /**
+     * Snapshot file of CustomInMemory repository (empty - snapshots are disabled, requires write-ahead log)
+     */
+    @Value("${widgets.repository.snapshot.path:}")
+    private String snapshotPath;
+
+    /**
+     * Interval between snapshots (seconds)
+     */
+    @Value("${widgets.repository.snapshot.interval-seconds:300}")
+    private long snapshotIntervalSeconds;
+
+    /**
+     * Max count of widgets in read-through cache of h2 repository (0 - cache is disabled)
+     */
+    @Value("${widgets.repository.h2.cache-size:10000}")
+    private int h2CacheSize;
+
+    /**
+     * Rectangle filter of h2 repository: bounds(default) - composite indexes of borders, rtree - spatial index of bounding box
+     */
+    @Value("${widgets.repository.h2.spatial-index:bounds}")
+    private String h2SpatialIndex;
+
     public RepositoryConfig(ApplicationContext appContext) {
         this.appContext = appContext;
     }
@@ -20,9 +123,78 @@ public class RepositoryConfig {
     @Bean("repository")
     public WidgetRepository widgetRepository() {
         if ("h2".equals(mode)) {
-            return (WidgetRepository) appContext.getBean("h2");
+            WidgetRepository h2 = (WidgetRepository) appContext.getBean("rtree".equals(h2SpatialIndex) ? "h2Spatial" : "h2");
+            return h2CacheSize>0 ? new CachingWidgetRepository(h2, h2CacheSize) : h2;
+        }
+        if ("custom_in_memory_mvcc".equals(mode)) {
+            return (WidgetRepository) appContext.getBean("customInMemoryMvcc");
         }
         return (WidgetRepository) appContext.getBean("customInMemory");
     }
 
+    @Lazy
+    @Bean("customInMemory")
+    public WidgetRepository customInMemoryRepository() throws IOException {
+        if (!walPath.isEmpty()) {
+            return new RepositoryImpl(createSpatialIndex(), createStore(), createZIndex(),
+                    new WriteAheadLog(Paths.get(walPath), walMaxBatchSize, walMaxDelayMicros),
+                    snapshotPath.isEmpty() ? null : Paths.get(snapshotPath));
+        }
+        return new RepositoryImpl(createSpatialIndex(), createStore(), createZIndex());
+    }
+
+    /**
+     * Only for CustomInMemory mode (see widgetRepository) with write-ahead log and snapshot file
+     */
+    @Bean("snapshotScheduler")
+    @ConditionalOnExpression("'${widgets.repository.mode}' != 'h2' and '${widgets.repository.mode}' != 'custom_in_memory_mvcc'"
+            + " and '${widgets.repository.wal.path:}' != '' and '${widgets.repository.snapshot.path:}' != ''")
+    public SnapshotScheduler snapshotScheduler() {
+        return new SnapshotScheduler((RepositoryImpl) appContext.getBean("customInMemory"), snapshotIntervalSeconds);
+    }
+
+    @Lazy
+    @Bean("customInMemoryMvcc")
+    public WidgetRepository customInMemoryMultiVersionRepository() {
+        return new MultiVersionRepositoryImpl();
+    }
+
+    private OrderedIndex<Integer> createZIndex() {
+        if ("skip-list".equals(zIndex)) {
+            return new SkipListFieldIndex<>("Z", Widget::getZ, WidgetDelta::getZ);
+        }
+        return new FieldIndex<>("Z", true, Widget::getZ, WidgetDelta::getZ, createIndexLock(zIndexLock));
+    }
+
+    private SpatialIndex createSpatialIndex() {
+        if ("tiled".equals(spatialIndex)) {
+            // each tile has own lock
+            return new TiledSpatialIndex(tileSize, () -> new ComplexIndex(createIndexLock(spatialIndexLock)));
+        }
+
+        IndexLock lock = createIndexLock(spatialIndexLock);
+
+        if ("rtree".equals(spatialIndex)) {
+            return new RTreeIndex(RTreeIndex.DEFAULT_MAX_ENTRIES, lock);
+        }
+        return new ComplexIndex(lock);
+    }
+
+    private IndexLock createIndexLock(String strategy) {
+        if ("stamped".equals(strategy)) {
+            return new StampedIndexLock();
+        }
+        return new ReadWriteIndexLock();
+    }
+
+    private WidgetStore createStore() {
+        if ("columnar".equals(store)) {
+            return new ColumnarWidgetStore();
+        }
+        if ("off-heap".equals(store)) {
+            return new OffHeapWidgetStore();
+        }
+        return new ObjectWidgetStore();
+    }
+
 }
@@ -0,0 +1,164 @@
+package net.rychkov.lab.widgets.dal.repository;
+
+import net.rychkov.lab.widgets.dal.model.WidgetChange;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded ring buffer of widget changes
+ * Writers never wait for readers - the oldest changes are overwritten.
+ * Every change gets sequence number, so each reader keeps its own position
+ * and detects that it fell behind buffer (then it must reload widgets)
+ * Sequences start from 0 in every feed instance (every process start), so clients get tokens
+ * "epoch-sequence" - token of other instance is detected and reader must reload widgets too
+ */
+public class WidgetChangeFeed {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * Count of created feeds (epochs of feeds created in the same millisecond differ)
+     */
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    private final WidgetChange[] ring;
+
+    /**
+     * Epoch of feed instance - start time and number of instance
+     */
+    private final String epoch = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX) +
+            Integer.toString(instances.incrementAndGet(), Character.MAX_RADIX);
+
+    /**
+     * Sequence of last published change (0 - nothing is published), changed under monitor
+     */
+    private volatile long lastSequence;
+
+    public WidgetChangeFeed() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Max count of stored changes
+     */
+    public WidgetChangeFeed(int capacity) {
+        if(capacity<1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        ring = new WidgetChange[capacity];
+    }
+
+    /**
+     * Publish changes of one write (sequence numbers are assigned in order of collection)
+     * @param changes Changes
+     */
+    public synchronized void publish(final Collection<WidgetChange> changes) {
+        if(changes.isEmpty()) {
+            return;
+        }
+
+        // whole write becomes visible at once
+        long sequence = lastSequence;
+        for(WidgetChange change : changes) {
+            change.setSequence(++sequence);
+            ring[(int)(sequence % ring.length)] = change;
+        }
+        lastSequence = sequence;
+
+        notifyAll();
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    public String getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Get token of sequence for clients
+     * @param sequence Sequence of change
+     * @return Token "epoch-sequence"
+     */
+    public String token(long sequence) {
+        return epoch + "-" + sequence;
+    }
+
+    /**
+     * Get sequence of token
+     * @param token Token "epoch-sequence" (sequence without epoch is accepted as token of other instance)
+     * @return Sequence
+     * @throws IllegalArgumentException Malformed token or negative sequence
+     * @throws NoSuchElementException Token of other feed instance (like one before restart)
+     */
+    public long parseToken(final String token) throws IllegalArgumentException, NoSuchElementException {
+        if(token==null) {
+            throw new IllegalArgumentException("token must be not null");
+        }
+
+        // epoch has no '-'
+        int separator = token.indexOf('-');
+        long sequence = Long.parseLong(separator>0 ? token.substring(separator + 1) : token);
+        if(sequence<0) {
+            throw new IllegalArgumentException("sequence must be not negative");
+        }
+
+        if(separator<=0 || !epoch.equals(token.substring(0, separator))) {
+            throw new NoSuchElementException("Token " + token + " is issued by other feed");
+        }
+
+        return sequence;
+    }
+
+    /**
+     * Get changes after sequence
+     * @param afterSequence Sequence of last received change (0 - from start)
+     * @param limit Max count of changes
+     * @return Changes in order of sequence (empty - no new changes)
+     * @throws IllegalArgumentException Negative sequence
+     * @throws NoSuchElementException Changes after sequence are overwritten (or sequence is unknown)
+     */
+    public synchronized List<WidgetChange> read(long afterSequence, int limit) throws IllegalArgumentException, NoSuchElementException {
+        if(afterSequence<0) {
+            throw new IllegalArgumentException("afterSequence must be not negative");
+        }
+        if(afterSequence>lastSequence || afterSequence<lastSequence - ring.length) {
+            throw new NoSuchElementException("No changes after " + afterSequence + " in feed");
+        }
+
+        int count = (int)Math.min(limit, lastSequence - afterSequence);
+
+        List<WidgetChange> result = new ArrayList<>(count);
+        for(long s = afterSequence + 1; s<=afterSequence + count; s++) {
+            result.add(ring[(int)(s % ring.length)]);
+        }
+
+        return result;
+    }
+
+    /**
+     * Wait for changes after sequence
+     * @param afterSequence Sequence of last received change
+     * @param timeoutMillis Max waiting time
+     * @return true - there are changes after sequence, false - timeout
+     * @throws InterruptedException Waiting is interrupted
+     */
+    public synchronized boolean await(long afterSequence, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        while(lastSequence<=afterSequence) {
+            long remaining = deadline - System.currentTimeMillis();
+            if(remaining<=0) {
+                return false;
+            }
+            wait(remaining);
+        }
+
+        return true;
+    }
+}
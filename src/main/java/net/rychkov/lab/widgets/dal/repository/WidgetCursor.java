@@ -0,0 +1,74 @@
+package net.rychkov.lab.widgets.dal.repository;
+
+import net.rychkov.lab.widgets.dal.model.Widget;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Cursor over widgets ordered by z-coordinate
+ * Next slice is read from repository after last z of previous one (only one slice is in memory)
+ */
+public class WidgetCursor implements Iterator<Widget> {
+
+    private final WidgetRepository repository;
+
+    private final int sliceSize;
+
+    /**
+     * Current slice
+     */
+    private Iterator<Widget> slice;
+
+    /**
+     * Current slice is empty - no more widgets
+     * (shorter slice isn't the last one: widgets removed meanwhile are skipped by repository)
+     */
+    private boolean finished;
+
+    /**
+     * z-coordinate of last returned widget (null - nothing is returned)
+     */
+    private Integer lastZ;
+
+    /**
+     * @param repository Widget repository
+     * @param sliceSize Count of widgets per slice
+     */
+    public WidgetCursor(final WidgetRepository repository, int sliceSize) {
+        if(sliceSize<1) {
+            throw new IllegalArgumentException("sliceSize must be positive");
+        }
+
+        this.repository = repository;
+        this.sliceSize = sliceSize;
+        readSlice();
+    }
+
+    private void readSlice() {
+        Collection<Widget> widgets = repository.getAllOrderByZAfter(lastZ, sliceSize);
+        finished = widgets.isEmpty();
+        slice = widgets.iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if(!slice.hasNext() && !finished) {
+            readSlice();
+        }
+        return slice.hasNext();
+    }
+
+    @Override
+    public Widget next() {
+        if(!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        Widget widget = slice.next();
+        lastZ = widget.getZ();
+
+        return widget;
+    }
+}
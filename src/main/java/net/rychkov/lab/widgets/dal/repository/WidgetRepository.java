@@ -6,6 +6,7 @@ import net.rychkov.lab.widgets.dal.model.WidgetDelta;
 
 import javax.transaction.NotSupportedException;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.NoSuchElementException;
 
@@ -32,12 +33,46 @@ public interface WidgetRepository {
      */
     Page<Widget> getAllOrderByZ(int pageNum, int pageSize);
 
+    /**
+     * Get slice of widgets with z-coordinate greater than afterZ, ordered by z-coordinate (ASC)
+     * z-index is searched by key, so cost doesn't depend on count of widgets before slice
+     * @param afterZ Low z-coordinate (excluded), null - from first widget
+     * @param limit Max count of widgets
+     * @return Collection of widgets
+     */
+    Collection<Widget> getAllOrderByZAfter(Integer afterZ, int limit);
+
+    /**
+     * Get cursor over all widgets in repository, ordered by z-coordinate (ASC)
+     * widgets are read by slices, so memory is bounded by slice size and no lock is held between slices
+     * (cursor is weakly consistent: widgets changed meanwhile can be missed or seen twice)
+     * @param sliceSize Count of widgets per slice
+     * @return Iterator of widgets
+     */
+    default Iterator<Widget> cursorOrderByZ(int sliceSize) {
+        return new WidgetCursor(this, sliceSize);
+    }
+
     /**
      * Return max z, or null - if no widgets in repository
      * @return Max Z
      */
     Integer getMaxZ();
 
+    /**
+     * Get modification version: increases after every successful write
+     * (value read before query guarantees that result isn't older than version)
+     * @return Version
+     */
+    long getVersion();
+
+    /**
+     * Get feed of changes: every write publishes images of changed widgets (including shifted ones)
+     * and removed IDs
+     * @return Change feed
+     */
+    WidgetChangeFeed getChangeFeed();
+
     /**
      * Get widgets that fall entirely into the region
      * @param x1 Left border (included)
@@ -101,4 +136,52 @@ public interface WidgetRepository {
      */
     Collection<Widget> updateAll(final Map<Integer, WidgetDelta> changes)
             throws IllegalArgumentException, NoSuchElementException, ConstraintViolationException;
+
+    /**
+     * Add widget at z-position: existed widgets are shifted (if needed) inside repository,
+     * position search, shifting and adding are one atomic operation
+     * @param delta WidgetDelta contains values for setting to properties (z must be not null, can be changed by shifting)
+     * @param strategy Strategy of z-shifting
+     * @return Created widget
+     * @throws ConstraintViolationException No free z-coordinates for shifting
+     */
+    Widget insertAt(final WidgetDelta delta, final ZShiftStrategy strategy) throws ConstraintViolationException;
+
+    /**
+     * Update widget and move it to z-position: existed widgets are shifted (if needed) inside repository,
+     * position search, shifting and updating are one atomic operation
+     * @param widgetId Widget ID
+     * @param delta WidgetDelta contains values for setting to properties and nulls for others (z must be not null)
+     * @param strategy Strategy of z-shifting
+     * @return Updated widget
+     * @throws IllegalArgumentException Illegal widgetDelta like null
+     * @throws NoSuchElementException No widget with such ID in repository
+     * @throws ConstraintViolationException No free z-coordinates for shifting
+     */
+    Widget moveTo(int widgetId, final WidgetDelta delta, final ZShiftStrategy strategy)
+            throws IllegalArgumentException, NoSuchElementException, ConstraintViolationException;
+
+    /**
+     * Add widgets at z-positions: z-conflicts of whole batch are resolved in one shifting pass,
+     * position search, shifting and adding are one atomic operation
+     * @param deltas Collection of WidgetDeltas contains values for setting to properties (z must be not null)
+     * @param strategy Strategy of z-shifting
+     * @return Created widgets
+     * @throws ConstraintViolationException No free z-coordinates for shifting
+     */
+    Collection<Widget> insertAllAt(final Collection<WidgetDelta> deltas, final ZShiftStrategy strategy)
+            throws ConstraintViolationException;
+
+    /**
+     * Update widgets and move ones with z in delta: z-conflicts of whole batch are resolved in one shifting pass,
+     * position search, shifting and updating are one atomic operation
+     * @param changes Map of changes - (widgetId, widget delta)
+     * @param strategy Strategy of z-shifting
+     * @return Collection of updated widgets (without shifted ones)
+     * @throws IllegalArgumentException Illegal widgetDelta like null
+     * @throws NoSuchElementException No widget with such ID in repository
+     * @throws ConstraintViolationException No free z-coordinates for shifting
+     */
+    Collection<Widget> moveAllTo(final Map<Integer, WidgetDelta> changes, final ZShiftStrategy strategy)
+            throws IllegalArgumentException, NoSuchElementException, ConstraintViolationException;
 }
@@ -0,0 +1,67 @@
+package net.rychkov.lab.widgets.dal.repository;
+
+import net.rychkov.lab.widgets.dal.model.Widget;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Widgets ordered by z-coordinate - source for planning of z-shifting
+ * Usually view of repository z-index (valid only under repository lock), so only needed part is read
+ */
+public interface ZSequence {
+
+    /**
+     * Get count of widgets
+     * @return Count of widgets
+     */
+    int size();
+
+    /**
+     * Get min z
+     * @return Min z or null - if sequence is empty
+     */
+    Integer firstZ();
+
+    /**
+     * Get max z
+     * @return Max z or null - if sequence is empty
+     */
+    Integer lastZ();
+
+    /**
+     * Get widgets with z-coordinate not less than fromZ
+     * @param fromZ Low z (included)
+     * @return Iterator of widgets ordered by z
+     */
+    Iterator<Widget> tail(int fromZ);
+
+    /**
+     * Sequence of ordered list
+     * @param all Ordered by z list of widgets
+     * @return Sequence
+     */
+    static ZSequence of(final List<Widget> all) {
+        return new ZSequence() {
+            @Override
+            public int size() {
+                return all.size();
+            }
+
+            @Override
+            public Integer firstZ() {
+                return all.isEmpty() ? null : all.get(0).getZ();
+            }
+
+            @Override
+            public Integer lastZ() {
+                return all.isEmpty() ? null : all.get(all.size()-1).getZ();
+            }
+
+            @Override
+            public Iterator<Widget> tail(int fromZ) {
+                return all.subList(ZShiftStrategy.findInsertPosition(fromZ, all), all.size()).iterator();
+            }
+        };
+    }
+}
@@ -0,0 +1,355 @@
+package net.rychkov.lab.widgets.dal.repository;
+
+import net.rychkov.lab.widgets.dal.model.Widget;
+import net.rychkov.lab.widgets.dal.model.WidgetDelta;
+
+import javax.validation.constraints.NotNull;
+import java.util.*;
+
+/**
+ * Strategy of z-coordinate "shifting" - resolving of z conflicts when widget is inserted into z-sequence
+ */
+public abstract class ZShiftStrategy {
+
+    /**
+     * z-coordinate step for new widgets (max z of existed widgets plus step)
+     * will help in future updates
+     */
+    public static final int Z_STEP = 16;
+
+    /**
+     * Find position for inserting widget with z-coordinate in z-index
+     * @param z z-coordinate of widget
+     * @param index Z-index (not null)
+     * @return Position for inserting (index.size() for inserting after last element)
+     */
+    public static int findInsertPosition(int z, @NotNull List<Widget> index) {
+        int firstIndex = 0;
+        int lastIndex = index.size() - 1;
+
+        while(firstIndex <= lastIndex) {
+            int middleIndex = (firstIndex + lastIndex) / 2;
+
+            if (index.get(middleIndex).getZ() < z) {
+                // position after last element (middleIndex - last element) or position after middleIndex
+                if(index.size()<=middleIndex+1 || index.get(middleIndex+1).getZ() >= z) {
+                    return middleIndex+1;
+                }
+                else {
+                    // try right part
+                    firstIndex = middleIndex + 1;
+                }
+            }
+            else if (index.get(middleIndex).getZ() >= z) {
+                // position before first element (middleIndex - first element) or position at middleIndex
+                if(middleIndex==0 || index.get(middleIndex-1).getZ() < z) {
+                    return middleIndex;
+                }
+                else {
+                    // try left part
+                    lastIndex = middleIndex - 1;
+                }
+            }
+        }
+
+        // empty array - insert at first position
+        return 0;
+    }
+
+    /**
+     * Plan shifting of widgets for inserting widget
+     * @param widgetToBeInserted Widget for inserting - cause of shifting (its z can be changed)
+     * @param all Ordered by z collection of all widgets (without inserting widget)
+     * @return Changes of existed widgets (widgetId, delta with new z)
+     * @throws ConstraintViolationException No free z-coordinates for shifting
+     */
+    public Map<Integer, WidgetDelta> shift(WidgetDelta widgetToBeInserted, final List<Widget> all) throws ConstraintViolationException {
+        return shift(widgetToBeInserted, ZSequence.of(all));
+    }
+
+    /**
+     * Plan shifting of widgets for inserting widget
+     * Only widgets from insert position are read (as many as shifting needs)
+     * @param widgetToBeInserted Widget for inserting - cause of shifting (its z can be changed)
+     * @param sequence Ordered by z sequence of all widgets (without inserting widget)
+     * @return Changes of existed widgets (widgetId, delta with new z only)
+     * @throws ConstraintViolationException No free z-coordinates for shifting
+     */
+    public Map<Integer, WidgetDelta> shift(WidgetDelta widgetToBeInserted, final ZSequence sequence) throws ConstraintViolationException {
+
+        if(sequence.size()==0) {
+            // for first element in repository set z to 0
+            widgetToBeInserted.setZ(0);
+            return Collections.emptyMap();
+        }
+
+        int z = widgetToBeInserted.getZ();
+
+        if(sequence.firstZ()>=z) {
+            // first element
+            widgetToBeInserted.setZ(sequence.firstZ()-Z_STEP);
+            return Collections.emptyMap();
+        }
+
+        if(sequence.lastZ()<z) {
+            // last element
+            widgetToBeInserted.setZ(sequence.lastZ()+Z_STEP);
+            return Collections.emptyMap();
+        }
+
+        Tail tail = new Tail(sequence.tail(z));
+
+        // sequence is changed concurrently (view is weakly consistent outside of locked range) - nothing to shift
+        if(tail.get(0)==null) {
+            return Collections.emptyMap();
+        }
+
+        // middle element
+        return shiftMiddle(z, tail, sequence.size());
+    }
+
+    /**
+     * Plan shifting of widgets for inserting batch of widgets - one pass for whole batch
+     * Edges are placed like by shift in order of batch (0 for empty sequence, step before first or after last),
+     * other inserted widgets keep their z if it's free, conflicting widgets (existed or inserted with same z)
+     * are pushed up to the middle of gap to next widget, existed widget at z of inserted one is pushed too
+     * Only widgets from lowest z of batch are read (as many as shifting needs)
+     * @param widgetsToBeInserted Widgets for inserting (z must be not null, can be changed)
+     * @param sequence Ordered by z sequence of all widgets (without inserting widgets)
+     * @return Changes of existed widgets (widgetId, delta with new z only)
+     * @throws ConstraintViolationException No free z-coordinates for shifting
+     */
+    public Map<Integer, WidgetDelta> shiftAll(final List<WidgetDelta> widgetsToBeInserted, final ZSequence sequence)
+            throws ConstraintViolationException {
+        return shiftAll(widgetsToBeInserted, sequence, Collections.emptySet(), false);
+    }
+
+    /**
+     * Plan moving of batch of widgets - one pass for whole batch
+     * Moved widgets (with z in delta) are placed like inserted ones (see shiftAll), but only z of first widget
+     * is an edge (like moveTo shifts only on conflict), other widgets of batch keep their z (if they aren't shifted)
+     * @param changes Changes of widgets (widgetId, delta)
+     * @param sequence Ordered by z sequence of all widgets (with changed widgets)
+     * @return All changes (widgetId, delta): changes of batch with planned z and changes of shifted widgets
+     * @throws ConstraintViolationException No free z-coordinates for shifting
+     */
+    public Map<Integer, WidgetDelta> moveAll(final Map<Integer, WidgetDelta> changes, final ZSequence sequence)
+            throws ConstraintViolationException {
+
+        // moved widgets are out of z-sequence while shifting is planned
+        Map<Integer, WidgetDelta> moved = new LinkedHashMap<>();
+        changes.forEach((id, delta) -> {
+            if(delta.getZ()!=null) {
+                moved.put(id, new WidgetDelta(delta.getX(), delta.getY(), delta.getZ(), delta.getWidth(), delta.getHeight()));
+            }
+        });
+
+        Map<Integer, WidgetDelta> result = shiftAll(new ArrayList<>(moved.values()), sequence, moved.keySet(), true);
+
+        changes.forEach((id, delta) -> {
+            WidgetDelta shifted = result.get(id);
+            if(moved.containsKey(id)) {
+                result.put(id, moved.get(id));
+            }
+            else if(shifted!=null) {
+                result.put(id, new WidgetDelta(delta.getX(), delta.getY(), shifted.getZ(), delta.getWidth(), delta.getHeight()));
+            }
+            else {
+                result.put(id, delta);
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Plan shifting for batch
+     * @param excludedIds Widgets of sequence which are out of it while shifting is planned (moved ones)
+     * @param moving Widgets are moved - free z is always kept, only z of first widget is an edge
+     */
+    private Map<Integer, WidgetDelta> shiftAll(final List<WidgetDelta> widgetsToBeInserted, final ZSequence sequence,
+                                               final Set<Integer> excludedIds, boolean moving)
+            throws ConstraintViolationException {
+
+        Map<Integer, WidgetDelta> updateQueue = new HashMap<>();
+
+        if(widgetsToBeInserted.isEmpty()) {
+            return updateQueue;
+        }
+
+        placeEdges(widgetsToBeInserted, sequence, excludedIds, moving);
+
+        // stable sort - inserted widgets with same z keep order of batch
+        List<WidgetDelta> inserted = new ArrayList<>(widgetsToBeInserted);
+        inserted.sort(Comparator.comparing(WidgetDelta::getZ));
+
+        Iterator<Widget> tail = sequence.tail(inserted.get(0).getZ());
+        Widget next = nextWidget(tail, excludedIds);
+
+        // z of last placed widget of merged sequence
+        long lastZ = Long.MIN_VALUE;
+
+        for(int i=0; i<inserted.size(); i++) {
+            WidgetDelta delta = inserted.get(i);
+
+            // existed widgets before inserted one (pushed if needed)
+            while(next!=null && next.getZ()<delta.getZ()) {
+                Widget following = nextWidget(tail, excludedIds);
+                lastZ = place(next.getZ(), lastZ, following!=null ? Math.min(following.getZ(), delta.getZ()) : delta.getZ());
+                if(lastZ!=next.getZ()) {
+                    updateQueue.put(next.getId(), new WidgetDelta(null, null, (int)lastZ, null, null));
+                }
+                next = following;
+            }
+
+            // next in merged sequence: inserted widget with not greater z or existed widget
+            Integer followingZ = next!=null ? next.getZ() : null;
+            if(i+1<inserted.size() && (followingZ==null || inserted.get(i+1).getZ()<=followingZ)) {
+                followingZ = inserted.get(i+1).getZ();
+            }
+
+            lastZ = place(delta.getZ(), lastZ, followingZ);
+            delta.setZ((int)lastZ);
+        }
+
+        // existed widgets after batch - until the first one without conflict
+        while(next!=null && next.getZ()<=lastZ) {
+            Widget following = nextWidget(tail, excludedIds);
+            lastZ = place(next.getZ(), lastZ, following!=null ? following.getZ() : null);
+            updateQueue.put(next.getId(), new WidgetDelta(null, null, (int)lastZ, null, null));
+            next = following;
+        }
+
+        return updateQueue;
+    }
+
+    /**
+     * Place widgets at edges of sequence like shift does it for one widget (one by one in order of batch)
+     * @param widgetsToBeInserted Widgets of batch (z can be changed)
+     * @param sequence Ordered by z sequence of all widgets
+     * @param excludedIds Widgets of sequence which are out of it
+     * @param moving Free z is kept - only z of first widget is an edge
+     */
+    private static void placeEdges(final List<WidgetDelta> widgetsToBeInserted, final ZSequence sequence,
+                                   final Set<Integer> excludedIds, boolean moving) {
+
+        Integer firstZ;
+        Integer lastZ;
+        if(!moving) {
+            firstZ = sequence.firstZ();
+            lastZ = sequence.lastZ();
+        }
+        else {
+            Widget first = nextWidget(sequence.tail(Integer.MIN_VALUE), excludedIds);
+            firstZ = first!=null ? first.getZ() : null;
+            // last z isn't an edge for moving
+            lastZ = null;
+        }
+
+        for(WidgetDelta delta : widgetsToBeInserted) {
+            int z = delta.getZ();
+
+            if(firstZ==null) {
+                // first element in sequence
+                if(!moving) {
+                    z = 0;
+                }
+                firstZ = z;
+                lastZ = z;
+            }
+            else if(z<=firstZ) {
+                // before first element (moved widget keeps free z)
+                if(!moving || z==firstZ) {
+                    z = firstZ - Z_STEP;
+                }
+                firstZ = z;
+            }
+            else if(!moving && z>lastZ) {
+                // after last element
+                z = lastZ + Z_STEP;
+                lastZ = z;
+            }
+
+            delta.setZ(z);
+        }
+    }
+
+    /**
+     * Get z for widget of merged sequence
+     * @param z Wanted z
+     * @param lastZ z of previous widget
+     * @param followingZ z of next widget (null - no more widgets)
+     * @return Wanted z if it's free or middle of gap between previous and next widget
+     * @throws ConstraintViolationException No free z-coordinates
+     */
+    private static long place(int z, long lastZ, final Integer followingZ) throws ConstraintViolationException {
+        if(z>lastZ) {
+            return z;
+        }
+
+        long newZ = lastZ + (followingZ==null ? Z_STEP : Math.max(1, (followingZ-lastZ)/2));
+
+        if(newZ>Integer.MAX_VALUE) {
+            throw new ConstraintViolationException("No free z-coordinates for shifting");
+        }
+
+        return newZ;
+    }
+
+    private static Widget nextWidget(final Iterator<Widget> tail, final Set<Integer> excludedIds) {
+        while(tail.hasNext()) {
+            Widget widget = tail.next();
+            if(!excludedIds.contains(widget.getId())) {
+                return widget;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Plan shifting of widgets for inserting widget into middle of z-sequence
+     * @param z z-coordinate of inserting widget (is kept)
+     * @param tail Widgets from insert position (at least one)
+     * @param allSize Count of all widgets
+     * @return Changes of existed widgets (widgetId, delta with new z)
+     * @throws ConstraintViolationException No free z-coordinates for shifting
+     */
+    protected abstract Map<Integer, WidgetDelta> shiftMiddle(int z, final Tail tail, int allSize)
+            throws ConstraintViolationException;
+
+    /**
+     * Widgets of z-sequence from insert position, read from source on demand
+     */
+    protected static final class Tail {
+
+        private final Iterator<Widget> source;
+
+        private final List<Widget> read = new ArrayList<>();
+
+        Tail(final Iterator<Widget> source) {
+            this.source = source;
+        }
+
+        /**
+         * Get widget by position (from insert position)
+         * @param i Position (0 - widget at insert position)
+         * @return Widget or null - if position is after last widget
+         */
+        public Widget get(int i) {
+            while(read.size()<=i && source.hasNext()) {
+                read.add(source.next());
+            }
+            return i<read.size() ? read.get(i) : null;
+        }
+
+        /**
+         * Get count of widgets, but not more than max
+         * @param max Max count
+         * @return Count of widgets
+         */
+        public int count(int max) {
+            get(max-1);
+            return Math.min(max, read.size());
+        }
+    }
+}
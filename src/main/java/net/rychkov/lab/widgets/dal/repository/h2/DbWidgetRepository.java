@@ -1,11 +1,16 @@
 package net.rychkov.lab.widgets.dal.repository.h2;
 
 import net.rychkov.lab.widgets.dal.model.Widget;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 
 import java.util.Collection;
+import java.util.Date;
+import java.util.Optional;
 
 
 public interface DbWidgetRepository extends JpaRepository<Widget, Integer> {
@@ -16,4 +21,71 @@ public interface DbWidgetRepository extends JpaRepository<Widget, Integer> {
      */
     @Query("select max(z) from Widget")
     Integer getMaxZ();
+
+    /**
+     * Get min z value
+     * @return min z value
+     */
+    @Query("select min(z) from Widget")
+    Integer getMinZ();
+
+    /**
+     * Check existence of other widget with z value
+     * @param z z value
+     * @param id Excluded widget ID
+     * @return true - if exists
+     */
+    boolean existsByZAndIdNot(int z, int id);
+
+    /**
+     * Count of widgets except one
+     * @param id Excluded widget ID
+     * @return Count of widgets
+     */
+    long countByIdNot(int id);
+
+    /**
+     * Get widget with min z except one
+     * @param id Excluded widget ID
+     * @return Widget with min z
+     */
+    Optional<Widget> findFirstByIdNotOrderByZAsc(int id);
+
+    /**
+     * Get widget with max z except one
+     * @param id Excluded widget ID
+     * @return Widget with max z
+     */
+    Optional<Widget> findFirstByIdNotOrderByZDesc(int id);
+
+    /**
+     * Get slice of widgets with z not less than value except one, ordered by z
+     * @param z Low z value (included)
+     * @param id Excluded widget ID
+     * @param pageable Slice
+     * @return Slice of widgets
+     */
+    Slice<Widget> findByZGreaterThanEqualAndIdNotOrderByZAsc(int z, int id, Pageable pageable);
+
+    /**
+     * Get slice of widgets with z greater than value except one, ordered by z
+     * @param z Low z value (excluded)
+     * @param id Excluded widget ID
+     * @param pageable Slice
+     * @return Slice of widgets
+     */
+    Slice<Widget> findByZGreaterThanAndIdNotOrderByZAsc(int z, int id, Pageable pageable);
+
+    /**
+     * Shift z of all widgets in z-range by one statement
+     * (h2 checks unique z after whole statement, so the range can overlap with its new place)
+     * @param fromZ Low z (included)
+     * @param toZ High z (included)
+     * @param offset z offset
+     * @param date Last modification date
+     * @return Count of shifted widgets
+     */
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query("update Widget w set w.z = w.z + :offset, w.lastModificationDate = :date where w.z between :fromZ and :toZ")
+    int shiftZ(@Param("fromZ") int fromZ, @Param("toZ") int toZ, @Param("offset") int offset, @Param("date") Date date);
 }
@@ -0,0 +1,97 @@
+package net.rychkov.lab.widgets.dal.repository.h2;
+
+import net.rychkov.lab.widgets.dal.model.Widget;
+import net.rychkov.lab.widgets.dal.repository.ZSequence;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Slice;
+
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * Widgets of database ordered by z-coordinate (for planning of z-shifting)
+ * Tail is read by slices on demand, read widgets are kept (origin of planned shifting)
+ */
+class DbZSequence implements ZSequence {
+
+    private static final int MIN_SLICE_SIZE = 64;
+
+    private static final int MAX_SLICE_SIZE = 4096;
+
+    private final DbWidgetRepository db;
+
+    /**
+     * Excluded widget ID (0 - no excluded widget, IDs start from 1)
+     */
+    private final int excludedId;
+
+    /**
+     * Widgets read by tail (z -> widget)
+     */
+    private final NavigableMap<Integer, Widget> read = new TreeMap<>();
+
+    DbZSequence(final DbWidgetRepository db, int excludedId) {
+        this.db = db;
+        this.excludedId = excludedId;
+    }
+
+    /**
+     * Get widgets read by tail
+     * @return Widgets by z
+     */
+    NavigableMap<Integer, Widget> getRead() {
+        return read;
+    }
+
+    @Override
+    public int size() {
+        return (int)db.countByIdNot(excludedId);
+    }
+
+    @Override
+    public Integer firstZ() {
+        return db.findFirstByIdNotOrderByZAsc(excludedId).map(Widget::getZ).orElse(null);
+    }
+
+    @Override
+    public Integer lastZ() {
+        return db.findFirstByIdNotOrderByZDesc(excludedId).map(Widget::getZ).orElse(null);
+    }
+
+    @Override
+    public Iterator<Widget> tail(int fromZ) {
+        return new Iterator<Widget>() {
+
+            private int sliceSize = MIN_SLICE_SIZE;
+
+            private Slice<Widget> slice =
+                    db.findByZGreaterThanEqualAndIdNotOrderByZAsc(fromZ, excludedId, PageRequest.of(0, sliceSize));
+
+            private Iterator<Widget> current = slice.iterator();
+
+            @Override
+            public boolean hasNext() {
+                if(!current.hasNext() && slice.hasNext()) {
+                    // next slice after last read widget (keyset), long tails are read by growing slices
+                    int lastZ = slice.getContent().get(slice.getNumberOfElements() - 1).getZ();
+                    sliceSize = Math.min(sliceSize * 2, MAX_SLICE_SIZE);
+                    slice = db.findByZGreaterThanAndIdNotOrderByZAsc(lastZ, excludedId, PageRequest.of(0, sliceSize));
+                    current = slice.iterator();
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public Widget next() {
+                if(!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Widget widget = current.next();
+                read.put(widget.getZ(), widget);
+                return widget;
+            }
+        };
+    }
+}
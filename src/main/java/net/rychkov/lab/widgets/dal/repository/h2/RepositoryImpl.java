@@ -1,17 +1,22 @@
 package net.rychkov.lab.widgets.dal.repository.h2;
 
+import net.rychkov.lab.widgets.dal.model.Page;
 import net.rychkov.lab.widgets.dal.model.Widget;
+import net.rychkov.lab.widgets.dal.model.WidgetChange;
 import net.rychkov.lab.widgets.dal.model.WidgetDelta;
 import net.rychkov.lab.widgets.dal.repository.ConstraintViolationException;
+import net.rychkov.lab.widgets.dal.repository.WidgetChangeFeed;
 import net.rychkov.lab.widgets.dal.repository.WidgetRepository;
-import org.springframework.data.domain.*;
+import net.rychkov.lab.widgets.dal.repository.ZShiftStrategy;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
 
-import javax.transaction.NotSupportedException;
-import java.util.Collection;
-import java.util.List;
-import java.util.Map;
-import java.util.NoSuchElementException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 
@@ -26,47 +31,66 @@ public class RepositoryImpl implements WidgetRepository {
     ClassLoader cl;
 
     /**
-     * Sort for z-coordinate
+     * JDBC template (read-only fast path - rows are mapped directly to widgets)
      */
-    private final Sort zSort;
+    private final JdbcTemplate jdbc;
 
     /**
-     * Transactions lock (only one transaction at same time)
+     * Transactions lock (only one write at same time)
+     * Violations of unique z in database are reported as ConstraintViolationException (caller can retry)
      */
     private final ReentrantLock txLock;
 
-    public RepositoryImpl(DbWidgetRepository db) {
+    /**
+     * Transaction manager (for shifting - whole transaction under txLock)
+     */
+    private final PlatformTransactionManager transactionManager;
+
+    /**
+     * Modification version (incremented after every successful write)
+     */
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * Published changes (after commit)
+     */
+    private final WidgetChangeFeed changeFeed = new WidgetChangeFeed();
+
+    public RepositoryImpl(DbWidgetRepository db, PlatformTransactionManager transactionManager, JdbcTemplate jdbc) {
         this.db = db;
-        this.zSort = Sort.by(Sort.Direction.ASC, "z");
+        this.transactionManager = transactionManager;
+        this.jdbc = jdbc;
         txLock = new ReentrantLock();
     }
 
     // region Read
 
-    public net.rychkov.lab.widgets.dal.model.Page<Widget> getAll(Pageable pageable) {
-        Page<Widget> page = db.findAll(pageable);
+    @Override
+    public Collection<Widget> getAllOrderByZ() {
+        return jdbc.query(WidgetRowMapper.SELECT + " order by z", WidgetRowMapper.INSTANCE);
+    }
 
-        net.rychkov.lab.widgets.dal.model.Page<Widget> result =
-                new net.rychkov.lab.widgets.dal.model.Page<Widget>(
-                        pageable.getPageNumber(),
-                        pageable.getPageSize(),
-                        page.getTotalPages(),
-                        (int)page.getTotalElements(),
-                        page.get().collect(Collectors.toList())
-                );
+    @Override
+    public Page<Widget> getAllOrderByZ(int pageNum, int pageSize) {
+        if(pageNum<0 || pageSize<1) {
+            throw new IllegalArgumentException("Wrong page " + pageNum + " of size " + pageSize);
+        }
 
-        return result;
+        List<Widget> widgets = jdbc.query(WidgetRowMapper.SELECT + " order by z limit ? offset ?", WidgetRowMapper.INSTANCE,
+                pageSize, (long)pageNum * pageSize);
 
-    }
+        // count of all rows is taken from table metadata by h2
+        int count = jdbc.queryForObject("select count(*) from widget", Integer.class);
 
-    @Override
-    public Collection<Widget> getAllOrderByZ() {
-        return db.findAll(zSort);
+        return new Page<>(pageNum, pageSize, (count + pageSize - 1) / pageSize, count, widgets);
     }
 
     @Override
-    public net.rychkov.lab.widgets.dal.model.Page<Widget> getAllOrderByZ(int pageNum, int pageSize) {
-        return getAll(PageRequest.of(pageNum,pageSize, zSort));
+    public Collection<Widget> getAllOrderByZAfter(Integer afterZ, int limit) {
+        if(afterZ==null) {
+            return jdbc.query(WidgetRowMapper.SELECT + " order by z limit ?", WidgetRowMapper.INSTANCE, limit);
+        }
+        return jdbc.query(WidgetRowMapper.SELECT + " where z > ? order by z limit ?", WidgetRowMapper.INSTANCE, afterZ, limit);
     }
 
     @Override
@@ -75,19 +99,47 @@ public class RepositoryImpl implements WidgetRepository {
     }
 
     @Override
-    public Collection<Widget> getFilteredByRectangle(int x1, int y1, int x2, int y2) throws NotSupportedException {
-        throw new NotSupportedException();
+    public long getVersion() {
+        return version.get();
+    }
+
+    @Override
+    public WidgetChangeFeed getChangeFeed() {
+        return changeFeed;
+    }
+
+    @Override
+    public Collection<Widget> getFilteredByRectangle(int x1, int y1, int x2, int y2) {
+        // left (top) border is bounded from both sides (it isn't greater than right one) - range of composite index,
+        // other borders are checked inside index
+        return jdbc.query(WidgetRowMapper.SELECT + " where left_bound between ? and ? and top_bound between ? and ?" +
+                " and right_bound <= ? and bottom_bound <= ?", WidgetRowMapper.INSTANCE, x1, x2, y1, y2, x2, y2);
     }
 
     @Override
     public Widget get(int id) {
-        return db.findById(id).orElse(null);
+        List<Widget> widgets = jdbc.query(WidgetRowMapper.SELECT + " where id = ?", WidgetRowMapper.INSTANCE, id);
+        return widgets.isEmpty() ? null : widgets.get(0);
     }
 
     // endregion
 
     // region Write
 
+    /**
+     * Complete successful write: increment version and publish changes
+     * @param changed Images of changed widgets
+     * @param removedIds IDs of removed widgets
+     */
+    private void completeWrite(final Collection<Widget> changed, final Collection<Integer> removedIds) {
+        version.incrementAndGet();
+
+        List<WidgetChange> changes = new ArrayList<>(changed.size() + removedIds.size());
+        changed.forEach(w -> changes.add(WidgetChange.put(w)));
+        removedIds.forEach(id -> changes.add(WidgetChange.removed(id)));
+        changeFeed.publish(changes);
+    }
+
     @Override
     public Widget add(WidgetDelta widgetDelta) throws ConstraintViolationException {
 
@@ -95,37 +147,66 @@ public class RepositoryImpl implements WidgetRepository {
             throw new IllegalArgumentException();
         }
 
-        Widget newWidget = widgetDelta.createNewWidget(0);
-        db.saveAndFlush(newWidget);
-        return newWidget;
+        txLock.lock();
+        try {
+            Widget newWidget = widgetDelta.createNewWidget(0);
+            db.saveAndFlush(newWidget);
+            completeWrite(Collections.singletonList(newWidget), Collections.emptyList());
+            return newWidget;
+        }
+        catch(DataIntegrityViolationException e) {
+            throw new ConstraintViolationException(e);
+        }
+        finally {
+            txLock.unlock();
+        }
     }
 
     @Override
     public Collection<Widget> addAll(Collection<WidgetDelta> deltas) throws ConstraintViolationException {
+        txLock.lock();
         try {
             Collection<Widget> result = db.saveAll(deltas.stream().map(d -> d.createNewWidget(0)).collect(Collectors.toList()));
             db.flush();
+            completeWrite(result, Collections.emptyList());
             return result;
         }
-        catch(org.hibernate.exception.ConstraintViolationException e) {
+        catch(DataIntegrityViolationException e) {
             throw new ConstraintViolationException(e);
         }
+        finally {
+            txLock.unlock();
+        }
     }
 
     @Override
     public Widget remove(int id) {
-        Widget widget = db.getOne(id);
-        db.deleteById(id);
-        db.flush();
-        return widget;
+        txLock.lock();
+        try {
+            Widget widget = db.getOne(id);
+            db.deleteById(id);
+            db.flush();
+            completeWrite(Collections.emptyList(), Collections.singletonList(id));
+            return widget;
+        }
+        finally {
+            txLock.unlock();
+        }
     }
 
     @Override
     public Collection<Widget> removeAll(Collection<Integer> ids) {
-        Collection<Widget> result = db.findAllById(ids);
-        db.deleteAll(result);
-        db.flush();
-        return result;
+        txLock.lock();
+        try {
+            Collection<Widget> result = db.findAllById(ids);
+            db.deleteAll(result);
+            db.flush();
+            completeWrite(Collections.emptyList(), result.stream().map(Widget::getId).collect(Collectors.toList()));
+            return result;
+        }
+        finally {
+            txLock.unlock();
+        }
     }
 
     @Override
@@ -135,20 +216,332 @@ public class RepositoryImpl implements WidgetRepository {
             throw new IllegalArgumentException();
         }
 
-        Widget origin = db.getOne(widgetId);
-        Widget newWidget = widgetDelta.createUpdatedWidget(origin);
-        db.saveAndFlush(newWidget);
-        return newWidget;
+        txLock.lock();
+        try {
+            Widget origin = db.getOne(widgetId);
+            Widget newWidget = widgetDelta.createUpdatedWidget(origin);
+            db.saveAndFlush(newWidget);
+            completeWrite(Collections.singletonList(newWidget), Collections.emptyList());
+            return newWidget;
+        }
+        catch(DataIntegrityViolationException e) {
+            throw new ConstraintViolationException(e);
+        }
+        finally {
+            txLock.unlock();
+        }
     }
 
     @Override
     public Collection<Widget> updateAll(Map<Integer, WidgetDelta> changes) throws IllegalArgumentException, NoSuchElementException, ConstraintViolationException {
 
-        List<Widget> origin = db.findAllById(changes.keySet());
-        List<Widget> updated = origin.stream().map(w -> changes.get(w.getId()).createUpdatedWidget(w)).collect(Collectors.toList());
-        db.saveAll(updated);
-        db.flush();
-        return updated;
+        txLock.lock();
+        try {
+            List<Widget> origin = db.findAllById(changes.keySet());
+            List<Widget> updated = origin.stream().map(w -> changes.get(w.getId()).createUpdatedWidget(w)).collect(Collectors.toList());
+            db.saveAll(updated);
+            db.flush();
+            completeWrite(updated, Collections.emptyList());
+            return updated;
+        }
+        catch(DataIntegrityViolationException e) {
+            throw new ConstraintViolationException(e);
+        }
+        finally {
+            txLock.unlock();
+        }
+    }
+
+    /**
+     * Shifted widgets - neighbours in z-sequence with the same z offset
+     */
+    private static final class ZRun {
+
+        final int fromZ;
+
+        int toZ;
+
+        final int offset;
+
+        int count;
+
+        ZRun(int fromZ, int offset) {
+            this.fromZ = fromZ;
+            this.toZ = fromZ;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Apply z-shifting by set-based updates: each run of shifted widgets is moved by one statement
+     * Runs moved up are applied from the highest, then runs moved down - from the lowest,
+     * so z stays unique after each statement
+     * @param shifted Planned changes (widgetId, delta with new z)
+     * @param sequence Sequence used for planning (all shifted widgets are read from it)
+     * @return Shifted widgets
+     */
+    private List<Widget> applyShift(final Map<Integer, WidgetDelta> shifted, final DbZSequence sequence) {
+        List<Widget> result = new ArrayList<>();
+
+        if(shifted.isEmpty()) {
+            return result;
+        }
+
+        Date date = new Date();
+
+        List<ZRun> up = new ArrayList<>();
+        List<ZRun> down = new ArrayList<>();
+
+        int found = 0;
+        ZRun run = null;
+        for(Widget w : sequence.getRead().values()) {
+            WidgetDelta delta = shifted.get(w.getId());
+            int offset = delta!=null ? delta.getZ() - w.getZ() : 0;
+
+            if(delta!=null) {
+                found++;
+            }
+
+            if(run!=null && run.offset!=offset) {
+                run = null;
+            }
+            if(offset==0) {
+                continue;
+            }
+
+            if(run==null) {
+                run = new ZRun(w.getZ(), offset);
+                (offset>0 ? up : down).add(run);
+            }
+            run.toZ = w.getZ();
+            run.count++;
+
+            result.add(new Widget(w.getId(), w.getX(), w.getY(), w.getZ() + offset, w.getWidth(), w.getHeight(), date));
+        }
+
+        if(found!=shifted.size()) {
+            throw new IllegalStateException("Shifted widgets aren't read from z-sequence");
+        }
+
+        up.sort(Comparator.comparing((ZRun r) -> r.fromZ).reversed());
+        down.sort(Comparator.comparing(r -> r.fromZ));
+
+        for(List<ZRun> runs : Arrays.asList(up, down)) {
+            for(ZRun r : runs) {
+                // every widget of range must be planned (range isn't changed concurrently under txLock)
+                if(db.shiftZ(r.fromZ, r.toZ, r.offset, date)!=r.count) {
+                    throw new IllegalStateException("z-range " + r.fromZ + ".." + r.toZ + " is changed while shifting");
+                }
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public Widget insertAt(WidgetDelta widgetDelta, ZShiftStrategy strategy) throws ConstraintViolationException {
+
+        if(widgetDelta==null || widgetDelta.getZ()==null) {
+            throw new IllegalArgumentException();
+        }
+
+        txLock.lock();
+        TransactionStatus tx = transactionManager.getTransaction(new DefaultTransactionDefinition());
+        try {
+            DbZSequence sequence = new DbZSequence(db, 0);
+            List<Widget> changed = applyShift(strategy.shift(widgetDelta, sequence), sequence);
+
+            Widget newWidget = widgetDelta.createNewWidget(0);
+            db.saveAndFlush(newWidget);
+            changed.add(newWidget);
+
+            transactionManager.commit(tx);
+            completeWrite(changed, Collections.emptyList());
+            return newWidget;
+        }
+        catch(DataIntegrityViolationException e) {
+            transactionManager.rollback(tx);
+            throw new ConstraintViolationException(e);
+        }
+        catch(ConstraintViolationException | RuntimeException e) {
+            transactionManager.rollback(tx);
+            throw e;
+        }
+        finally {
+            txLock.unlock();
+        }
+    }
+
+    /**
+     * Parking z below given z (widget is parked below all z while others are shifted)
+     * @throws ConstraintViolationException z is minimal integer, there is no free z below
+     */
+    private static int below(int z) throws ConstraintViolationException {
+        try {
+            return Math.subtractExact(z, 1);
+        }
+        catch(ArithmeticException e) {
+            throw new ConstraintViolationException("No free z below " + z + " for parking");
+        }
+    }
+
+    @Override
+    public Widget moveTo(int widgetId, WidgetDelta widgetDelta, ZShiftStrategy strategy)
+            throws IllegalArgumentException, NoSuchElementException, ConstraintViolationException {
+
+        if(widgetDelta==null || widgetDelta.getZ()==null) {
+            throw new IllegalArgumentException();
+        }
+
+        txLock.lock();
+        TransactionStatus tx = transactionManager.getTransaction(new DefaultTransactionDefinition());
+        try {
+            Widget origin = db.findById(widgetId).orElseThrow(() -> new NoSuchElementException("No widgets with id "+widgetId));
+
+            List<Widget> changed = new ArrayList<>();
+
+            // shift only on z-coordinate conflict
+            if(db.existsByZAndIdNot(widgetDelta.getZ(), widgetId)) {
+                DbZSequence sequence = new DbZSequence(db, widgetId);
+                Map<Integer, WidgetDelta> shifted = strategy.shift(widgetDelta, sequence);
+
+                // free z of moved widget - shifted widget can take it
+                origin = db.saveAndFlush(new WidgetDelta(null, null, below(db.getMinZ()), null, null).createUpdatedWidget(origin));
+
+                changed.addAll(applyShift(shifted, sequence));
+            }
+
+            Widget newWidget = widgetDelta.createUpdatedWidget(origin);
+            if(newWidget!=null) {
+                db.saveAndFlush(newWidget);
+            }
+            changed.add(newWidget!=null ? newWidget : origin);
+
+            transactionManager.commit(tx);
+            completeWrite(changed, Collections.emptyList());
+            return newWidget!=null ? newWidget : origin;
+        }
+        catch(DataIntegrityViolationException e) {
+            transactionManager.rollback(tx);
+            throw new ConstraintViolationException(e);
+        }
+        catch(ConstraintViolationException | RuntimeException e) {
+            transactionManager.rollback(tx);
+            throw e;
+        }
+        finally {
+            txLock.unlock();
+        }
+    }
+
+    @Override
+    public Collection<Widget> insertAllAt(Collection<WidgetDelta> deltas, ZShiftStrategy strategy) throws ConstraintViolationException {
+
+        if(deltas.stream().anyMatch(d -> d==null || d.getZ()==null)) {
+            throw new IllegalArgumentException();
+        }
+
+        txLock.lock();
+        TransactionStatus tx = transactionManager.getTransaction(new DefaultTransactionDefinition());
+        try {
+            List<WidgetDelta> planned = deltas.stream()
+                    .map(d -> new WidgetDelta(d.getX(), d.getY(), d.getZ(), d.getWidth(), d.getHeight()))
+                    .collect(Collectors.toList());
+
+            // batch only pushes widgets up keeping their order
+            DbZSequence sequence = new DbZSequence(db, 0);
+            List<Widget> changed = applyShift(strategy.shiftAll(planned, sequence), sequence);
+
+            List<Widget> result = db.saveAll(planned.stream().map(d -> d.createNewWidget(0)).collect(Collectors.toList()));
+            db.flush();
+            changed.addAll(result);
+
+            transactionManager.commit(tx);
+            completeWrite(changed, Collections.emptyList());
+            return result;
+        }
+        catch(DataIntegrityViolationException e) {
+            transactionManager.rollback(tx);
+            throw new ConstraintViolationException(e);
+        }
+        catch(ConstraintViolationException | RuntimeException e) {
+            transactionManager.rollback(tx);
+            throw e;
+        }
+        finally {
+            txLock.unlock();
+        }
+    }
+
+    @Override
+    public Collection<Widget> moveAllTo(Map<Integer, WidgetDelta> changes, ZShiftStrategy strategy)
+            throws IllegalArgumentException, NoSuchElementException, ConstraintViolationException {
+
+        if(changes.values().stream().anyMatch(Objects::isNull)) {
+            throw new IllegalArgumentException();
+        }
+
+        txLock.lock();
+        TransactionStatus tx = transactionManager.getTransaction(new DefaultTransactionDefinition());
+        try {
+            if(db.findAllById(changes.keySet()).size()!=changes.size()) {
+                throw new NoSuchElementException("No widgets with some of id "+changes.keySet());
+            }
+
+            Map<Integer, WidgetDelta> all = strategy.moveAll(changes, new DbZSequence(db, 0));
+
+            List<Widget> origin = db.findAllById(all.keySet());
+
+            // z of origin (managed entities are overwritten by parking)
+            Map<Integer, Integer> originZ = new HashMap<>();
+            origin.forEach(w -> originZ.put(w.getId(), w.getZ()));
+
+            // order of moved widgets can be changed - park all changed widgets below all z first
+            int minZ = db.getMinZ();
+            for(WidgetDelta wd : all.values()) {
+                if(wd.getZ()!=null) {
+                    minZ = Math.min(minZ, wd.getZ());
+                }
+            }
+
+            List<Widget> parked = new ArrayList<>();
+            for(Widget w : origin) {
+                minZ = below(minZ);
+                parked.add(db.saveAndFlush(new WidgetDelta(null, null, minZ, null, null).createUpdatedWidget(w)));
+            }
+
+            List<Widget> changed = new ArrayList<>();
+            List<Widget> result = new ArrayList<>();
+            for(int i=0; i<origin.size(); i++) {
+                Widget w = origin.get(i);
+                WidgetDelta wd = all.get(w.getId());
+
+                // keep origin z if delta has no z
+                Widget updated = new WidgetDelta(wd.getX(), wd.getY(), wd.getZ()!=null ? wd.getZ() : originZ.get(w.getId()),
+                        wd.getWidth(), wd.getHeight()).createUpdatedWidget(parked.get(i));
+                db.saveAndFlush(updated);
+                changed.add(updated);
+
+                if(changes.containsKey(w.getId())) {
+                    result.add(updated);
+                }
+            }
+
+            transactionManager.commit(tx);
+            completeWrite(changed, Collections.emptyList());
+            return result;
+        }
+        catch(DataIntegrityViolationException e) {
+            transactionManager.rollback(tx);
+            throw new ConstraintViolationException(e);
+        }
+        catch(ConstraintViolationException | RuntimeException e) {
+            transactionManager.rollback(tx);
+            throw e;
+        }
+        finally {
+            txLock.unlock();
+        }
     }
 
     // endregion
@@ -0,0 +1,147 @@
+package net.rychkov.lab.widgets.dal.repository.h2;
+
+import net.rychkov.lab.widgets.dal.model.Page;
+import net.rychkov.lab.widgets.dal.model.Widget;
+import net.rychkov.lab.widgets.dal.model.WidgetDelta;
+import net.rychkov.lab.widgets.dal.repository.ConstraintViolationException;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.SpatialIndex;
+import net.rychkov.lab.widgets.dal.repository.WidgetChangeFeed;
+import net.rychkov.lab.widgets.dal.repository.WidgetRepository;
+import net.rychkov.lab.widgets.dal.repository.ZShiftStrategy;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+
+/**
+ * H2 repository with spatial index (MVStore R-tree) of widget bounds
+ * Bounding box is geometry column computed by database from borders (see import.sql),
+ * rectangle filter selects candidates by intersection of bounding boxes (spatial index),
+ * exact containment is checked afterwards
+ * All other operations go to h2 repository, so both beans share version, change feed and write lock
+ */
+@Lazy
+@Repository("h2Spatial")
+public class SpatialRepositoryImpl implements WidgetRepository {
+
+    private final WidgetRepository repository;
+
+    private final JdbcTemplate jdbc;
+
+    public SpatialRepositoryImpl(@Qualifier("h2") WidgetRepository repository, JdbcTemplate jdbc) {
+        this.repository = repository;
+        this.jdbc = jdbc;
+    }
+
+    /**
+     * Polygon of rectangle (WKT)
+     */
+    private static String polygon(int x1, int y1, int x2, int y2) {
+        return "POLYGON ((" + x1 + " " + y1 + ", " + x2 + " " + y1 + ", " + x2 + " " + y2 + ", " +
+                x1 + " " + y2 + ", " + x1 + " " + y1 + "))";
+    }
+
+    @Override
+    public Collection<Widget> getFilteredByRectangle(int x1, int y1, int x2, int y2) {
+        // candidates intersect the region, only widgets inside it are returned
+        return jdbc.query(WidgetRowMapper.SELECT + " where bounds && cast(? as geometry)", WidgetRowMapper.INSTANCE,
+                polygon(x1, y1, x2, y2)).stream()
+                .filter(w -> SpatialIndex.isInside(w, x1, y1, x2, y2))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public Widget get(int id) {
+        return repository.get(id);
+    }
+
+    @Override
+    public Collection<Widget> getAllOrderByZ() {
+        return repository.getAllOrderByZ();
+    }
+
+    @Override
+    public Page<Widget> getAllOrderByZ(int pageNum, int pageSize) {
+        return repository.getAllOrderByZ(pageNum, pageSize);
+    }
+
+    @Override
+    public Collection<Widget> getAllOrderByZAfter(Integer afterZ, int limit) {
+        return repository.getAllOrderByZAfter(afterZ, limit);
+    }
+
+    @Override
+    public Integer getMaxZ() {
+        return repository.getMaxZ();
+    }
+
+    @Override
+    public long getVersion() {
+        return repository.getVersion();
+    }
+
+    @Override
+    public WidgetChangeFeed getChangeFeed() {
+        return repository.getChangeFeed();
+    }
+
+    @Override
+    public Widget add(WidgetDelta delta) throws ConstraintViolationException {
+        return repository.add(delta);
+    }
+
+    @Override
+    public Collection<Widget> addAll(Collection<WidgetDelta> deltas) throws ConstraintViolationException {
+        return repository.addAll(deltas);
+    }
+
+    @Override
+    public Widget remove(int id) {
+        return repository.remove(id);
+    }
+
+    @Override
+    public Collection<Widget> removeAll(Collection<Integer> ids) {
+        return repository.removeAll(ids);
+    }
+
+    @Override
+    public Widget update(int widgetId, WidgetDelta widgetDelta)
+            throws IllegalArgumentException, NoSuchElementException, ConstraintViolationException {
+        return repository.update(widgetId, widgetDelta);
+    }
+
+    @Override
+    public Collection<Widget> updateAll(Map<Integer, WidgetDelta> changes)
+            throws IllegalArgumentException, NoSuchElementException, ConstraintViolationException {
+        return repository.updateAll(changes);
+    }
+
+    @Override
+    public Widget insertAt(WidgetDelta delta, ZShiftStrategy strategy) throws ConstraintViolationException {
+        return repository.insertAt(delta, strategy);
+    }
+
+    @Override
+    public Widget moveTo(int widgetId, WidgetDelta delta, ZShiftStrategy strategy)
+            throws IllegalArgumentException, NoSuchElementException, ConstraintViolationException {
+        return repository.moveTo(widgetId, delta, strategy);
+    }
+
+    @Override
+    public Collection<Widget> insertAllAt(Collection<WidgetDelta> deltas, ZShiftStrategy strategy)
+            throws ConstraintViolationException {
+        return repository.insertAllAt(deltas, strategy);
+    }
+
+    @Override
+    public Collection<Widget> moveAllTo(Map<Integer, WidgetDelta> changes, ZShiftStrategy strategy)
+            throws IllegalArgumentException, NoSuchElementException, ConstraintViolationException {
+        return repository.moveAllTo(changes, strategy);
+    }
+}
@@ -0,0 +1,33 @@
+package net.rychkov.lab.widgets.dal.repository.h2;
+
+import net.rychkov.lab.widgets.dal.model.Widget;
+import org.springframework.jdbc.core.RowMapper;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Date;
+
+/**
+ * Read-only mapping of widget rows directly to immutable widgets
+ * (no entity hydration and persistence context - widgets are never changed in place)
+ */
+final class WidgetRowMapper implements RowMapper<Widget> {
+
+    static final WidgetRowMapper INSTANCE = new WidgetRowMapper();
+
+    /**
+     * Select of mapped columns (without conditions)
+     */
+    static final String SELECT = "select id, x, y, z, width, height, last_modification_date from widget";
+
+    private WidgetRowMapper() {}
+
+    @Override
+    public Widget mapRow(ResultSet rs, int rowNum) throws SQLException {
+        Timestamp date = rs.getTimestamp(7);
+
+        return new Widget(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getInt(4), rs.getInt(5), rs.getInt(6),
+                date!=null ? new Date(date.getTime()) : null);
+    }
+}
@@ -4,15 +4,15 @@ import net.rychkov.lab.widgets.api.model.WidgetCreateRequest;
 import net.rychkov.lab.widgets.api.model.WidgetUpdateRequest;
 import net.rychkov.lab.widgets.dal.model.*;
 import net.rychkov.lab.widgets.dal.repository.ConstraintViolationException;
+import net.rychkov.lab.widgets.dal.repository.WidgetChangeFeed;
 import net.rychkov.lab.widgets.dal.repository.WidgetRepository;
+import net.rychkov.lab.widgets.dal.repository.ZShiftStrategy;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import javax.transaction.NotSupportedException;
-import javax.validation.constraints.NotNull;
 import java.util.*;
-import java.util.concurrent.locks.ReentrantLock;
 
 @Service
 public class DefaultWidgetServiceImpl implements WidgetService {
@@ -22,143 +22,23 @@ public class DefaultWidgetServiceImpl implements WidgetService {
      */
     private final WidgetRepository repository;
 
-    // Best solution - move LockService outside and inject as bean
-    // because it can move to another service/server (like as lock throw DB locks)
-    // but not now
-    /**
-     * Used for shifting widgets (z conflicts)
-     * Write only lock
-     */
-    private final ReentrantLock zLock;
-
     @Value("${widgets.pagesize}")
     private final Integer pageSize = 10;
 
     /**
-     * z-coordinate step for new widgets (max z of existed widgets plus step)
-     * will help in future updates
-     */
-    private static final int Z_STEP = 16;
-
-    public DefaultWidgetServiceImpl(@Qualifier("repository") WidgetRepository repository) {
-        this.repository = repository;
-        zLock = new ReentrantLock();
-    }
-
-    /**
-     * Lock z-index changes
-     */
-    private void lockZ() {
-        zLock.lock();
-    }
-
-    /**
-     * Unlock z-index changes
+     * Count of widgets per slice of cursor (streaming of all widgets)
      */
-    private void unlockZ() {
-        zLock.unlock();
-    }
+    @Value("${widgets.stream-slice-size:1000}")
+    private int streamSliceSize = 1000;
 
     /**
-     * Find position for inserting widget with z-coordinate in z-index
-     * @param z z-coordinate of widget
-     * @param index Z-index (not null)
-     * @return Position for inserting (index.size() for inserting after last element)
+     * Strategy of z-coordinate shifting
      */
-    private int findInsertPosition(int z,@NotNull List<Widget> index) {
-        int firstIndex = 0;
-        int lastIndex = index.size() - 1;
-
-        while(firstIndex <= lastIndex) {
-            int middleIndex = (firstIndex + lastIndex) / 2;
-
-            if (index.get(middleIndex).getZ() < z) {
-                // position after last element (middleIndex - last element) or position after middleIndex
-                if(index.size()<=middleIndex+1 || index.get(middleIndex+1).getZ() >= z) {
-                    return middleIndex+1;
-                }
-                else {
-                    // try right part
-                    firstIndex = middleIndex + 1;
-                }
-            }
-            else if (index.get(middleIndex).getZ() >= z) {
-                // position before first element (middleIndex - first element) or position at middleIndex
-                if(middleIndex==0 || index.get(middleIndex-1).getZ() < z) {
-                    return middleIndex;
-                }
-                else {
-                    // try left part
-                    lastIndex = middleIndex - 1;
-                }
-            }
-        }
-
-        // empty array - insert at first position
-        return 0;
-    }
-
-    /**
-     * Shift widgets by change z-coordinate
-     * @param widgetToBeInserted Widget for inserting - cause of shifting
-     * @param all Ordered by z collection of all widgets
-     * @throws ConstraintViolationException Unique z constraint violation
-     */
-    private void shift(WidgetDelta widgetToBeInserted, final List<Widget> all) throws ConstraintViolationException {
-        int allSize = all.size();
-
-        if(allSize==0) {
-            // for first element in repository set z to 0
-            widgetToBeInserted.setZ(0);
-        }
-        else {
-            int insertPosition = findInsertPosition(widgetToBeInserted.getZ(), all);
-
-            if(insertPosition==0) {
-                // first element
-                widgetToBeInserted.setZ(all.get(0).getZ()-Z_STEP);
-            }
-            else if(insertPosition==all.size()) {
-                // last element
-                widgetToBeInserted.setZ(all.get(allSize-1).getZ()+Z_STEP);
-            }
-            else {
-                // middle element
-                int z = widgetToBeInserted.getZ();
-
-                Map<Integer, WidgetDelta> updateQueue = new HashMap<>();
-
-                for(int i = insertPosition; i<allSize; i++) {
-
-                    // no needs for cascade changes of z - break
-                    if(all.get(i).getZ()>z) {
-                        break;
-                    }
-
-                    // need to change z of existed widget (unique constraint)
-                    // and go to next widget
-
-                    z += i+1==allSize ? Z_STEP : Math.round(((float)all.get(i+1).getZ()-z)/2);
-                    WidgetDelta changes = new WidgetDelta();
-                    changes.setZ(z);
-                    updateQueue.put(all.get(i).getId(), changes);
-                }
-
-                if((float)updateQueue.size()/allSize>0.5) {
-                    // optimisation: force rebuild z-index (only part)
-                    updateQueue.clear();
-                    for(int i=all.size()-1; i>=insertPosition; i--) {
-                        WidgetDelta widgetDelta = new WidgetDelta(null, null,widgetToBeInserted.getZ()+Z_STEP*(i-insertPosition+1), null, null);
-                        updateQueue.put(all.get(i).getId(), widgetDelta);
-                        //repository.update(all.get(i).getId(), widgetDelta);
-                    }
-                }
-
-                repository.updateAll(updateQueue);
-
-            }
+    private final ZShiftStrategy zShiftStrategy;
 
-        }
+    public DefaultWidgetServiceImpl(@Qualifier("repository") WidgetRepository repository, ZShiftStrategy zShiftStrategy) {
+        this.repository = repository;
+        this.zShiftStrategy = zShiftStrategy;
     }
 
     @Override
@@ -173,47 +53,40 @@ public class DefaultWidgetServiceImpl implements WidgetService {
         delta.setZ(widget.getZ());
 
 
-        // adding
-        lockZ();
+        // adding (repository locks z-range of shifting itself)
         try {
-            
-            if (delta.getZ()==null) {
 
+            if (delta.getZ()!=null) {
+                // position search and shifting inside repository
+                return repository.insertAt(delta, zShiftStrategy);
+            }
+
+            // optimistic adding to the top: other widget can take max z meanwhile - try again
+            while(true) {
                 Integer maxZ = repository.getMaxZ();
 
                 // if no widgets in repository (maxZ==null) - set 0 z-coordinate
                 // else set max z-coordinate of widgets plus Z_STEP constant
-                delta.setZ(maxZ!=null ? maxZ+Z_STEP : 0);
-            }
-            else {
-                List<Widget> all = new ArrayList<>(repository.getAllOrderByZ());
-                int allSize = all.size();
+                delta.setZ(maxZ!=null ? maxZ+ZShiftStrategy.Z_STEP : 0);
 
-                // z-coordinate not set
-                shift(delta, all);
+                try {
+                    return repository.add(delta);
+                }
+                catch(ConstraintViolationException e) {
+                    if(Objects.equals(maxZ, repository.getMaxZ())) {
+                        throw e;
+                    }
+                }
             }
-
-            Widget result = repository.add(delta);
-
-            return result;
         }
         catch(ConstraintViolationException e) {
             throw new RuntimeException(e);
         }
-        finally {
-            unlockZ();
-        }
     }
 
     @Override
     public Widget removeWidget(int id){
-        lockZ();
-        try {
-            return repository.remove(id);
-        }
-        finally {
-            unlockZ();
-        }
+        return repository.remove(id);
     }
 
     @Override
@@ -221,6 +94,55 @@ public class DefaultWidgetServiceImpl implements WidgetService {
         return repository.get(id);
     }
 
+    @Override
+    public long getVersion() {
+        return repository.getVersion();
+    }
+
+    @Override
+    public WidgetChangeFeed getChangeFeed() {
+        return repository.getChangeFeed();
+    }
+
+    @Override
+    public ChangeSet getChangesSince(final String since) throws IllegalArgumentException {
+
+        WidgetChangeFeed feed = repository.getChangeFeed();
+
+        // feed is bounded - whole rest of it at most, token of other feed (before restart) - resync
+        List<WidgetChange> changes;
+        try {
+            changes = feed.read(feed.parseToken(since), Integer.MAX_VALUE);
+        }
+        catch(NoSuchElementException e) {
+            return ChangeSet.resync(feed.token(feed.getLastSequence()));
+        }
+
+        if(changes.isEmpty()) {
+            return new ChangeSet(since, false, Collections.emptyList(), Collections.emptyList());
+        }
+
+        // compaction: last change of each widget wins
+        Map<Integer, WidgetChange> last = new LinkedHashMap<>();
+        for(WidgetChange c : changes) {
+            last.remove(c.getId());
+            last.put(c.getId(), c);
+        }
+
+        List<WidgetChange> changed = new ArrayList<>();
+        List<Integer> removed = new ArrayList<>();
+        for(WidgetChange c : last.values()) {
+            if(c.isRemoved()) {
+                removed.add(c.getId());
+            }
+            else {
+                changed.add(c);
+            }
+        }
+
+        return new ChangeSet(feed.token(changes.get(changes.size()-1).getSequence()), false, changed, removed);
+    }
+
     @Override
     public Collection<Widget> getAllWidgets() {
         return repository.getAllOrderByZ();
@@ -231,6 +153,30 @@ public class DefaultWidgetServiceImpl implements WidgetService {
         return repository.getAllOrderByZ(pageNum, pageSize);
     }
 
+    @Override
+    public Iterator<Widget> getAllWidgetsCursor() {
+        return repository.cursorOrderByZ(streamSliceSize);
+    }
+
+    @Override
+    public CursorPage<Widget> getWidgetsAfter(Integer afterZ, int limit) throws IllegalArgumentException {
+
+        // verify
+        if(limit<1 || limit==Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+
+        // one more widget - to know if next slice exists
+        List<Widget> widgets = new ArrayList<>(repository.getAllOrderByZAfter(afterZ, limit+1));
+
+        if(widgets.size()<=limit) {
+            return new CursorPage<>(limit, null, widgets);
+        }
+
+        widgets = widgets.subList(0, limit);
+        return new CursorPage<>(limit, widgets.get(limit-1).getZ(), widgets);
+    }
+
     @Override
     public Collection<Widget> getFilteredByRectangle(int x1, int y1, int x2, int y2) throws NotSupportedException {
 
@@ -258,45 +204,67 @@ public class DefaultWidgetServiceImpl implements WidgetService {
             return repository.update(widgetId, delta);
         }
 
-        Widget origin = repository.get(widgetId);
-
-        if (origin == null) {
-            throw new NoSuchElementException("No widget found");
+        try {
+            // position search and shifting inside repository
+            return repository.moveTo(widgetId, delta, zShiftStrategy);
         }
+        catch(ConstraintViolationException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-        lockZ();
+    @Override
+    public Collection<Widget> addWidgets(List<WidgetCreateRequest> widgets) {
 
-        try {
+        Integer maxZ = repository.getMaxZ();
+        int topZ = maxZ!=null ? maxZ : -ZShiftStrategy.Z_STEP;
 
-            // no z-coordinate changes
-            if (delta.getZ() == origin.getZ()) {
-                Widget result = repository.update(widgetId, delta);
-                return result;
+        // mapping (widgets without z - to the top in order of batch)
+        List<WidgetDelta> deltas = new ArrayList<>();
+        for(WidgetCreateRequest widget : widgets) {
+            WidgetDelta delta = new WidgetDelta();
+            delta.setHeight(widget.getHeight());
+            delta.setWidth(widget.getWidth());
+            delta.setX(widget.getX());
+            delta.setY(widget.getY());
+            if(widget.getZ()!=null) {
+                delta.setZ(widget.getZ());
             }
-
-            List<Widget> all = new ArrayList(repository.getAllOrderByZ());
-            all.remove(origin);
-            int insertPosition = findInsertPosition(delta.getZ(), all);
-
-            // no z-coordinate conflicts
-            if (insertPosition>=all.size() || all.get(insertPosition).getZ() > delta.getZ()) {
-                Widget result = repository.update(widgetId, delta);
-                return result;
+            else {
+                topZ += ZShiftStrategy.Z_STEP;
+                delta.setZ(topZ);
             }
+            deltas.add(delta);
+        }
 
-            // z-coordinate conflict
-            shift(delta, all);
+        try {
+            // one shifting pass for whole batch inside repository
+            return repository.insertAllAt(deltas, zShiftStrategy);
+        }
+        catch(ConstraintViolationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Collection<Widget> updateWidgets(Map<Integer, WidgetUpdateRequest> widgets)
+            throws IllegalArgumentException, NoSuchElementException {
 
-            Widget result = repository.update(widgetId, delta);
+        Map<Integer, WidgetDelta> changes = new LinkedHashMap<>();
+        widgets.forEach((id, widget) -> changes.put(id,
+                new WidgetDelta(widget.getX(), widget.getY(), widget.getZ(), widget.getWidth(), widget.getHeight())));
 
-            return result;
+        try {
+            // one shifting pass for whole batch inside repository
+            return repository.moveAllTo(changes, zShiftStrategy);
         }
         catch(ConstraintViolationException e) {
             throw new RuntimeException(e);
         }
-        finally {
-            unlockZ();
-        }
+    }
 
+    @Override
+    public Collection<Widget> removeWidgets(Collection<Integer> ids) throws NoSuchElementException {
+        return repository.removeAll(ids);
     }
 }
@@ -0,0 +1,26 @@
+package net.rychkov.lab.widgets.service;
+
+import net.rychkov.lab.widgets.dal.repository.CascadeZShiftStrategy;
+import net.rychkov.lab.widgets.dal.repository.RelabelZShiftStrategy;
+import net.rychkov.lab.widgets.dal.repository.ZShiftStrategy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class ServiceConfig {
+
+    /**
+     * Strategy of z-coordinate shifting: cascade(default) or relabel
+     */
+    @Value("${widgets.z-shift:cascade}")
+    private String zShift;
+
+    @Bean
+    public ZShiftStrategy zShiftStrategy() {
+        if ("relabel".equals(zShift)) {
+            return new RelabelZShiftStrategy();
+        }
+        return new CascadeZShiftStrategy();
+    }
+}
@@ -2,12 +2,18 @@ package net.rychkov.lab.widgets.service;
 
 import net.rychkov.lab.widgets.api.model.WidgetCreateRequest;
 import net.rychkov.lab.widgets.api.model.WidgetUpdateRequest;
+import net.rychkov.lab.widgets.dal.model.ChangeSet;
+import net.rychkov.lab.widgets.dal.model.CursorPage;
 import net.rychkov.lab.widgets.dal.model.Page;
 import net.rychkov.lab.widgets.dal.model.Widget;
 import net.rychkov.lab.widgets.dal.repository.ConstraintViolationException;
+import net.rychkov.lab.widgets.dal.repository.WidgetChangeFeed;
 
 import javax.transaction.NotSupportedException;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 public interface WidgetService {
@@ -19,6 +25,27 @@ public interface WidgetService {
      */
     Widget getWidget(int id);
 
+    /**
+     * Get modification version of repository (increases after every change of widgets)
+     * @return Version
+     */
+    long getVersion();
+
+    /**
+     * Get feed of widget changes (including widgets shifted by z)
+     * @return Change feed
+     */
+    WidgetChangeFeed getChangeFeed();
+
+    /**
+     * Get compacted changes after sequence of change feed (only last change of each widget)
+     * @param since Token of last received change ("epoch-sequence")
+     * @return Changed and removed widgets or full resync marker - if changes after sequence are no longer kept
+     * or token is issued before restart
+     * @throws IllegalArgumentException Malformed token or negative sequence
+     */
+    ChangeSet getChangesSince(final String since) throws IllegalArgumentException;
+
     /**
      * Get collection of all widgets in repository
      * @return Collection of widgets
@@ -32,6 +59,21 @@ public interface WidgetService {
      */
     Page<Widget> getAllWidgets(int pageNum);
 
+    /**
+     * Get cursor over all widgets in repository (widgets are read by slices, using slice size from config)
+     * @return Iterator of widgets ordered by z
+     */
+    Iterator<Widget> getAllWidgetsCursor();
+
+    /**
+     * Get slice of widgets after z-coordinate (keyset pagination - cost doesn't depend on depth of slice)
+     * @param afterZ z-coordinate of last widget of previous slice (excluded), null - first slice
+     * @param limit Max count of widgets (positive)
+     * @return Slice of widgets with cursor of next slice
+     * @throws IllegalArgumentException Not positive limit
+     */
+    CursorPage<Widget> getWidgetsAfter(Integer afterZ, int limit) throws IllegalArgumentException;
+
     /**
      * Get widgets that fall entirely into the region
      * @param x1 Left border (included)
@@ -67,4 +109,28 @@ public interface WidgetService {
      * @return Removed widget
      */
     Widget removeWidget(int id);
+
+    /**
+     * Add widgets to repository (z-conflicts of whole batch are resolved at once)
+     * @param widgets WidgetCreateRequests contains values for setting to properties and nulls for defaults
+     * @return Created widgets
+     */
+    Collection<Widget> addWidgets(final List<WidgetCreateRequest> widgets);
+
+    /**
+     * Update widgets in repository (z-conflicts of whole batch are resolved at once)
+     * @param widgets Map of changes - (widgetId, WidgetUpdateRequest contains values for setting to properties and nulls for others)
+     * @return Updated widgets
+     * @throws IllegalArgumentException Illegal widgetDelta like null
+     * @throws NoSuchElementException No widget with such ID in repository
+     */
+    Collection<Widget> updateWidgets(final Map<Integer, WidgetUpdateRequest> widgets) throws IllegalArgumentException, NoSuchElementException;
+
+    /**
+     * Remove widgets from repository
+     * @param ids Widgets ID
+     * @return Removed widgets
+     * @throws NoSuchElementException No widget with such ID in repository
+     */
+    Collection<Widget> removeWidgets(final Collection<Integer> ids) throws NoSuchElementException;
 }
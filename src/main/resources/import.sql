@@ -0,0 +1,15 @@
+-- run by Hibernate after schema is created (spring.jpa.hibernate.ddl-auto=create), one statement per line
+
+-- borders of widget for rectangle filter of h2 repository (computed by database, not mapped to entity)
+alter table widget add column if not exists left_bound int as x - width / 2;
+alter table widget add column if not exists top_bound int as y - height / 2;
+alter table widget add column if not exists right_bound int as x + width / 2;
+alter table widget add column if not exists bottom_bound int as y + height / 2;
+
+-- rectangle filter: range by left (or top) border, other borders are checked inside index
+create index if not exists widget_bounds_left_ix on widget(left_bound, top_bound, right_bound, bottom_bound);
+create index if not exists widget_bounds_top_ix on widget(top_bound, left_bound, bottom_bound, right_bound);
+
+-- bounding box of widget borders for spatial index of h2 repository (widgets.repository.h2.spatial-index=rtree)
+alter table widget add column if not exists bounds geometry as cast('POLYGON ((' || left_bound || ' ' || top_bound || ', ' || right_bound || ' ' || top_bound || ', ' || right_bound || ' ' || bottom_bound || ', ' || left_bound || ' ' || bottom_bound || ', ' || left_bound || ' ' || top_bound || '))' as geometry);
+create spatial index if not exists widget_bounds_spatial_ix on widget(bounds);
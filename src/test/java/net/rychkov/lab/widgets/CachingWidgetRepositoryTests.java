@@ -0,0 +1,121 @@
+package net.rychkov.lab.widgets;
+
+import net.rychkov.lab.widgets.dal.model.Widget;
+import net.rychkov.lab.widgets.dal.model.WidgetDelta;
+import net.rychkov.lab.widgets.dal.repository.CachingWidgetRepository;
+import net.rychkov.lab.widgets.dal.repository.CascadeZShiftStrategy;
+import net.rychkov.lab.widgets.dal.repository.ConstraintViolationException;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.RepositoryImpl;
+import net.rychkov.lab.widgets.dal.repository.LruCache;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CachingWidgetRepositoryTests {
+
+    @Test
+    public void getReadThrough() throws ConstraintViolationException {
+
+        RepositoryImpl origin = new RepositoryImpl();
+        CachingWidgetRepository repository = new CachingWidgetRepository(origin, 100);
+
+        Widget widget = repository.add(new WidgetDelta(1, 1, 1, 1, 1));
+
+        assertEquals(widget, repository.get(widget.getId()));
+        assertEquals(1, repository.getMissCount());
+
+        assertSame(repository.get(widget.getId()), repository.get(widget.getId()));
+        assertEquals(2, repository.getHitCount());
+        assertEquals(1, repository.getMissCount());
+
+        // write through repository invalidates cached widget
+        Widget updated = repository.update(widget.getId(), new WidgetDelta(5, null, null, null, null));
+        assertEquals(updated, repository.get(widget.getId()));
+        assertEquals(5, repository.get(widget.getId()).getX());
+
+        repository.remove(widget.getId());
+        assertNull(repository.get(widget.getId()));
+    }
+
+    @Test
+    public void shiftedWidgetsAreInvalidated() throws ConstraintViolationException {
+
+        CachingWidgetRepository repository = new CachingWidgetRepository(new RepositoryImpl(), 100);
+
+        List<Widget> widgets = new ArrayList<>();
+        for(int z=0; z<4; z++) {
+            widgets.add(repository.add(new WidgetDelta(z, z, z, 1, 1)));
+        }
+        widgets.forEach(w -> repository.get(w.getId()));
+
+        // widgets from z=1 are shifted up
+        repository.insertAt(new WidgetDelta(10, 10, 1, 1, 1), new CascadeZShiftStrategy());
+
+        for(Widget w : widgets) {
+            assertEquals(repository.getAllOrderByZ().stream().filter(c -> c.getId()==w.getId()).findFirst().get(),
+                    repository.get(w.getId()));
+        }
+        assertNotEquals(1, repository.get(widgets.get(1).getId()).getZ());
+    }
+
+    @Test
+    public void orderByZNotCached() throws ConstraintViolationException {
+
+        CachingWidgetRepository repository = new CachingWidgetRepository(new RepositoryImpl(), 100);
+
+        repository.add(new WidgetDelta(1, 1, 1, 1, 1));
+        assertEquals(1, repository.getAllOrderByZ().size());
+
+        repository.add(new WidgetDelta(2, 2, 0, 1, 1));
+
+        // ordered reads go to repository and aren't counted
+        Collection<Widget> all = repository.getAllOrderByZ();
+        assertEquals(2, all.size());
+        assertEquals(0, all.iterator().next().getZ());
+        assertEquals(0, repository.getHitCount() + repository.getMissCount());
+    }
+
+    @Test
+    public void sizeBound() throws ConstraintViolationException {
+
+        CachingWidgetRepository repository = new CachingWidgetRepository(new RepositoryImpl(), 1);
+
+        Widget first = repository.add(new WidgetDelta(1, 1, 1, 1, 1));
+        Widget second = repository.add(new WidgetDelta(2, 2, 2, 1, 1));
+
+        repository.get(first.getId());
+        repository.get(second.getId());
+        assertEquals(1, repository.getEvictionCount());
+
+        repository.get(first.getId());
+        assertEquals(3, repository.getMissCount());
+    }
+
+    @Test
+    public void lruEviction() {
+
+        // 16 segments of 2 entries, keys 0, 16, 32 are in the same segment
+        LruCache<Integer, String> cache = new LruCache<>(32);
+
+        cache.putIf(0, "0", () -> true);
+        cache.putIf(16, "16", () -> true);
+        assertEquals("0", cache.get(0));
+
+        // least recently used is evicted
+        cache.putIf(32, "32", () -> true);
+        assertNull(cache.get(16));
+        assertEquals("0", cache.get(0));
+        assertEquals("32", cache.get(32));
+
+        assertFalse(cache.putIf(1, "1", () -> false));
+        assertNull(cache.get(1));
+
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(3, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+}
@@ -0,0 +1,17 @@
+package net.rychkov.lab.widgets;
+
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.ColumnarWidgetStore;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.ComplexIndex;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.RepositoryImpl;
+import net.rychkov.lab.widgets.dal.repository.WidgetRepository;
+
+/**
+ * CustomInMemory repository tests with columnar store
+ */
+public class ColumnarWidgetRepositoryTests extends CustomInMemoryWidgetRepositoryTests {
+
+    @Override
+    protected WidgetRepository createRepository() {
+        return new RepositoryImpl(new ComplexIndex(), new ColumnarWidgetStore());
+    }
+}
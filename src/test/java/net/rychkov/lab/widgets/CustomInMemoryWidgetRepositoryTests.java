@@ -1,10 +1,15 @@
 package net.rychkov.lab.widgets;
 
+import net.rychkov.lab.widgets.dal.model.Page;
 import net.rychkov.lab.widgets.dal.model.Widget;
+import net.rychkov.lab.widgets.dal.model.WidgetChange;
 import net.rychkov.lab.widgets.dal.model.WidgetDelta;
 import net.rychkov.lab.widgets.dal.repository.ConstraintViolationException;
 import net.rychkov.lab.widgets.dal.repository.CustomInMemory.RepositoryImpl;
+import net.rychkov.lab.widgets.dal.repository.CascadeZShiftStrategy;
+import net.rychkov.lab.widgets.dal.repository.RelabelZShiftStrategy;
 import net.rychkov.lab.widgets.dal.repository.WidgetRepository;
+import net.rychkov.lab.widgets.dal.repository.ZShiftStrategy;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 
@@ -21,10 +26,18 @@ import static org.junit.jupiter.api.Assertions.*;
 @SpringBootTest
 public class CustomInMemoryWidgetRepositoryTests {
 
+    /**
+     * Create tested repository
+     * @return Empty repository
+     */
+    protected WidgetRepository createRepository() {
+        return new RepositoryImpl();
+    }
+
     @Test
     public void get() throws ConstraintViolationException {
 
-        WidgetRepository repository = new RepositoryImpl();
+        WidgetRepository repository = createRepository();
 
         WidgetDelta testWidget = new WidgetDelta(0,0,0,0,0);
 
@@ -43,7 +56,7 @@ public class CustomInMemoryWidgetRepositoryTests {
     @Test
     public void getWrongId() throws ConstraintViolationException {
 
-        WidgetRepository repository = new RepositoryImpl();
+        WidgetRepository repository = createRepository();
 
         WidgetDelta testWidget = new WidgetDelta(0,0,0,0,0);
 
@@ -57,7 +70,7 @@ public class CustomInMemoryWidgetRepositoryTests {
     @Test
     public void getAllByZ() throws ConstraintViolationException {
 
-        WidgetRepository repository = new RepositoryImpl();
+        WidgetRepository repository = createRepository();
 
         assertNotNull(repository.getAllOrderByZ());
         assertEquals(0, repository.getAllOrderByZ().size());
@@ -97,10 +110,55 @@ public class CustomInMemoryWidgetRepositoryTests {
     }
 
 
+    @Test
+    public void getAllByZPaged() throws ConstraintViolationException {
+
+        WidgetRepository repository = createRepository();
+
+        int count = 95;
+        int pageSize = 10;
+
+        // add in reverse z order
+        for(int i=count; i>0; i--) {
+            repository.add(new WidgetDelta(i,i,i*2,i,i));
+        }
+
+        for(int pageNum=0; pageNum<10; pageNum++) {
+            Page<Widget> page = repository.getAllOrderByZ(pageNum, pageSize);
+
+            assertEquals(count, page.getElementCount());
+            assertEquals(pageNum, page.getPageNum());
+
+            List<Widget> elements = new ArrayList<>(page.getElements());
+            assertEquals(pageNum<9 ? pageSize : count % pageSize, elements.size());
+
+            // check order and position
+            for(int i=0; i<elements.size(); i++) {
+                assertEquals((pageNum*pageSize+i+1)*2, elements.get(i).getZ());
+            }
+        }
+
+        assertTrue(repository.getAllOrderByZ(10, pageSize).getElements().isEmpty());
+    }
+
+    @Test
+    public void getMaxZ() throws ConstraintViolationException {
+
+        WidgetRepository repository = createRepository();
+
+        assertNull(repository.getMaxZ());
+
+        repository.add(new WidgetDelta(0,0,5,0,0));
+        repository.add(new WidgetDelta(0,0,-5,0,0));
+
+        assertEquals(5, repository.getMaxZ());
+    }
+
+
     @Test
     public void add() throws ConstraintViolationException {
 
-        WidgetRepository repository = new RepositoryImpl();
+        WidgetRepository repository = createRepository();
 
         WidgetDelta testWidget = new WidgetDelta(0,0,0,0,0);
 
@@ -116,7 +174,7 @@ public class CustomInMemoryWidgetRepositoryTests {
     @Test
     public void addZConflict() throws ConstraintViolationException {
 
-        WidgetRepository repository = new RepositoryImpl();
+        WidgetRepository repository = createRepository();
 
         WidgetDelta testWidget = new WidgetDelta(0,0,0,0,0);
 
@@ -128,7 +186,7 @@ public class CustomInMemoryWidgetRepositoryTests {
     @Test
     public void update() throws ConstraintViolationException {
 
-        WidgetRepository repository = new RepositoryImpl();
+        WidgetRepository repository = createRepository();
 
         WidgetDelta createDescriptor = new WidgetDelta(0,0,0,0,0);
         WidgetDelta updateDescriptor = new WidgetDelta(10,10,10,10,10);
@@ -148,7 +206,7 @@ public class CustomInMemoryWidgetRepositoryTests {
     @Test
     public void updateZConflict() throws ConstraintViolationException {
 
-        WidgetRepository repository = new RepositoryImpl();
+        WidgetRepository repository = createRepository();
 
         WidgetDelta createDescriptor1 = new WidgetDelta(0,0,0,0,0);
         WidgetDelta createDescriptor2 = new WidgetDelta(0,0,10,0,0);
@@ -163,7 +221,7 @@ public class CustomInMemoryWidgetRepositoryTests {
     @Test
     public void remove() throws ConstraintViolationException {
 
-        WidgetRepository repository = new RepositoryImpl();
+        WidgetRepository repository = createRepository();
 
         WidgetDelta createDescriptor1 = new WidgetDelta(0,0,0,0,0);
         WidgetDelta createDescriptor2 = new WidgetDelta(0,0,10,0,0);
@@ -183,7 +241,7 @@ public class CustomInMemoryWidgetRepositoryTests {
     @Test
     public void filteredByRectangle() throws ConstraintViolationException, NotSupportedException {
 
-        WidgetRepository repository = new RepositoryImpl();
+        WidgetRepository repository = createRepository();
 
         int x1=0,x2=50,y1=0,y2=100;
 
@@ -204,6 +262,216 @@ public class CustomInMemoryWidgetRepositoryTests {
 
     }
 
+    @Test
+    public void insertAtWithShift() throws ConstraintViolationException {
+
+        WidgetRepository repository = createRepository();
+
+        for(int z=0; z<8; z++) {
+            repository.add(new WidgetDelta(z, z, z, 1, 1));
+        }
+
+        Widget inserted = repository.insertAt(new WidgetDelta(10, 20, 3, 1, 1), new CascadeZShiftStrategy());
+
+        assertEquals(3, inserted.getZ());
+        assertEquals(inserted, repository.get(inserted.getId()));
+
+        List<Widget> all = new ArrayList<>(repository.getAllOrderByZ());
+        assertEquals(9, all.size());
+        assertEquals(inserted.getId(), all.get(3).getId());
+
+        // order of shifted widgets is kept
+        for(int i=0; i<all.size(); i++) {
+            if(i!=3) {
+                assertEquals(i<3 ? i : i-1, all.get(i).getX());
+            }
+        }
+        assertEquals(Integer.valueOf(all.get(8).getZ()), repository.getMaxZ());
+    }
+
+    @Test
+    public void insertAtEdges() throws ConstraintViolationException {
+
+        WidgetRepository repository = createRepository();
+
+        assertEquals(0, repository.insertAt(new WidgetDelta(0, 0, 30, 1, 1), new RelabelZShiftStrategy()).getZ());
+        assertEquals(16, repository.insertAt(new WidgetDelta(0, 0, 5, 1, 1), new RelabelZShiftStrategy()).getZ());
+        assertEquals(-16, repository.insertAt(new WidgetDelta(0, 0, 0, 1, 1), new RelabelZShiftStrategy()).getZ());
+    }
+
+    @Test
+    public void moveToWithShift() throws ConstraintViolationException {
+
+        WidgetRepository repository = createRepository();
+
+        List<Widget> added = new ArrayList<>();
+        for(int z=0; z<8; z++) {
+            added.add(repository.add(new WidgetDelta(z, z, z, 1, 1)));
+        }
+
+        // move first widget to z of 5th
+        Widget moved = repository.moveTo(added.get(0).getId(), new WidgetDelta(null, null, 4, null, null), new RelabelZShiftStrategy());
+
+        assertEquals(4, moved.getZ());
+
+        List<Widget> all = new ArrayList<>(repository.getAllOrderByZ());
+        assertEquals(8, all.size());
+        assertEquals(Arrays.asList(1, 2, 3, 0, 4, 5, 6, 7),
+                all.stream().map(Widget::getX).collect(java.util.stream.Collectors.toList()));
+
+        // same z - no shifting
+        Widget same = repository.moveTo(moved.getId(), new WidgetDelta(100, null, 4, null, null), new RelabelZShiftStrategy());
+        assertEquals(4, same.getZ());
+        assertEquals(100, repository.get(moved.getId()).getX());
+
+        assertThrows(NoSuchElementException.class,
+                () -> repository.moveTo(-1, new WidgetDelta(null, null, 4, null, null), new RelabelZShiftStrategy()));
+    }
+
+    @Test
+    public void insertAllAtWithShift() throws ConstraintViolationException {
+
+        WidgetRepository repository = createRepository();
+
+        for(int z=0; z<8; z++) {
+            repository.add(new WidgetDelta(z, z, z, 1, 1));
+        }
+
+        List<Widget> inserted = new ArrayList<>(repository.insertAllAt(Arrays.asList(
+                new WidgetDelta(100, 0, 3, 1, 1),
+                new WidgetDelta(101, 0, 3, 1, 1),
+                new WidgetDelta(102, 0, 100, 1, 1)
+        ), new CascadeZShiftStrategy()));
+
+        assertEquals(3, inserted.size());
+        assertEquals(3, inserted.get(0).getZ());
+        // after last widget - like single insert
+        assertEquals(7 + ZShiftStrategy.Z_STEP, inserted.get(2).getZ());
+
+        List<Widget> all = new ArrayList<>(repository.getAllOrderByZ());
+        assertEquals(11, all.size());
+        assertEquals(Arrays.asList(0, 1, 2, 100, 101, 3, 4, 5, 6, 7, 102),
+                all.stream().map(Widget::getX).collect(java.util.stream.Collectors.toList()));
+        for(Widget w : all) {
+            assertEquals(w, repository.get(w.getId()));
+        }
+    }
+
+    @Test
+    public void moveAllToWithShift() throws ConstraintViolationException {
+
+        WidgetRepository repository = createRepository();
+
+        List<Widget> added = new ArrayList<>();
+        for(int z=0; z<8; z++) {
+            added.add(repository.add(new WidgetDelta(z, z, z, 1, 1)));
+        }
+
+        // swap first and last widgets, change x of second
+        Map<Integer, WidgetDelta> changes = new LinkedHashMap<>();
+        changes.put(added.get(0).getId(), new WidgetDelta(null, null, 7, null, null));
+        changes.put(added.get(7).getId(), new WidgetDelta(null, null, 0, null, null));
+        changes.put(added.get(1).getId(), new WidgetDelta(100, null, null, null, null));
+
+        Collection<Widget> changed = repository.moveAllTo(changes, new RelabelZShiftStrategy());
+        assertEquals(3, changed.size());
+
+        List<Widget> all = new ArrayList<>(repository.getAllOrderByZ());
+        assertEquals(8, all.size());
+        assertEquals(Arrays.asList(7, 100, 2, 3, 4, 5, 6, 0),
+                all.stream().map(Widget::getX).collect(java.util.stream.Collectors.toList()));
+        for(Widget w : all) {
+            assertEquals(w, repository.get(w.getId()));
+        }
+
+        changes.put(-1, new WidgetDelta(null, null, 4, null, null));
+        assertThrows(NoSuchElementException.class, () -> repository.moveAllTo(changes, new RelabelZShiftStrategy()));
+        assertEquals(all, new ArrayList<>(repository.getAllOrderByZ()));
+    }
+
+    @Test
+    public void cursorOrderByZ() throws ConstraintViolationException {
+
+        WidgetRepository repository = createRepository();
+
+        assertFalse(repository.cursorOrderByZ(3).hasNext());
+
+        for(int z=9; z>=0; z--) {
+            repository.add(new WidgetDelta(z, z, z*10, 1, 1));
+        }
+
+        // slices are searched by z
+        assertEquals(Arrays.asList(30, 40),
+                repository.getAllOrderByZAfter(20, 2).stream().map(Widget::getZ).collect(java.util.stream.Collectors.toList()));
+        assertEquals(3, repository.getAllOrderByZAfter(null, 3).size());
+        assertEquals(0, repository.getAllOrderByZAfter(90, 3).size());
+        assertEquals(0, repository.getAllOrderByZAfter(Integer.MAX_VALUE, 3).size());
+
+        List<Widget> all = new ArrayList<>();
+        repository.cursorOrderByZ(3).forEachRemaining(all::add);
+        assertEquals(new ArrayList<>(repository.getAllOrderByZ()), all);
+    }
+
+    @Test
+    public void versionIncreasesOnWrite() throws ConstraintViolationException {
+
+        WidgetRepository repository = createRepository();
+
+        long version = repository.getVersion();
+
+        Widget widget = repository.add(new WidgetDelta(1, 1, 1, 1, 1));
+        assertTrue(repository.getVersion()>version);
+        version = repository.getVersion();
+
+        // failed writes and reads don't change version
+        assertThrows(ConstraintViolationException.class, () -> repository.add(new WidgetDelta(2, 2, 1, 2, 2)));
+        assertThrows(NoSuchElementException.class, () -> repository.remove(widget.getId() + 1));
+        repository.getAllOrderByZ();
+        assertEquals(version, repository.getVersion());
+
+        repository.remove(widget.getId());
+        assertTrue(repository.getVersion()>version);
+    }
+
+    @Test
+    public void changesArePublished() throws ConstraintViolationException {
+
+        WidgetRepository repository = createRepository();
+
+        for(int z=0; z<4; z++) {
+            repository.add(new WidgetDelta(z, z, z, 1, 1));
+        }
+
+        long afterSequence = repository.getChangeFeed().getLastSequence();
+        assertEquals(4, afterSequence);
+
+        // inserting with cascade shift publishes every shifted widget
+        Widget inserted = repository.insertAt(new WidgetDelta(10, 20, 1, 1, 1), new CascadeZShiftStrategy());
+
+        List<WidgetChange> changes = repository.getChangeFeed().read(afterSequence, 100);
+
+        Map<Integer, Integer> publishedZ = new HashMap<>();
+        for(WidgetChange c : changes) {
+            assertFalse(c.isRemoved());
+            publishedZ.put(c.getId(), c.getDelta().getZ());
+        }
+        assertEquals(Integer.valueOf(1), publishedZ.get(inserted.getId()));
+        for(Widget w : repository.getAllOrderByZ()) {
+            if(w.getZ()!=w.getX() && w.getId()!=inserted.getId()) {
+                assertEquals(Integer.valueOf(w.getZ()), publishedZ.get(w.getId()));
+            }
+        }
+        assertTrue(changes.size()>1);
+
+        afterSequence = repository.getChangeFeed().getLastSequence();
+        repository.remove(inserted.getId());
+
+        changes = repository.getChangeFeed().read(afterSequence, 100);
+        assertEquals(1, changes.size());
+        assertTrue(changes.get(0).isRemoved());
+        assertEquals(inserted.getId(), changes.get(0).getId());
+    }
+
     static class WriteMonitor {
         volatile public boolean complete = false;
     }
@@ -211,7 +479,7 @@ public class CustomInMemoryWidgetRepositoryTests {
     @Test
     public void ThreadedRead() throws ConstraintViolationException, InterruptedException {
 
-        RepositoryImpl repository = new RepositoryImpl();
+        WidgetRepository repository = createRepository();
         repository.add(new WidgetDelta(1,1,0,1,1));
 
         AtomicInteger writeIteration = new AtomicInteger(1);
@@ -2,10 +2,15 @@ package net.rychkov.lab.widgets;
 
 import net.rychkov.lab.widgets.api.model.WidgetCreateRequest;
 import net.rychkov.lab.widgets.api.model.WidgetUpdateRequest;
+import net.rychkov.lab.widgets.dal.model.ChangeSet;
+import net.rychkov.lab.widgets.dal.model.CursorPage;
 import net.rychkov.lab.widgets.dal.model.Widget;
+import net.rychkov.lab.widgets.dal.model.WidgetChange;
 import net.rychkov.lab.widgets.dal.model.WidgetDelta;
 import net.rychkov.lab.widgets.dal.repository.ConstraintViolationException;
+import net.rychkov.lab.widgets.dal.repository.WidgetChangeFeed;
 import net.rychkov.lab.widgets.dal.repository.WidgetRepository;
+import net.rychkov.lab.widgets.dal.repository.ZShiftStrategy;
 import net.rychkov.lab.widgets.service.WidgetService;
 import org.junit.jupiter.api.Test;
 import org.mockito.InOrder;
@@ -97,6 +102,83 @@ public class DefaultWidgetServiceImplTests {
         assertEquals(repoCount, serviceResult.size());
     }
 
+    @Test
+    public void getWidgetsAfter() {
+
+        ArrayList<Widget> repoContent = generateRepoContent(5);
+
+        // mock: one widget more than limit - next slice exists
+        when(repository.getAllOrderByZAfter(1, 3)).thenReturn(repoContent.subList(2, 5));
+        when(repository.getAllOrderByZAfter(3, 3)).thenReturn(repoContent.subList(4, 5));
+
+        CursorPage<Widget> first = service.getWidgetsAfter(1, 2);
+        assertEquals(repoContent.subList(2, 4), new ArrayList<>(first.getElements()));
+        assertEquals(3, first.getNextAfterZ());
+
+        CursorPage<Widget> last = service.getWidgetsAfter(first.getNextAfterZ(), 2);
+        assertEquals(repoContent.subList(4, 5), new ArrayList<>(last.getElements()));
+        assertNull(last.getNextAfterZ());
+
+        assertThrows(IllegalArgumentException.class, () -> service.getWidgetsAfter(null, 0));
+    }
+
+    @Test
+    public void getChangesSince() {
+
+        WidgetChangeFeed feed = new WidgetChangeFeed(4);
+        when(repository.getChangeFeed()).thenReturn(feed);
+
+        Widget first = new Widget(1, 1, 1, 1, 1, 1, new Date());
+        Widget second = new Widget(2, 2, 2, 2, 2, 2, new Date());
+
+        feed.publish(Arrays.asList(WidgetChange.put(first), WidgetChange.put(second)));
+        feed.publish(Collections.singletonList(WidgetChange.removed(1)));
+        feed.publish(Collections.singletonList(WidgetChange.put(new Widget(2, 2, 2, 5, 2, 2, new Date()))));
+
+        // only last change of each widget
+        ChangeSet changes = service.getChangesSince(feed.token(0));
+        assertFalse(changes.isResync());
+        assertEquals(feed.token(4), changes.getSince());
+        assertEquals(Collections.singletonList(1), new ArrayList<>(changes.getRemoved()));
+        assertEquals(1, changes.getChanged().size());
+        assertEquals(5, changes.getChanged().iterator().next().getDelta().getZ());
+
+        ChangeSet none = service.getChangesSince(feed.token(4));
+        assertEquals(feed.token(4), none.getSince());
+        assertTrue(none.getChanged().isEmpty() && none.getRemoved().isEmpty());
+
+        // changes since 0 are overwritten
+        feed.publish(Collections.singletonList(WidgetChange.removed(2)));
+        ChangeSet resync = service.getChangesSince(feed.token(0));
+        assertTrue(resync.isResync());
+        assertEquals(feed.token(5), resync.getSince());
+
+        assertThrows(IllegalArgumentException.class, () -> service.getChangesSince(feed.token(-1)));
+        assertThrows(IllegalArgumentException.class, () -> service.getChangesSince("x-y"));
+    }
+
+    @Test
+    public void getChangesSinceRestart() {
+
+        WidgetChangeFeed before = new WidgetChangeFeed(4);
+        before.publish(Collections.singletonList(WidgetChange.removed(1)));
+        String since = before.token(before.getLastSequence());
+
+        // the same sequence is valid in new feed (after restart), but changes are other ones
+        WidgetChangeFeed feed = new WidgetChangeFeed(4);
+        feed.publish(Arrays.asList(WidgetChange.removed(2), WidgetChange.removed(3)));
+        when(repository.getChangeFeed()).thenReturn(feed);
+
+        ChangeSet resync = service.getChangesSince(since);
+        assertTrue(resync.isResync());
+        assertEquals(feed.token(2), resync.getSince());
+
+        // sequence without epoch
+        assertTrue(service.getChangesSince("1").isResync());
+
+        assertEquals(Collections.singletonList(3), new ArrayList<>(service.getChangesSince(feed.token(1)).getRemoved()));
+    }
+
     @Test
     public void addWithoutZEmptyList() throws ConstraintViolationException {
 
@@ -190,63 +272,38 @@ public class DefaultWidgetServiceImplTests {
     }
 
     @Test
-    public void addToEmptyRepo() throws ConstraintViolationException {
-
-        // repo
-        final int repoCount = 0;
-        ArrayList<Widget> repoContent = generateRepoContent(repoCount);
+    public void addWithoutZRetryOnConflict() throws ConstraintViolationException {
 
         // samples
-        WidgetCreateRequest request = new WidgetCreateRequest(10,20,30,10,10);
-        WidgetDelta delta = new WidgetDelta(
-                request.getX(),
-                request.getY(),
-                0,
-                request.getWidth(),
-                request.getHeight()
-        );
-        Widget createdWidget = new Widget(
-                1,
-                request.getX(),
-                request.getY(),
-                request.getZ(),
-                request.getWidth(),
-                request.getHeight(),
-                new Date()
-        );
+        WidgetCreateRequest request = new WidgetCreateRequest(10,20,null,10,10);
+        Widget createdWidget = new Widget(1, 10, 20, 20+Z_STEP, 10, 10, new Date());
 
-        // mock
-        when(repository.getAllOrderByZ()).thenReturn(new ArrayList<>());
-        when(repository.add(any(WidgetDelta.class))).thenReturn(createdWidget);
+        // mock: other widget takes max z between getMaxZ and add
+        when(repository.getMaxZ()).thenReturn(4, 20, 20);
+        when(repository.add(any(WidgetDelta.class)))
+                .thenThrow(new ConstraintViolationException("Not unique for Z"))
+                .thenReturn(createdWidget);
 
         // test
         Widget result = service.addWidget(request);
 
         // check returned widget
-        assertNotNull(result);
-        assertEquals(request.getX(), result.getX());
-        assertEquals(request.getY(), result.getY());
-        assertEquals(request.getZ(), result.getZ());
-        assertEquals(request.getHeight(), result.getHeight());
-        assertEquals(request.getWidth(), result.getWidth());
+        assertEquals(20+Z_STEP, result.getZ());
 
-        // check repository call
-        verify(repository).add(delta);
+        // check repository calls (second try with new max z)
+        verify(repository, times(2)).add(any(WidgetDelta.class));
+        verify(repository, times(3)).getMaxZ();
     }
 
     @Test
-    public void addToFirstPosition() throws ConstraintViolationException {
-
-        // repo
-        final int repoCount = 5;
-        ArrayList<Widget> repoContent = generateRepoContent(repoCount);
+    public void addToEmptyRepo() throws ConstraintViolationException {
 
         // samples
-        WidgetCreateRequest request = new WidgetCreateRequest(10,20,0,10,10);
+        WidgetCreateRequest request = new WidgetCreateRequest(10,20,30,10,10);
         WidgetDelta delta = new WidgetDelta(
                 request.getX(),
                 request.getY(),
-                repoContent.get(0).getZ()-Z_STEP,
+                request.getZ(),
                 request.getWidth(),
                 request.getHeight()
         );
@@ -261,8 +318,7 @@ public class DefaultWidgetServiceImplTests {
         );
 
         // mock
-        when(repository.getAllOrderByZ()).thenReturn(repoContent);
-        when(repository.add(any(WidgetDelta.class))).thenReturn(createdWidget);
+        when(repository.insertAt(any(WidgetDelta.class), any(ZShiftStrategy.class))).thenReturn(createdWidget);
 
         // test
         Widget result = service.addWidget(request);
@@ -271,28 +327,24 @@ public class DefaultWidgetServiceImplTests {
         assertNotNull(result);
         assertEquals(request.getX(), result.getX());
         assertEquals(request.getY(), result.getY());
-        assertEquals(repoContent.get(0).getZ()-Z_STEP, result.getZ());
+        assertEquals(request.getZ(), result.getZ());
         assertEquals(request.getHeight(), result.getHeight());
         assertEquals(request.getWidth(), result.getWidth());
 
-        // check repository call
-        verify(repository).add(delta);
-
+        // check repository call: position search and shifting inside repository
+        verify(repository).insertAt(eq(delta), any(ZShiftStrategy.class));
+        verify(repository, never()).getAllOrderByZ();
     }
 
     @Test
-    public void addToLastPosition() throws ConstraintViolationException {
-
-        // repo
-        final int repoCount = 5;
-        ArrayList<Widget> repoContent = generateRepoContent(repoCount);
+    public void addToFirstPosition() throws ConstraintViolationException {
 
         // samples
-        WidgetCreateRequest request = new WidgetCreateRequest(10,20,5,10,10);
+        WidgetCreateRequest request = new WidgetCreateRequest(10,20,0,10,10);
         WidgetDelta delta = new WidgetDelta(
                 request.getX(),
                 request.getY(),
-                repoContent.get(repoCount-1).getZ()+Z_STEP,
+                request.getZ(),
                 request.getWidth(),
                 request.getHeight()
         );
@@ -307,8 +359,7 @@ public class DefaultWidgetServiceImplTests {
         );
 
         // mock
-        when(repository.getAllOrderByZ()).thenReturn(repoContent);
-        when(repository.add(any(WidgetDelta.class))).thenReturn(createdWidget);
+        when(repository.insertAt(any(WidgetDelta.class), any(ZShiftStrategy.class))).thenReturn(createdWidget);
 
         // test
         Widget result = service.addWidget(request);
@@ -317,25 +368,20 @@ public class DefaultWidgetServiceImplTests {
         assertNotNull(result);
         assertEquals(request.getX(), result.getX());
         assertEquals(request.getY(), result.getY());
-        assertEquals(repoContent.get(repoCount-1).getZ()+Z_STEP, result.getZ());
+        assertEquals(request.getZ(), result.getZ());
         assertEquals(request.getHeight(), result.getHeight());
         assertEquals(request.getWidth(), result.getWidth());
 
-        // check repository call
-        verify(repository).add(delta);
-
+        // check repository call: position search and shifting inside repository
+        verify(repository).insertAt(eq(delta), any(ZShiftStrategy.class));
+        verify(repository, never()).getAllOrderByZ();
     }
 
     @Test
-    public void addToMiddleWithShift() throws ConstraintViolationException {
-
-        // repo
-        final int repoCount = 8;
-        ArrayList<Widget> repoContent = generateRepoContent(repoCount);
+    public void addToLastPosition() throws ConstraintViolationException {
 
         // samples
-        int zCoord = 6;
-        WidgetCreateRequest request = new WidgetCreateRequest(10,20,zCoord,10,10);
+        WidgetCreateRequest request = new WidgetCreateRequest(10,20,5,10,10);
         WidgetDelta delta = new WidgetDelta(
                 request.getX(),
                 request.getY(),
@@ -354,19 +400,7 @@ public class DefaultWidgetServiceImplTests {
         );
 
         // mock
-        when(repository.getAllOrderByZ()).thenReturn(repoContent);
-        when(repository.updateAll(argThat(m ->
-                m.size()==2 &&
-                m.containsKey(7) &&
-                m.containsKey(8) &&
-                m.get(7).getZ()==7 &&
-                m.get(8).getZ()==23
-                )))
-            .thenReturn(Arrays.asList(
-                new Widget(7,6,6,7,6,6, new Date()),
-                new Widget(8,7,7,23,7,7, new Date())
-            ));
-        when(repository.add(any(WidgetDelta.class))).thenReturn(createdWidget);
+        when(repository.insertAt(any(WidgetDelta.class), any(ZShiftStrategy.class))).thenReturn(createdWidget);
 
         // test
         Widget result = service.addWidget(request);
@@ -379,28 +413,16 @@ public class DefaultWidgetServiceImplTests {
         assertEquals(request.getHeight(), result.getHeight());
         assertEquals(request.getWidth(), result.getWidth());
 
-        // check repository call
-        InOrder mockOrder = inOrder(repository);
-        mockOrder.verify(repository).updateAll(argThat(m ->
-                m.size()==2 &&
-                        m.containsKey(7) &&
-                        m.containsKey(8) &&
-                        m.get(7).getZ()==7 &&
-                        m.get(8).getZ()==23
-        ));
-        mockOrder.verify(repository).add(delta);
+        // check repository call: position search and shifting inside repository
+        verify(repository).insertAt(eq(delta), any(ZShiftStrategy.class));
+        verify(repository, never()).getAllOrderByZ();
     }
 
     @Test
-    public void addToMiddleWithForceRebuildIndex() throws ConstraintViolationException {
-
-        // repo
-        final int repoCount = 8;
-        ArrayList<Widget> repoContent = generateRepoContent(repoCount);
+    public void addToMiddleWithShift() throws ConstraintViolationException {
 
         // samples
-        int zCoord = 3;
-        WidgetCreateRequest request = new WidgetCreateRequest(10,20,zCoord,10,10);
+        WidgetCreateRequest request = new WidgetCreateRequest(10,20,6,10,10);
         WidgetDelta delta = new WidgetDelta(
                 request.getX(),
                 request.getY(),
@@ -419,8 +441,7 @@ public class DefaultWidgetServiceImplTests {
         );
 
         // mock
-        when(repository.getAllOrderByZ()).thenReturn(repoContent);
-        when(repository.add(any(WidgetDelta.class))).thenReturn(createdWidget);
+        when(repository.insertAt(any(WidgetDelta.class), any(ZShiftStrategy.class))).thenReturn(createdWidget);
 
         // test
         Widget result = service.addWidget(request);
@@ -433,30 +454,14 @@ public class DefaultWidgetServiceImplTests {
         assertEquals(request.getHeight(), result.getHeight());
         assertEquals(request.getWidth(), result.getWidth());
 
-        // check repository call
-        InOrder mockOrder = inOrder(repository);
-
-        mockOrder.verify(repository).updateAll(argThat(m ->
-                m.size()==5 &&
-                m.containsKey(4) && m.containsKey(5) &&
-                m.containsKey(6) && m.containsKey(7) &&
-                m.containsKey(8) &&
-                m.get(4).getZ()==(zCoord + Z_STEP*1) &&
-                m.get(5).getZ()==(zCoord + Z_STEP*2) &&
-                m.get(6).getZ()==(zCoord + Z_STEP*3) &&
-                m.get(7).getZ()==(zCoord + Z_STEP*4) &&
-                m.get(8).getZ()==(zCoord + Z_STEP*5)
-        ));
-        mockOrder.verify(repository).add(delta);
+        // check repository call: shifting (without full list) inside repository
+        verify(repository).insertAt(eq(delta), any(ZShiftStrategy.class));
+        verify(repository, never()).getAllOrderByZ();
     }
 
     @Test
     public void updateNoZConflict() throws ConstraintViolationException {
 
-        // repo
-        final int repoCount = 8;
-        ArrayList<Widget> repoContent = generateRepoContent(repoCount);
-
         // samples
         int widgetId = 3;
         int zCoord = 10;
@@ -469,7 +474,7 @@ public class DefaultWidgetServiceImplTests {
                 request.getHeight()
         );
         Widget updatedWidget = new Widget(
-                1,
+                widgetId,
                 delta.getX(),
                 delta.getY(),
                 delta.getZ(),
@@ -479,9 +484,7 @@ public class DefaultWidgetServiceImplTests {
         );
 
         // mock
-        when(repository.getAllOrderByZ()).thenReturn(repoContent);
-        when(repository.get(widgetId)).thenReturn(repoContent.get((int)widgetId-1));
-        when(repository.update(eq(widgetId),any(WidgetDelta.class))).thenReturn(updatedWidget);
+        when(repository.moveTo(eq(widgetId), any(WidgetDelta.class), any(ZShiftStrategy.class))).thenReturn(updatedWidget);
 
         // test
         Widget result = service.updateWidget(widgetId, request);
@@ -494,19 +497,14 @@ public class DefaultWidgetServiceImplTests {
         assertEquals(request.getHeight(), result.getHeight());
         assertEquals(request.getWidth(), result.getWidth());
 
-        // check repository call
-        InOrder mockOrder = inOrder(repository);
-
-        mockOrder.verify(repository).update(eq(widgetId), eq(delta) );
+        // check repository call: position search and shifting inside repository
+        verify(repository).moveTo(eq(widgetId), eq(delta), any(ZShiftStrategy.class));
+        verify(repository, never()).getAllOrderByZ();
     }
 
     @Test
     public void updateZConflict() throws ConstraintViolationException {
 
-        // repo
-        final int repoCount = 8;
-        ArrayList<Widget> repoContent = generateRepoContent(repoCount);
-
         // samples
         int widgetId = 3;
         int zCoord = 7;
@@ -519,7 +517,7 @@ public class DefaultWidgetServiceImplTests {
                 request.getHeight()
         );
         Widget updatedWidget = new Widget(
-                1,
+                widgetId,
                 delta.getX(),
                 delta.getY(),
                 delta.getZ(),
@@ -529,11 +527,7 @@ public class DefaultWidgetServiceImplTests {
         );
 
         // mock
-        when(repository.getAllOrderByZ()).thenReturn(repoContent);
-        when(repository.get(widgetId)).thenReturn(repoContent.get(widgetId-1));
-        when(repository.updateAll(argThat(m -> m.size()==1 && m.containsKey(widgetId))))
-                .thenReturn(Arrays.asList(updatedWidget));
-        when(repository.update(eq(widgetId),any(WidgetDelta.class))).thenReturn(updatedWidget);
+        when(repository.moveTo(eq(widgetId), any(WidgetDelta.class), any(ZShiftStrategy.class))).thenReturn(updatedWidget);
 
         // test
         Widget result = service.updateWidget(widgetId, request);
@@ -546,17 +540,9 @@ public class DefaultWidgetServiceImplTests {
         assertEquals(request.getHeight(), result.getHeight());
         assertEquals(request.getWidth(), result.getWidth());
 
-        // check repository call
-        InOrder mockOrder = inOrder(repository);
-
-        mockOrder.verify(repository).updateAll(argThat(m ->
-                m.size()==1 &&
-                m.containsKey(8) &&
-                m.get(8).getZ()==23
-        ));
-
-        mockOrder.verify(repository).update(eq(widgetId), eq(delta) );
-
+        // check repository call: position search and shifting inside repository
+        verify(repository).moveTo(eq(widgetId), eq(delta), any(ZShiftStrategy.class));
+        verify(repository, never()).getAllOrderByZ();
     }
 
     @Test
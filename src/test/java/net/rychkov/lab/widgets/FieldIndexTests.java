@@ -0,0 +1,64 @@
+package net.rychkov.lab.widgets;
+
+import net.rychkov.lab.widgets.dal.model.Widget;
+import net.rychkov.lab.widgets.dal.model.WidgetDelta;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.FieldIndex;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FieldIndexTests {
+
+    @Test
+    public void sameAsTreeMap() {
+
+        FieldIndex<Integer> index = new FieldIndex<>("Z", true, Widget::getZ, WidgetDelta::getZ);
+        TreeMap<Integer, Widget> reference = new TreeMap<>();
+
+        Random random = new Random(1);
+
+        for(int i=0; i<20000; i++) {
+            int z = random.nextInt(5000);
+
+            Widget existed = reference.get(z);
+            if(existed!=null) {
+                index.remove(existed);
+                reference.remove(z);
+            }
+            else {
+                Widget widget = new Widget(i+1, 0, 0, z, 1, 1, new Date());
+                index.add(widget);
+                reference.put(z, widget);
+            }
+        }
+
+        assertEquals(reference.size(), index.size());
+        assertEquals(reference.lastKey(), index.lastKey());
+
+        List<Integer> expected = new ArrayList<>();
+        reference.values().forEach(w -> expected.add(w.getId()));
+
+        assertEquals(expected, new ArrayList<>(index.get()));
+
+        // slices by position
+        for(int offset=0; offset<=expected.size()+10; offset+=97) {
+            assertEquals(
+                    expected.subList(Math.min(offset, expected.size()), Math.min(offset+50, expected.size())),
+                    new ArrayList<>(index.get(offset, 50))
+            );
+        }
+    }
+
+    @Test
+    public void emptyIndex() {
+
+        FieldIndex<Integer> index = new FieldIndex<>("Z", true, Widget::getZ, WidgetDelta::getZ);
+
+        assertEquals(0, index.size());
+        assertNull(index.lastKey());
+        assertTrue(index.get().isEmpty());
+        assertTrue(index.get(0, 10).isEmpty());
+    }
+}
@@ -0,0 +1,485 @@
+package net.rychkov.lab.widgets;
+
+import net.rychkov.lab.widgets.api.model.WidgetCreateRequest;
+import net.rychkov.lab.widgets.dal.model.Widget;
+import net.rychkov.lab.widgets.dal.model.WidgetChange;
+import net.rychkov.lab.widgets.dal.model.WidgetDelta;
+import net.rychkov.lab.widgets.dal.repository.CascadeZShiftStrategy;
+import net.rychkov.lab.widgets.dal.repository.ConstraintViolationException;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.ComplexIndex;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.RepositoryImpl;
+import net.rychkov.lab.widgets.dal.repository.RelabelZShiftStrategy;
+import net.rychkov.lab.widgets.dal.repository.WidgetRepository;
+import net.rychkov.lab.widgets.dal.repository.ZShiftStrategy;
+import net.rychkov.lab.widgets.dal.repository.h2.DbWidgetRepository;
+import net.rychkov.lab.widgets.service.DefaultWidgetServiceImpl;
+import net.rychkov.lab.widgets.service.WidgetService;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+
+import javax.persistence.EntityManagerFactory;
+import javax.transaction.NotSupportedException;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest
+@DirtiesContext
+public class H2WidgetRepositoryTests {
+
+    @Autowired
+    @Qualifier("h2")
+    private WidgetRepository repository;
+
+    /**
+     * Spatial index variant over the same table
+     */
+    @Autowired
+    @Qualifier("h2Spatial")
+    private WidgetRepository spatialRepository;
+
+    @Autowired
+    private JdbcTemplate jdbc;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private DbWidgetRepository db;
+
+    @AfterEach
+    public void clear() {
+        jdbc.update("truncate table widget");
+    }
+
+    private static Set<Integer> xs(Collection<Widget> widgets) {
+        return widgets.stream().map(Widget::getX).collect(Collectors.toSet());
+    }
+
+    @Test
+    public void filteredByRectangle() throws ConstraintViolationException, NotSupportedException {
+
+        WidgetRepository inMemory = new RepositoryImpl();
+
+        List<WidgetDelta> deltas = Arrays.asList(
+                new WidgetDelta(10, 10, 1, 10, 10),
+                new WidgetDelta(20, 20, 2, 10, 10),
+                new WidgetDelta(30, 30, 3, 20, 20),
+                new WidgetDelta(45, 45, 4, 10, 10),
+                new WidgetDelta(11, 40, 5, 2, 50)
+        );
+        repository.addAll(deltas);
+        inMemory.addAll(deltas);
+
+        int[][] regions = {{0, 0, 25, 25}, {5, 5, 25, 25}, {0, 0, 50, 50}, {15, 15, 50, 50}, {0, 0, 100, 100}, {100, 100, 200, 200}};
+        for(int[] r : regions) {
+            assertEquals(xs(inMemory.getFilteredByRectangle(r[0], r[1], r[2], r[3])),
+                    xs(repository.getFilteredByRectangle(r[0], r[1], r[2], r[3])));
+            assertEquals(xs(inMemory.getFilteredByRectangle(r[0], r[1], r[2], r[3])),
+                    xs(spatialRepository.getFilteredByRectangle(r[0], r[1], r[2], r[3])));
+        }
+
+        // borders are included
+        assertEquals(Collections.singleton(10), xs(repository.getFilteredByRectangle(5, 5, 15, 15)));
+
+        // borders are changed with widget
+        Widget moved = repository.getFilteredByRectangle(5, 5, 15, 15).iterator().next();
+        repository.update(moved.getId(), new WidgetDelta(100, 100, null, null, null));
+        assertTrue(repository.getFilteredByRectangle(5, 5, 15, 15).isEmpty());
+        assertEquals(1, repository.getFilteredByRectangle(95, 95, 105, 105).size());
+        assertTrue(spatialRepository.getFilteredByRectangle(5, 5, 15, 15).isEmpty());
+        assertEquals(1, spatialRepository.getFilteredByRectangle(95, 95, 105, 105).size());
+
+        // writes through spatial repository go to h2 repository (same version and change feed)
+        long version = repository.getVersion();
+        spatialRepository.add(new WidgetDelta(200, 200, 6, 10, 10));
+        assertEquals(version + 1, repository.getVersion());
+        assertEquals(repository.getVersion(), spatialRepository.getVersion());
+        assertSame(repository.getChangeFeed(), spatialRepository.getChangeFeed());
+        assertEquals(1, repository.getFilteredByRectangle(195, 195, 205, 205).size());
+        assertEquals(1, spatialRepository.getFilteredByRectangle(195, 195, 205, 205).size());
+
+        // range of composite index is used
+        String plan = jdbc.queryForObject("explain select * from widget where left_bound between 100 and 200" +
+                " and top_bound between 100 and 200 and right_bound <= 200 and bottom_bound <= 200", String.class);
+        assertTrue(plan.toUpperCase().contains("WIDGET_BOUNDS_"), plan);
+        plan = jdbc.queryForObject("explain select * from widget" +
+                " where bounds && cast('POLYGON ((100 100, 200 100, 200 200, 100 200, 100 100))' as geometry)", String.class);
+        assertTrue(plan.toUpperCase().contains("WIDGET_BOUNDS_SPATIAL_IX"), plan);
+    }
+
+    @Test
+    public void concurrentAddsWithoutZ() throws InterruptedException {
+
+        WidgetService service = new DefaultWidgetServiceImpl(repository, new CascadeZShiftStrategy());
+
+        final int threads = 4;
+        final int adds = 50;
+
+        Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+
+        // adders to the top (max z is taken outside of repository lock)
+        for(int t=0; t<threads; t++) {
+            executor.submit(() -> {
+                try {
+                    for(int i=0; i<adds; i++) {
+                        WidgetCreateRequest request = new WidgetCreateRequest();
+                        request.setX(i);
+                        request.setY(i);
+                        request.setWidth(1);
+                        request.setHeight(1);
+                        service.addWidget(request);
+                    }
+                }
+                catch(Throwable e) {
+                    errors.add(e);
+                }
+            });
+        }
+
+        // inserts in the middle push widgets to the top too
+        executor.submit(() -> {
+            try {
+                for(int i=0; i<adds; i++) {
+                    WidgetCreateRequest request = new WidgetCreateRequest();
+                    request.setX(i);
+                    request.setY(i);
+                    request.setZ(i);
+                    request.setWidth(1);
+                    request.setHeight(1);
+                    service.addWidget(request);
+                }
+            }
+            catch(Throwable e) {
+                errors.add(e);
+            }
+        });
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+        assertTrue(errors.isEmpty(), () -> errors.peek().toString());
+        assertEquals((threads + 1) * adds, (int)jdbc.queryForObject("select count(*) from widget", Integer.class));
+        assertEquals((threads + 1) * adds, (int)jdbc.queryForObject("select count(distinct z) from widget", Integer.class));
+    }
+
+    @Test
+    public void readsMatchEntities() throws ConstraintViolationException {
+
+        List<WidgetDelta> deltas = new ArrayList<>();
+        for(int i=0; i<25; i++) {
+            deltas.add(new WidgetDelta(i, i, 100 - i, 2, 2));
+        }
+        repository.addAll(deltas);
+
+        Sort zSort = Sort.by("z");
+
+        assertEquals(xz(db.findAll(zSort)), xz(repository.getAllOrderByZ()));
+
+        net.rychkov.lab.widgets.dal.model.Page<Widget> page = repository.getAllOrderByZ(1, 10);
+        org.springframework.data.domain.Page<Widget> entityPage = db.findAll(PageRequest.of(1, 10, zSort));
+        assertEquals(xz(entityPage.getContent()), xz(page.getElements()));
+        assertEquals(entityPage.getTotalPages(), page.getPageCount());
+        assertEquals(entityPage.getTotalElements(), page.getElementCount());
+        assertTrue(repository.getAllOrderByZ(5, 10).getElements().isEmpty());
+
+        assertEquals(xz(db.findAll(PageRequest.of(0, 5, zSort)).getContent()), xz(repository.getAllOrderByZAfter(null, 5)));
+        assertEquals(xz(db.findAll(PageRequest.of(1, 5, zSort)).getContent()), xz(repository.getAllOrderByZAfter(80, 5)));
+
+        Widget widget = repository.getAllOrderByZ().iterator().next();
+        assertEquals(db.findById(widget.getId()).get().getLastModificationDate().getTime(),
+                repository.get(widget.getId()).getLastModificationDate().getTime());
+
+        // entity has sql Timestamp, row - Date: widgets are equal in both directions
+        Widget entity = db.findById(widget.getId()).get();
+        assertEquals(entity, repository.get(widget.getId()));
+        assertEquals(repository.get(widget.getId()), entity);
+        assertEquals(entity.hashCode(), repository.get(widget.getId()).hashCode());
+        assertEquals(entity, new Widget(entity.getId(), entity.getX(), entity.getY(), entity.getZ(),
+                entity.getWidth(), entity.getHeight(), entity.getLastModificationDate()));
+        assertNull(repository.get(-1));
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void readBenchmark() {
+
+        final int count = 100_000;
+        final int rounds = 20;
+
+        jdbc.update("insert into widget (id, x, y, z, width, height, last_modification_date)" +
+                " select 1000000000 + x, x, 0, x, 2, 2, current_timestamp from system_range(1, ?)", count);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        Sort zSort = Sort.by("z");
+
+        long[] entities = new long[2];
+        long[] rows = new long[2];
+
+        // the first half of rounds is warm up
+        for(int round=0; round<rounds; round++) {
+            boolean measured = round >= rounds/2;
+
+            long bytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            long start = System.nanoTime();
+            assertEquals(count, db.findAll(zSort).size());
+            for(int p=0; p<100; p++) {
+                db.findAll(PageRequest.of(p * 10, 10, zSort));
+            }
+            if(measured) {
+                entities[0] += System.nanoTime() - start;
+                entities[1] += threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - bytes;
+            }
+
+            bytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            start = System.nanoTime();
+            assertEquals(count, repository.getAllOrderByZ().size());
+            for(int p=0; p<100; p++) {
+                repository.getAllOrderByZ(p * 10, 10);
+            }
+            if(measured) {
+                rows[0] += System.nanoTime() - start;
+                rows[1] += threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - bytes;
+            }
+        }
+
+        int measuredRounds = rounds - rounds/2;
+        System.out.printf("Read %d widgets and 100 pages from h2 (per round): entities %d ms / %d MB, rows %d ms / %d MB%n",
+                count, entities[0] / measuredRounds / 1_000_000, entities[1] / measuredRounds / (1 << 20),
+                rows[0] / measuredRounds / 1_000_000, rows[1] / measuredRounds / (1 << 20));
+
+        // rows are mapped directly to widgets - without entities and persistence context
+        assertTrue(rows[1] < entities[1], "row mapping must allocate less than entities");
+    }
+
+    /**
+     * Add widgets by addAll
+     * @return Count of prepared statements
+     */
+    private long addAllStatements(List<WidgetDelta> deltas) throws ConstraintViolationException {
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.setStatisticsEnabled(true);
+        statistics.clear();
+
+        Collection<Widget> added = repository.addAll(deltas);
+
+        long statements = statistics.getPrepareStatementCount();
+        statistics.setStatisticsEnabled(false);
+
+        assertEquals(deltas.size(), added.stream().map(Widget::getId).distinct().count());
+        assertEquals(deltas.size(), (int)jdbc.queryForObject("select count(*) from widget", Integer.class));
+
+        return statements;
+    }
+
+    private static List<WidgetDelta> deltas(int count) {
+        List<WidgetDelta> deltas = new ArrayList<>(count);
+        for(int i=0; i<count; i++) {
+            deltas.add(new WidgetDelta(i, i, i, 2, 2));
+        }
+        return deltas;
+    }
+
+    @Test
+    public void addAllBatched() throws ConstraintViolationException {
+
+        final int count = 1000;
+
+        // inserts are batched, IDs are allocated by blocks (not statement per widget)
+        long statements = addAllStatements(deltas(count));
+        assertTrue(statements < count / 10, "statements: " + statements);
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void addAllBenchmark() throws ConstraintViolationException {
+
+        final int count = 10_000;
+
+        List<WidgetDelta> deltas = deltas(count);
+
+        // warm up
+        for(int i=0; i<3; i++) {
+            repository.addAll(deltas);
+            clear();
+        }
+
+        long start = System.nanoTime();
+        long statements = addAllStatements(deltas);
+        long millis = (System.nanoTime() - start) / 1_000_000;
+
+        System.out.printf("Add %d widgets to h2 by addAll: %d ms, %d statements%n", count, millis, statements);
+    }
+
+    /**
+     * Widgets as (x, z) ordered by z - x identifies widget in different repositories
+     */
+    private static List<String> xz(Collection<Widget> widgets) {
+        return widgets.stream().map(w -> w.getX() + ":" + w.getZ()).collect(Collectors.toList());
+    }
+
+    /**
+     * Published images of changed widgets are the same as stored ones
+     */
+    private void assertChangesStored(long afterSequence) {
+        for(WidgetChange c : repository.getChangeFeed().read(afterSequence, Integer.MAX_VALUE)) {
+            assertEquals(repository.get(c.getId()).getZ(), c.getDelta().getZ());
+        }
+    }
+
+    @Test
+    public void shiftMatchesInMemory() throws ConstraintViolationException {
+
+        for(ZShiftStrategy strategy : Arrays.asList(new CascadeZShiftStrategy(), new RelabelZShiftStrategy())) {
+
+            WidgetRepository inMemory = new RepositoryImpl();
+
+            // dense run (no gaps) and sparse tail
+            List<WidgetDelta> deltas = new ArrayList<>();
+            for(int i=0; i<200; i++) {
+                deltas.add(new WidgetDelta(i, 0, i, 1, 1));
+            }
+            for(int i=0; i<100; i++) {
+                deltas.add(new WidgetDelta(200 + i, 0, 1000 + i*ZShiftStrategy.Z_STEP, 1, 1));
+            }
+            repository.addAll(deltas);
+            inMemory.addAll(deltas);
+
+            long sequence = repository.getChangeFeed().getLastSequence();
+            repository.insertAt(new WidgetDelta(1000, 0, 50, 1, 1), strategy);
+            inMemory.insertAt(new WidgetDelta(1000, 0, 50, 1, 1), strategy);
+            assertChangesStored(sequence);
+
+            sequence = repository.getChangeFeed().getLastSequence();
+            repository.insertAllAt(Arrays.asList(new WidgetDelta(1001, 0, 10, 1, 1), new WidgetDelta(1002, 0, 1000, 1, 1)), strategy);
+            inMemory.insertAllAt(Arrays.asList(new WidgetDelta(1001, 0, 10, 1, 1), new WidgetDelta(1002, 0, 1000, 1, 1)), strategy);
+            assertChangesStored(sequence);
+
+            // move widget down into dense run
+            Widget moved = repository.getAllOrderByZ().stream().filter(w -> w.getX()==250).findFirst().get();
+            Widget movedInMemory = inMemory.getAllOrderByZ().stream().filter(w -> w.getX()==250).findFirst().get();
+            sequence = repository.getChangeFeed().getLastSequence();
+            repository.moveTo(moved.getId(), new WidgetDelta(null, null, 100, null, null), strategy);
+            inMemory.moveTo(movedInMemory.getId(), new WidgetDelta(null, null, 100, null, null), strategy);
+            assertChangesStored(sequence);
+
+            assertEquals(xz(inMemory.getAllOrderByZ()), xz(repository.getAllOrderByZ()));
+
+            clear();
+        }
+    }
+
+    @Test
+    public void parkingBelowMinimalZ() throws ConstraintViolationException {
+
+        Widget bottom = repository.add(new WidgetDelta(0, 0, Integer.MIN_VALUE, 1, 1));
+        Widget moved = repository.add(new WidgetDelta(1, 0, 0, 1, 1));
+        long version = repository.getVersion();
+
+        // no z below minimal integer for parking - rejected, nothing is changed
+        assertThrows(ConstraintViolationException.class, () -> repository.moveTo(moved.getId(),
+                new WidgetDelta(null, null, Integer.MIN_VALUE, null, null), new CascadeZShiftStrategy()));
+        assertThrows(ConstraintViolationException.class, () -> repository.moveAllTo(
+                Collections.singletonMap(moved.getId(), new WidgetDelta(null, null, 10, null, null)), new CascadeZShiftStrategy()));
+
+        assertEquals(version, repository.getVersion());
+        assertEquals(Integer.MIN_VALUE, (int) repository.get(bottom.getId()).getZ());
+        assertEquals(0, (int) repository.get(moved.getId()).getZ());
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void shiftBenchmark() throws ConstraintViolationException {
+
+        final int count = 100_000;
+
+        // dense run of widgets (z = x), IDs don't intersect with generated ones
+        jdbc.update("insert into widget (id, x, y, z, width, height, last_modification_date)" +
+                " select 1000000000 + x, x, 0, x, 2, 2, current_timestamp from system_range(1, ?)", count);
+
+        // cascade moves half of widgets: all by one except the last one
+        long start = System.nanoTime();
+        repository.insertAt(new WidgetDelta(0, 0, count/2 + 1, 2, 2), new CascadeZShiftStrategy());
+        long millis = (System.nanoTime() - start) / 1_000_000;
+
+        assertEquals(count/2 - 1, (int)jdbc.queryForObject("select count(*) from widget where z = x + 1", Integer.class));
+        assertEquals(count + ZShiftStrategy.Z_STEP, (int)jdbc.queryForObject("select z from widget where x = ?", Integer.class, count));
+        assertEquals(count + 1, (int)jdbc.queryForObject("select count(distinct z) from widget", Integer.class));
+
+        System.out.printf("Shift %d of %d widgets in h2: %d ms%n", count/2, count, millis);
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void filteredByRectangleBenchmark() throws NotSupportedException {
+
+        final int side = 500;
+        final int count = side * side;
+        final int step = 10;
+        final int size = 4;
+
+        // grid of widgets inserted by one statement (borders and bounding box are computed by database)
+        jdbc.update("insert into widget (id, x, y, z, width, height, last_modification_date)" +
+                " select x, mod(x, ?) * ?, (x / ?) * ?, x, ?, ?, current_timestamp from system_range(0, ?)",
+                side, step, side, step, size, size, count - 1);
+
+        ComplexIndex index = new ComplexIndex();
+        for(int i=0; i<count; i++) {
+            index.add(new Widget(i, (i % side) * step, (i / side) * step, i, size, size, null));
+        }
+
+        final int queries = 1000;
+        final int viewport = 100;
+        Random random = new Random(1);
+        int[][] regions = new int[queries][];
+        for(int i=0; i<queries; i++) {
+            int x = random.nextInt(side * step - viewport);
+            int y = random.nextInt(side * step - viewport);
+            regions[i] = new int[] {x, y, x + viewport, y + viewport};
+        }
+
+        long found = 0;
+        long start = System.nanoTime();
+        for(int[] r : regions) {
+            found += repository.getFilteredByRectangle(r[0], r[1], r[2], r[3]).size();
+        }
+        long h2Millis = (System.nanoTime() - start) / 1_000_000;
+
+        long foundSpatial = 0;
+        start = System.nanoTime();
+        for(int[] r : regions) {
+            foundSpatial += spatialRepository.getFilteredByRectangle(r[0], r[1], r[2], r[3]).size();
+        }
+        long spatialMillis = (System.nanoTime() - start) / 1_000_000;
+
+        long foundInMemory = 0;
+        start = System.nanoTime();
+        for(int[] r : regions) {
+            foundInMemory += index.getFilteredByRectangle(r[0], r[1], r[2], r[3]).size();
+        }
+        long inMemoryMillis = (System.nanoTime() - start) / 1_000_000;
+
+        assertEquals(foundInMemory, found);
+        assertEquals(foundInMemory, foundSpatial);
+
+        System.out.printf("Filter %d widgets by %d viewports (%d found): h2 bounds index %d ms, h2 spatial index %d ms, ComplexIndex %d ms%n",
+                count, queries, found, h2Millis, spatialMillis, inMemoryMillis);
+    }
+}
@@ -0,0 +1,124 @@
+package net.rychkov.lab.widgets;
+
+import net.rychkov.lab.widgets.dal.model.Widget;
+import net.rychkov.lab.widgets.dal.model.WidgetDelta;
+import net.rychkov.lab.widgets.dal.repository.ConstraintViolationException;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.MultiVersionRepositoryImpl;
+import net.rychkov.lab.widgets.dal.repository.WidgetRepository;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Multi-version repository tests
+ */
+public class MultiVersionWidgetRepositoryTests extends CustomInMemoryWidgetRepositoryTests {
+
+    @Override
+    protected WidgetRepository createRepository() {
+        return new MultiVersionRepositoryImpl();
+    }
+
+    @Test
+    public void updateSameZ() throws ConstraintViolationException {
+
+        WidgetRepository repository = createRepository();
+
+        Widget created = repository.add(new WidgetDelta(0,0,5,0,0));
+        Widget updated = repository.update(created.getId(), new WidgetDelta(10,null,5,null,null));
+
+        assertEquals(5, updated.getZ());
+        assertEquals(10, updated.getX());
+    }
+
+    @Test
+    public void updateAllSwapZ() throws ConstraintViolationException {
+
+        WidgetRepository repository = createRepository();
+
+        Widget w1 = repository.add(new WidgetDelta(0,0,1,0,0));
+        Widget w2 = repository.add(new WidgetDelta(0,0,2,0,0));
+
+        Map<Integer, WidgetDelta> changes = new HashMap<>();
+        changes.put(w1.getId(), new WidgetDelta(null,null,2,null,null));
+        changes.put(w2.getId(), new WidgetDelta(null,null,1,null,null));
+        repository.updateAll(changes);
+
+        assertEquals(2, repository.get(w1.getId()).getZ());
+        assertEquals(1, repository.get(w2.getId()).getZ());
+
+        // conflict - nothing changed
+        changes.clear();
+        changes.put(w1.getId(), new WidgetDelta(null,null,3,null,null));
+        changes.put(w2.getId(), new WidgetDelta(null,null,3,null,null));
+        assertThrows(ConstraintViolationException.class, () -> repository.updateAll(changes));
+
+        assertEquals(2, repository.get(w1.getId()).getZ());
+        assertEquals(1, repository.get(w2.getId()).getZ());
+    }
+
+    @Test
+    public void readersSeeConsistentSnapshot() throws Exception {
+
+        WidgetRepository repository = createRepository();
+
+        final int count = 1000;
+        final int step = 10;
+
+        List<WidgetDelta> deltas = new ArrayList<>();
+        for(int i=0; i<count; i++) {
+            deltas.add(new WidgetDelta(i, i, i*step, 1, 1));
+        }
+        Collection<Widget> created = repository.addAll(deltas);
+
+        AtomicBoolean stop = new AtomicBoolean(false);
+        ExecutorService service = Executors.newFixedThreadPool(3);
+
+        // writer - shift all widgets by one in a single batch (cascade)
+        Future<?> writer = service.submit(() -> {
+            for(int shift=1; shift<=200; shift++) {
+                Map<Integer, WidgetDelta> changes = new HashMap<>();
+                for(Widget w : created) {
+                    changes.put(w.getId(), new WidgetDelta(null, null, repository.get(w.getId()).getZ()+1, null, null));
+                }
+                repository.updateAll(changes);
+            }
+            stop.set(true);
+            return null;
+        });
+
+        // readers - z sequence must be shifted as a whole
+        List<Future<Integer>> readers = new ArrayList<>();
+        for(int r=0; r<2; r++) {
+            readers.add(service.submit(() -> {
+                int wrongReads = 0;
+                while(!stop.get()) {
+                    List<Widget> all = new ArrayList<>(repository.getAllOrderByZ());
+                    int base = all.get(0).getZ();
+                    for(int i=0; i<all.size(); i++) {
+                        if(all.get(i).getZ()!=base+i*step) {
+                            wrongReads++;
+                            break;
+                        }
+                    }
+                }
+                return wrongReads;
+            }));
+        }
+
+        writer.get(60, TimeUnit.SECONDS);
+        for(Future<Integer> reader : readers) {
+            assertEquals(0, reader.get(60, TimeUnit.SECONDS));
+        }
+        service.shutdown();
+
+        assertEquals(200, repository.getAllOrderByZ().iterator().next().getZ());
+    }
+}
@@ -0,0 +1,17 @@
+package net.rychkov.lab.widgets;
+
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.ComplexIndex;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.OffHeapWidgetStore;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.RepositoryImpl;
+import net.rychkov.lab.widgets.dal.repository.WidgetRepository;
+
+/**
+ * CustomInMemory repository tests with off-heap store
+ */
+public class OffHeapWidgetRepositoryTests extends CustomInMemoryWidgetRepositoryTests {
+
+    @Override
+    protected WidgetRepository createRepository() {
+        return new RepositoryImpl(new ComplexIndex(), new OffHeapWidgetStore());
+    }
+}
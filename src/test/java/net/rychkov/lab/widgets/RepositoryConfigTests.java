@@ -0,0 +1,39 @@
+package net.rychkov.lab.widgets;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.test.annotation.DirtiesContext;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Repositories of other modes are not created (write-ahead log is not opened and replayed)
+ */
+@SpringBootTest(properties = {
+        "widgets.repository.mode=h2",
+        "widgets.repository.wal.path=target/repository-config-tests.wal",
+        "widgets.repository.snapshot.path=target/repository-config-tests.snapshot"})
+@DirtiesContext
+public class RepositoryConfigTests {
+
+    @Autowired
+    private ConfigurableApplicationContext appContext;
+
+    @Test
+    public void otherModeRepositoriesAreNotCreated() {
+
+        assertTrue(appContext.getBeanFactory().containsSingleton("repository"));
+        assertFalse(appContext.getBeanFactory().containsSingleton("customInMemory"));
+        assertFalse(appContext.getBeanFactory().containsSingleton("customInMemoryMvcc"));
+        assertFalse(appContext.containsBean("snapshotScheduler"));
+
+        assertFalse(Files.exists(Paths.get("target/repository-config-tests.wal")));
+        assertFalse(Files.exists(Paths.get("target/repository-config-tests.snapshot")));
+    }
+
+}
@@ -0,0 +1,184 @@
+package net.rychkov.lab.widgets;
+
+import net.rychkov.lab.widgets.dal.model.Widget;
+import net.rychkov.lab.widgets.dal.model.WidgetDelta;
+import net.rychkov.lab.widgets.dal.repository.ConstraintViolationException;
+import net.rychkov.lab.widgets.dal.repository.CascadeZShiftStrategy;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.*;
+import net.rychkov.lab.widgets.dal.repository.RelabelZShiftStrategy;
+import net.rychkov.lab.widgets.dal.repository.WidgetRepository;
+import net.rychkov.lab.widgets.dal.repository.ZShiftStrategy;
+import org.junit.jupiter.api.Test;
+
+import javax.transaction.NotSupportedException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * CustomInMemory repository with skip-list z-index
+ */
+public class SkipListWidgetRepositoryTests extends CustomInMemoryWidgetRepositoryTests {
+
+    @Override
+    protected WidgetRepository createRepository() {
+        return new RepositoryImpl(new TiledSpatialIndex(), new ObjectWidgetStore(),
+                new SkipListFieldIndex<>("Z", Widget::getZ, WidgetDelta::getZ));
+    }
+
+    @Test
+    public void concurrentAddUniqueZ() throws Exception {
+
+        final int threads = 8;
+        final int zCount = 500;
+
+        WidgetRepository repository = createRepository();
+
+        // all threads try to add widgets with the same z-coordinates
+        AtomicInteger conflicts = new AtomicInteger();
+        ExecutorService service = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for(int t=0; t<threads; t++) {
+            final int thread = t;
+            futures.add(service.submit(() -> {
+                for(int z=0; z<zCount; z++) {
+                    try {
+                        repository.add(new WidgetDelta(thread*100, z, z, 10, 10));
+                    }
+                    catch (ConstraintViolationException e) {
+                        conflicts.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        for(Future<?> f : futures) {
+            f.get(30, TimeUnit.SECONDS);
+        }
+        service.shutdown();
+
+        List<Widget> all = new ArrayList<>(repository.getAllOrderByZ());
+
+        assertEquals(zCount, all.size());
+        assertEquals((threads-1)*zCount, conflicts.get());
+        for(int z=0; z<zCount; z++) {
+            assertEquals(z, all.get(z).getZ());
+        }
+        assertEquals(zCount-1, repository.getMaxZ());
+        assertEquals(zCount, repository.getAllOrderByZ(0, zCount*2).getElementCount());
+    }
+
+    @Test
+    public void concurrentInsertAtWithShift() throws Exception {
+
+        final int threads = 8;
+        final int insertCount = 300;
+
+        WidgetRepository repository = createRepository();
+
+        // dense z-sequence - most inserts shift neighbours
+        for(int z=0; z<1000; z+=2) {
+            repository.add(new WidgetDelta(0, 0, z, 10, 10));
+        }
+
+        ExecutorService service = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for(int t=0; t<threads; t++) {
+            final Random random = new Random(t);
+            final ZShiftStrategy strategy = t%2==0 ? new CascadeZShiftStrategy() : new RelabelZShiftStrategy();
+            futures.add(service.submit(() -> {
+                for(int i=0; i<insertCount; i++) {
+                    repository.insertAt(new WidgetDelta(0, 0, random.nextInt(1000), 10, 10), strategy);
+                }
+                return null;
+            }));
+        }
+        for(Future<?> f : futures) {
+            f.get(60, TimeUnit.SECONDS);
+        }
+        service.shutdown();
+
+        List<Widget> all = new ArrayList<>(repository.getAllOrderByZ());
+
+        // nothing is lost, z-sequence is strictly increasing and index agrees with store
+        assertEquals(500 + threads*insertCount, all.size());
+        for(int i=1; i<all.size(); i++) {
+            assertTrue(all.get(i-1).getZ() < all.get(i).getZ());
+        }
+        for(Widget w : all) {
+            assertEquals(w, repository.get(w.getId()));
+        }
+        assertEquals(all.get(all.size()-1).getZ(), repository.getMaxZ());
+    }
+
+    @Test
+    public void addAllConflictRollback() throws ConstraintViolationException, NotSupportedException {
+
+        WidgetRepository repository = createRepository();
+
+        repository.add(new WidgetDelta(0,0,1,1,1));
+
+        // duplicate inside of collection
+        assertThrows(ConstraintViolationException.class,
+                () -> repository.addAll(Arrays.asList(new WidgetDelta(0,0,2,1,1), new WidgetDelta(0,0,2,1,1))));
+
+        assertEquals(1, repository.getAllOrderByZ().size());
+        assertEquals(1, repository.getFilteredByRectangle(-10, -10, 10, 10).size());
+
+        Collection<Widget> created = repository.addAll(Arrays.asList(new WidgetDelta(0,0,2,1,1), new WidgetDelta(0,0,3,1,1)));
+        assertEquals(2, created.size());
+        assertEquals(3, repository.getAllOrderByZ().size());
+    }
+
+    @Test
+    public void slicesOrderedWhileMoving() throws Exception {
+
+        final int count = 200;
+        final int moves = 20000;
+
+        WidgetRepository repository = createRepository();
+
+        List<Integer> ids = new ArrayList<>();
+        for(int z=0; z<count; z++) {
+            ids.add(repository.add(new WidgetDelta(0, 0, z, 10, 10)).getId());
+        }
+
+        // writer moves widgets far to the top and back, reader streams slices after z
+        AtomicInteger done = new AtomicInteger();
+        ExecutorService service = Executors.newFixedThreadPool(2);
+        Future<?> writer = service.submit(() -> {
+            Random random = new Random(1);
+            for(int m=0; m<moves; m++) {
+                int i = random.nextInt(count);
+                repository.update(ids.get(i), new WidgetDelta(null, null, i + count*10, null, null));
+                repository.update(ids.get(i), new WidgetDelta(null, null, i, null, null));
+            }
+            done.set(1);
+            return null;
+        });
+        Future<Integer> reader = service.submit(() -> {
+            int broken = 0;
+            while(done.get()==0) {
+                Integer afterZ = null;
+                Collection<Widget> slice;
+                do {
+                    slice = repository.getAllOrderByZAfter(afterZ, 10);
+                    for(Widget w : slice) {
+                        if(afterZ!=null && w.getZ()<=afterZ) {
+                            broken++;
+                        }
+                        afterZ = w.getZ();
+                    }
+                } while(!slice.isEmpty());
+            }
+            return broken;
+        });
+
+        writer.get(60, TimeUnit.SECONDS);
+        // every slice is ordered by stored z and starts after requested z
+        assertEquals(0, reader.get(60, TimeUnit.SECONDS));
+        service.shutdown();
+    }
+}
@@ -0,0 +1,137 @@
+package net.rychkov.lab.widgets;
+
+import net.rychkov.lab.widgets.dal.model.Widget;
+import net.rychkov.lab.widgets.dal.model.WidgetDelta;
+import net.rychkov.lab.widgets.dal.repository.ConstraintViolationException;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.*;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.transaction.NotSupportedException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Snapshots of CustomInMemory repository (with write-ahead log)
+ */
+public class SnapshotTests {
+
+    //region Helpers
+
+    private static RepositoryImpl open(Path dir) throws IOException {
+        return new RepositoryImpl(new ComplexIndex(), new ObjectWidgetStore(),
+                new FieldIndex<>("Z", true, Widget::getZ, WidgetDelta::getZ),
+                new WriteAheadLog(dir.resolve("widgets.wal"), 64, 1000),
+                dir.resolve("widgets.snapshot"));
+    }
+
+    private static long countSegments(Path dir) throws IOException {
+        return Files.list(dir).filter(p -> p.getFileName().toString().startsWith("widgets.wal.")).count();
+    }
+
+    //endregion
+
+    @Test
+    public void restoreFromSnapshotAndLog() throws IOException, ConstraintViolationException, NotSupportedException {
+
+        Path dir = Files.createTempDirectory("widgets");
+
+        List<Widget> expected;
+        int lastId;
+
+        try(RepositoryImpl repository = open(dir)) {
+            Widget w1 = repository.add(new WidgetDelta(1,1,1,1,1));
+            repository.addAll(Arrays.asList(new WidgetDelta(2,2,2,2,2), new WidgetDelta(3,3,3,3,3)));
+
+            repository.writeSnapshot();
+
+            // changes after snapshot are restored from log
+            repository.update(w1.getId(), new WidgetDelta(10, null, 5, null, null));
+            Widget w4 = repository.add(new WidgetDelta(4,4,4,4,4));
+            repository.remove(w4.getId());
+            lastId = w4.getId();
+
+            repository.writeSnapshot();
+
+            Widget w6 = repository.add(new WidgetDelta(6,6,6,6,6));
+            repository.remove(w6.getId());
+            lastId = w6.getId();
+
+            expected = new ArrayList<>(repository.getAllOrderByZ());
+        }
+
+        // log covered by snapshot is deleted
+        assertEquals(0, countSegments(dir));
+
+        try(RepositoryImpl repository = open(dir)) {
+            assertEquals(expected, new ArrayList<>(repository.getAllOrderByZ()));
+            assertEquals(expected.size(), repository.getFilteredByRectangle(-100, -100, 100, 100).size());
+            assertEquals(Integer.valueOf(5), repository.getMaxZ());
+
+            // ID of removed widget is not reused
+            assertTrue(repository.add(new WidgetDelta(7,7,7,7,7)).getId()>lastId);
+        }
+    }
+
+    @Test
+    public void corruptedSnapshotIsRejected() throws IOException, ConstraintViolationException {
+
+        Path dir = Files.createTempDirectory("widgets");
+
+        try(RepositoryImpl repository = open(dir)) {
+            repository.add(new WidgetDelta(1,1,1,1,1));
+            repository.writeSnapshot();
+        }
+
+        Path file = dir.resolve("widgets.snapshot");
+        byte[] content = Files.readAllBytes(file);
+        content[content.length/2] ^= 1;
+        Files.write(file, content);
+
+        assertThrows(IOException.class, () -> WidgetSnapshot.read(file));
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void startupTime() throws IOException {
+
+        final int count = 1_000_000;
+
+        List<Widget> widgets = new ArrayList<>(count);
+        for(int i=1; i<=count; i++) {
+            widgets.add(new Widget(i, i % 10_000, i / 10_000, i, 2, 2, new Date()));
+        }
+
+        // snapshot only
+        Path snapshotDir = Files.createTempDirectory("widgets");
+        new WidgetSnapshot(0, count + 1, widgets).write(snapshotDir.resolve("widgets.snapshot"));
+
+        // log only
+        Path logDir = Files.createTempDirectory("widgets");
+        try(WriteAheadLog log = new WriteAheadLog(logDir.resolve("widgets.wal"), 64, 1000)) {
+            for(int i=0; i<count; i+=1000) {
+                List<Widget> frame = widgets.subList(i, Math.min(count, i + 1000));
+                log.await(log.append(batch -> frame.forEach(batch::put)));
+            }
+        }
+        widgets = null;
+
+        long start = System.nanoTime();
+        try(RepositoryImpl repository = open(snapshotDir)) {
+            assertEquals(count, repository.getAllOrderByZ(0, 1).getElementCount());
+        }
+        long snapshotMillis = (System.nanoTime() - start) / 1_000_000;
+
+        start = System.nanoTime();
+        try(RepositoryImpl repository = open(logDir)) {
+            assertEquals(count, repository.getAllOrderByZ(0, 1).getElementCount());
+        }
+        long logMillis = (System.nanoTime() - start) / 1_000_000;
+
+        System.out.printf("Startup with %d widgets: snapshot %d ms, log replay %d ms%n", count, snapshotMillis, logMillis);
+    }
+}
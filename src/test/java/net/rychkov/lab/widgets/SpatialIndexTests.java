@@ -0,0 +1,247 @@
+package net.rychkov.lab.widgets;
+
+import net.rychkov.lab.widgets.dal.model.Widget;
+import net.rychkov.lab.widgets.dal.model.WidgetDelta;
+import net.rychkov.lab.widgets.dal.repository.ConstraintViolationException;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.ComplexIndex;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.RTreeIndex;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.RepositoryImpl;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.SpatialIndex;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.TiledSpatialIndex;
+import net.rychkov.lab.widgets.dal.repository.WidgetRepository;
+import org.junit.jupiter.api.Test;
+
+import javax.transaction.NotSupportedException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SpatialIndexTests {
+
+    //region Helpers
+
+    /**
+     * Generate random widgets
+     * @param count Widgets count
+     * @param random Random generator
+     * @return List of widgets
+     */
+    private List<Widget> generateWidgets(int count, Random random) {
+        List<Widget> result = new ArrayList<>();
+
+        for(int i=0; i<count; i++) {
+            result.add(new Widget(i+1, random.nextInt(2000)-1000, random.nextInt(2000)-1000, i,
+                    random.nextInt(100)+1, random.nextInt(100)+1, new Date()));
+        }
+
+        return result;
+    }
+
+    /**
+     * Check index answers the same as reference index on random regions
+     * @param index Tested index
+     * @param reference Reference index
+     * @param random Random generator
+     */
+    private void assertSameFilter(SpatialIndex index, SpatialIndex reference, Random random) {
+        for(int i=0; i<200; i++) {
+            int x1 = random.nextInt(2400)-1200;
+            int y1 = random.nextInt(2400)-1200;
+            int x2 = x1 + random.nextInt(800);
+            int y2 = y1 + random.nextInt(800);
+
+            assertEquals(
+                    new HashSet<>(reference.getFilteredByRectangle(x1, y1, x2, y2)),
+                    new HashSet<>(index.getFilteredByRectangle(x1, y1, x2, y2))
+            );
+        }
+    }
+
+    //endregion
+
+    @Test
+    public void rTreeFilterSameAsComplexIndex() {
+
+        Random random = new Random(42);
+        List<Widget> widgets = generateWidgets(5000, random);
+
+        RTreeIndex rTree = new RTreeIndex();
+        ComplexIndex complex = new ComplexIndex();
+
+        widgets.forEach(rTree::add);
+        widgets.forEach(complex::add);
+
+        assertEquals(widgets.size(), rTree.size());
+        assertEquals(widgets.size(), rTree.get().size());
+        assertSameFilter(rTree, complex, random);
+
+        // remove every third widget (causes node condensing)
+        for(int i=0; i<widgets.size(); i+=3) {
+            rTree.remove(widgets.get(i));
+            complex.remove(widgets.get(i));
+        }
+
+        assertEquals(new HashSet<>(complex.get()), new HashSet<>(rTree.get()));
+        assertSameFilter(rTree, complex, random);
+    }
+
+    @Test
+    public void rTreeRemoveAll() {
+
+        Random random = new Random(7);
+        List<Widget> widgets = generateWidgets(1000, random);
+
+        RTreeIndex rTree = new RTreeIndex(4);
+        widgets.forEach(rTree::add);
+        widgets.forEach(rTree::remove);
+
+        assertEquals(0, rTree.size());
+        assertTrue(rTree.get().isEmpty());
+        assertTrue(rTree.getFilteredByRectangle(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    public void rTreeRepositoryFilteredByRectangle() throws ConstraintViolationException, NotSupportedException {
+
+        WidgetRepository repository = new RepositoryImpl(new RTreeIndex());
+
+        Widget w1 = repository.add(new WidgetDelta(10,10,3,11,12));
+        Widget w2 = repository.add(new WidgetDelta(200,20,4,21,20));
+        Widget w3 = repository.add(new WidgetDelta(25,25,1,50,50));
+
+        Collection<Widget> result = repository.getFilteredByRectangle(0,0,50,100);
+
+        assertEquals(2, result.size());
+        assertTrue(result.contains(w1));
+        assertFalse(result.contains(w2));
+        assertTrue(result.contains(w3));
+
+        // move widget out of region
+        repository.update(w1.getId(), new WidgetDelta(500, null, null, null, null));
+
+        result = repository.getFilteredByRectangle(0,0,50,100);
+
+        assertEquals(1, result.size());
+        assertTrue(result.contains(w3));
+    }
+
+    @Test
+    public void tiledFilterSameAsComplexIndex() {
+
+        Random random = new Random(11);
+        List<Widget> widgets = generateWidgets(5000, random);
+
+        TiledSpatialIndex tiled = new TiledSpatialIndex(150, ComplexIndex::new);
+        ComplexIndex complex = new ComplexIndex();
+
+        widgets.forEach(tiled::add);
+        widgets.forEach(complex::add);
+
+        assertEquals(new HashSet<>(complex.get()), new HashSet<>(tiled.get()));
+        assertSameFilter(tiled, complex, random);
+
+        // huge region - scan of existed tiles
+        assertEquals(widgets.size(), tiled.getFilteredByRectangle(-1000000, -1000000, 1000000, 1000000).size());
+
+        // move every second widget (usually to another tile), remove every third
+        for(int i=0; i<widgets.size(); i++) {
+            Widget w = widgets.get(i);
+            if(i%3==0) {
+                tiled.remove(w);
+                complex.remove(w);
+            }
+            else if(i%2==0) {
+                Widget moved = new Widget(w.getId(), random.nextInt(2000)-1000, random.nextInt(2000)-1000, w.getZ(),
+                        w.getWidth(), w.getHeight(), new Date());
+                tiled.update(w, moved);
+                complex.update(w, moved);
+            }
+        }
+
+        assertEquals(new HashSet<>(complex.get()), new HashSet<>(tiled.get()));
+        assertSameFilter(tiled, complex, random);
+    }
+
+    @Test
+    public void tiledRepositoryParallelWriters() throws Exception {
+
+        final int writers = 4;
+        final int perWriter = 500;
+
+        WidgetRepository repository = new RepositoryImpl(new TiledSpatialIndex(100, ComplexIndex::new));
+
+        List<Widget> created = new ArrayList<>();
+        for(int w=0; w<writers; w++) {
+            for(int i=0; i<perWriter; i++) {
+                // each writer owns its own column of tiles
+                created.add(repository.add(new WidgetDelta(w*1000 + 50, i*10, w*perWriter + i, 10, 10)));
+            }
+        }
+
+        // writers move their widgets inside own column (x-y changes don't lock z-index)
+        ExecutorService service = Executors.newFixedThreadPool(writers);
+        List<Future<?>> futures = new ArrayList<>();
+        for(int w=0; w<writers; w++) {
+            final int writer = w;
+            futures.add(service.submit(() -> {
+                for(int i=0; i<perWriter; i++) {
+                    Widget widget = created.get(writer*perWriter + i);
+                    repository.update(widget.getId(), new WidgetDelta(writer*1000 + 500, null, null, null, null));
+                }
+                return null;
+            }));
+        }
+        for(Future<?> f : futures) {
+            f.get(30, TimeUnit.SECONDS);
+        }
+        service.shutdown();
+
+        for(int w=0; w<writers; w++) {
+            assertTrue(repository.getFilteredByRectangle(w*1000, -100, w*1000 + 100, perWriter*10 + 100).isEmpty());
+            assertEquals(perWriter, repository.getFilteredByRectangle(w*1000 + 400, -100, w*1000 + 600, perWriter*10 + 100).size());
+        }
+    }
+
+    @Test
+    public void tiledRepositoryMoveVsFilter() throws Exception {
+
+        final int count = 16;
+        final int moves = 20000;
+
+        WidgetRepository repository = new RepositoryImpl(new TiledSpatialIndex(100, ComplexIndex::new));
+
+        List<Widget> created = new ArrayList<>();
+        for(int i=0; i<count; i++) {
+            created.add(repository.add(new WidgetDelta(50, 50, i, 10, 10)));
+        }
+
+        // writer moves widgets between tiles, reader filters the first tile only
+        ExecutorService service = Executors.newFixedThreadPool(2);
+        Future<?> writer = service.submit(() -> {
+            for(int i=0; i<moves; i++) {
+                Widget widget = created.get(i % count);
+                repository.update(widget.getId(), new WidgetDelta((i / count) % 2==0 ? 550 : 50, null, null, null, null));
+            }
+            return null;
+        });
+        Future<Integer> reader = service.submit(() -> {
+            int outside = 0;
+            while(!writer.isDone()) {
+                for(Widget w : repository.getFilteredByRectangle(0, 0, 100, 100)) {
+                    if(!SpatialIndex.isInside(w, 0, 0, 100, 100)) {
+                        outside++;
+                    }
+                }
+            }
+            return outside;
+        });
+
+        writer.get(30, TimeUnit.SECONDS);
+        assertEquals(0, (int)reader.get(30, TimeUnit.SECONDS));
+        service.shutdown();
+    }
+}
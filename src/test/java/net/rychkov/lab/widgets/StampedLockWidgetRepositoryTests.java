@@ -0,0 +1,147 @@
+package net.rychkov.lab.widgets;
+
+import net.rychkov.lab.widgets.dal.model.Page;
+import net.rychkov.lab.widgets.dal.model.Widget;
+import net.rychkov.lab.widgets.dal.model.WidgetDelta;
+import net.rychkov.lab.widgets.dal.repository.ConstraintViolationException;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.*;
+import net.rychkov.lab.widgets.dal.repository.WidgetRepository;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * CustomInMemory repository with StampedLock indexes
+ */
+public class StampedLockWidgetRepositoryTests extends CustomInMemoryWidgetRepositoryTests {
+
+    @Override
+    protected WidgetRepository createRepository() {
+        return new RepositoryImpl(new ComplexIndex(new StampedIndexLock()), new ObjectWidgetStore(), new StampedIndexLock());
+    }
+
+    /**
+     * Measure read throughput (short reads: page and max z) with writers in background
+     * @param factory Repository factory
+     * @param readers Reader threads count
+     * @param writers Writer threads count
+     * @param durationMs Measure duration
+     * @return Reads per millisecond
+     */
+    private static double readThroughput(Supplier<WidgetRepository> factory, int readers, int writers, long durationMs) throws Exception {
+
+        final int count = 1000;
+        final int pageSize = 10;
+
+        WidgetRepository repository = factory.get();
+
+        List<Widget> created = new ArrayList<>();
+        for(int i=0; i<count; i++) {
+            created.add(repository.add(new WidgetDelta(i, i, i, 10, 10)));
+        }
+
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicInteger zSequence = new AtomicInteger(count);
+        LongAdder reads = new LongAdder();
+
+        ExecutorService service = Executors.newFixedThreadPool(readers + writers);
+        List<Future<?>> futures = new ArrayList<>();
+
+        for(int w=0; w<writers; w++) {
+            futures.add(service.submit(() -> {
+                Random random = new Random();
+                while(!stop.get()) {
+                    Widget widget = created.get(random.nextInt(count));
+                    repository.update(widget.getId(), new WidgetDelta(null, null, zSequence.getAndIncrement(), null, null));
+                    LockSupport.parkNanos(50000);
+                }
+                return null;
+            }));
+        }
+
+        for(int r=0; r<readers; r++) {
+            futures.add(service.submit(() -> {
+                Random random = new Random();
+                long done = 0;
+                while(!stop.get()) {
+                    Page<Widget> page = repository.getAllOrderByZ(random.nextInt(count / pageSize), pageSize);
+                    assertEquals(pageSize, page.getElements().size());
+                    assertNotNull(repository.getMaxZ());
+                    done += 2;
+                }
+                reads.add(done);
+                return null;
+            }));
+        }
+
+        Thread.sleep(durationMs);
+        stop.set(true);
+
+        for(Future<?> f : futures) {
+            f.get(10, TimeUnit.SECONDS);
+        }
+        service.shutdown();
+
+        return reads.doubleValue() / durationMs;
+    }
+
+    @Test
+    public void optimisticReadSeesConsistentPage() throws Exception {
+        // readers validate page content, exception inside any thread fails the test
+        assertTrue(readThroughput(this::createRepository, 4, 2, 200) > 0);
+    }
+
+    @Test
+    public void optimisticReadFailureIsRepeatedUnderLock() {
+
+        StampedIndexLock lock = new StampedIndexLock();
+        AtomicInteger calls = new AtomicInteger();
+
+        // writer interferes with optimistic read, which fails with error on torn state - repeated under read lock
+        String result = lock.read(() -> {
+            if(calls.incrementAndGet()==1) {
+                lock.writeLock();
+                lock.writeUnlock();
+                throw new StackOverflowError();
+            }
+            return "locked";
+        });
+        assertEquals("locked", result);
+        assertEquals(2, calls.get());
+
+        // failure of consistent read isn't hidden
+        assertThrows(StackOverflowError.class, () -> lock.read(() -> {
+            throw new StackOverflowError();
+        }));
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void readThroughputScaling() throws Exception {
+
+        Supplier<WidgetRepository> readWrite = () -> new RepositoryImpl(new ComplexIndex(), new ObjectWidgetStore(), new ReadWriteIndexLock());
+        Supplier<WidgetRepository> stamped = this::createRepository;
+
+        // warm up
+        readThroughput(readWrite, 4, 1, 200);
+        readThroughput(stamped, 4, 1, 200);
+
+        System.out.printf("Read throughput (reads/ms, 5 writers, %d cpu): threads, ReentrantReadWriteLock, StampedLock%n",
+                Runtime.getRuntime().availableProcessors());
+        for(int threads=1; threads<=64; threads*=2) {
+            double rw = readThroughput(readWrite, threads, 5, 100);
+            double st = readThroughput(stamped, threads, 5, 100);
+            System.out.printf("%2d %10.0f %10.0f%n", threads, rw, st);
+            assertTrue(rw > 0 && st > 0);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package net.rychkov.lab.widgets;
+
+import net.rychkov.lab.widgets.dal.model.WidgetChange;
+import net.rychkov.lab.widgets.dal.repository.WidgetChangeFeed;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WidgetChangeFeedTests {
+
+    @Test
+    public void readAfterSequence() {
+
+        WidgetChangeFeed feed = new WidgetChangeFeed(4);
+
+        assertEquals(0, feed.getLastSequence());
+        assertTrue(feed.read(0, 10).isEmpty());
+
+        feed.publish(Arrays.asList(WidgetChange.removed(1), WidgetChange.removed(2), WidgetChange.removed(3)));
+        assertEquals(3, feed.getLastSequence());
+
+        List<WidgetChange> changes = feed.read(1, 10);
+        assertEquals(2, changes.size());
+        assertEquals(2, changes.get(0).getId());
+        assertEquals(2, changes.get(0).getSequence());
+        assertEquals(3, changes.get(1).getSequence());
+
+        assertEquals(1, feed.read(0, 1).size());
+        assertTrue(feed.read(3, 10).isEmpty());
+    }
+
+    @Test
+    public void overwrittenChanges() {
+
+        WidgetChangeFeed feed = new WidgetChangeFeed(4);
+
+        for(int i=1; i<=6; i++) {
+            feed.publish(Collections.singletonList(WidgetChange.removed(i)));
+        }
+
+        // writers don't wait for readers - the oldest changes are lost
+        assertThrows(NoSuchElementException.class, () -> feed.read(1, 10));
+        assertEquals(4, feed.read(2, 10).size());
+        assertEquals(3, feed.read(2, 10).get(0).getId());
+
+        // unknown sequence (e.g. before restart)
+        assertThrows(NoSuchElementException.class, () -> feed.read(7, 10));
+    }
+
+    @Test
+    public void awaitChanges() throws Exception {
+
+        WidgetChangeFeed feed = new WidgetChangeFeed(4);
+
+        assertFalse(feed.await(0, 50));
+
+        ExecutorService service = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> awaited = service.submit(() -> feed.await(0, 5000));
+
+            assertThrows(TimeoutException.class, () -> awaited.get(200, TimeUnit.MILLISECONDS));
+
+            feed.publish(Collections.singletonList(WidgetChange.removed(1)));
+
+            assertTrue(awaited.get(5, TimeUnit.SECONDS));
+        }
+        finally {
+            service.shutdownNow();
+        }
+    }
+
+    @Test
+    public void tokens() {
+
+        WidgetChangeFeed feed = new WidgetChangeFeed(4);
+        WidgetChangeFeed other = new WidgetChangeFeed(4);
+
+        assertNotEquals(feed.getEpoch(), other.getEpoch());
+        assertEquals(3, feed.parseToken(feed.token(3)));
+
+        // token of other instance or without epoch
+        assertThrows(NoSuchElementException.class, () -> feed.parseToken(other.token(3)));
+        assertThrows(NoSuchElementException.class, () -> feed.parseToken("3"));
+
+        assertThrows(IllegalArgumentException.class, () -> feed.parseToken(feed.token(-1)));
+        assertThrows(IllegalArgumentException.class, () -> feed.parseToken(feed.getEpoch() + "-x"));
+        assertThrows(IllegalArgumentException.class, () -> feed.parseToken(null));
+    }
+}
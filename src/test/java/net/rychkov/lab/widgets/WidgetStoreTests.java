@@ -0,0 +1,121 @@
+package net.rychkov.lab.widgets;
+
+import net.rychkov.lab.widgets.dal.model.Widget;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.ColumnarWidgetStore;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.ObjectWidgetStore;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.OffHeapWidgetStore;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.WidgetStore;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WidgetStoreTests {
+
+    //region Helpers
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for(int i=0; i<3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Measure heap bytes per widget
+     * @param factory Store factory
+     * @param count Widgets count
+     * @return Bytes per widget
+     */
+    private static double bytesPerWidget(Supplier<WidgetStore> factory, int count) {
+        long before = usedMemory();
+
+        WidgetStore store = factory.get();
+        for(int i=1; i<=count; i++) {
+            store.put(new Widget(i, i, i, i, i, i, new Date()));
+        }
+
+        long after = usedMemory();
+
+        assertEquals(count, store.size());
+
+        return (double)(after - before) / count;
+    }
+
+    /**
+     * Apply random operations to store and reference objects store, check results are the same
+     * @param columnar Tested store
+     */
+    private static void assertSameAsObjects(WidgetStore columnar) {
+
+        WidgetStore objects = new ObjectWidgetStore();
+
+        Random random = new Random(3);
+
+        for(int i=0; i<10000; i++) {
+            int id = random.nextInt(5000);
+
+            if(random.nextInt(4)==0) {
+                assertEquals(objects.remove(id), columnar.remove(id));
+            }
+            else if(objects.get(id)!=null) {
+                int z = random.nextInt();
+                assertEquals(
+                        objects.update(id, w -> new Widget(id, w.getX(), w.getY(), z, w.getWidth(), w.getHeight(), w.getLastModificationDate())),
+                        columnar.update(id, w -> new Widget(id, w.getX(), w.getY(), z, w.getWidth(), w.getHeight(), w.getLastModificationDate()))
+                );
+            }
+            else {
+                Widget widget = new Widget(id, random.nextInt(), random.nextInt(), random.nextInt(), random.nextInt(100), random.nextInt(100), new Date());
+                objects.put(widget);
+                columnar.put(widget);
+            }
+        }
+
+        assertEquals(objects.size(), columnar.size());
+
+        List<Integer> ids = new ArrayList<>();
+        for(int id=0; id<5000; id++) {
+            assertEquals(objects.get(id), columnar.get(id));
+            if(objects.get(id)!=null) {
+                ids.add(id);
+            }
+        }
+
+        assertEquals(objects.get(ids), columnar.get(ids));
+
+        assertNull(columnar.get(-1));
+        assertThrows(NoSuchElementException.class, () -> columnar.update(-1, w -> w));
+    }
+
+    //endregion
+
+    @Test
+    public void columnarSameAsObjects() {
+        assertSameAsObjects(new ColumnarWidgetStore());
+    }
+
+    @Test
+    public void offHeapSameAsObjects() {
+        assertSameAsObjects(new OffHeapWidgetStore());
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void memoryPerWidget() {
+
+        final int count = 200000;
+
+        double objects = bytesPerWidget(ObjectWidgetStore::new, count);
+        double columnar = bytesPerWidget(ColumnarWidgetStore::new, count);
+
+        System.out.printf("Heap per widget: objects %.1f bytes, columnar %.1f bytes (%.1fx)%n",
+                objects, columnar, objects / columnar);
+
+        assertTrue(objects / columnar >= 3, "columnar store must use at least 3x less heap per widget");
+    }
+}
@@ -4,12 +4,18 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
+import com.jayway.jsonpath.JsonPath;
 import net.rychkov.lab.widgets.api.controllers.WidgetController;
+import net.rychkov.lab.widgets.dal.repository.ZShiftStrategy;
 import org.hamcrest.Description;
 import org.hamcrest.Matcher;
+import org.hamcrest.Matchers;
 import org.hamcrest.core.AnyOf;
 import org.hamcrest.core.IsEqual;
 import org.junit.jupiter.api.Test;
@@ -19,11 +25,12 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.MediaType;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
 import java.util.Arrays;
 import java.util.TreeMap;
 
-@SpringBootTest
+@SpringBootTest(properties = "widgets.changes.max-subscribers=2")
 @AutoConfigureMockMvc
 class WidgetsApplicationTests {
 
@@ -84,4 +91,210 @@ class WidgetsApplicationTests {
 		.andExpect(jsonPath("$[0].id").value(AnyOf.anyOf(IsEqual.equalTo(1),IsEqual.equalTo(3))))
 		.andExpect(jsonPath("$[1].id").value(AnyOf.anyOf(IsEqual.equalTo(1),IsEqual.equalTo(3))));
 	}
+
+	@Test
+	@DirtiesContext
+	public void batchTest() throws Exception {
+
+		// same z inside batch - second widget is placed after first one
+		String created = this.mockMvc.perform(post("/widget/batch")
+				.contentType(MediaType.APPLICATION_JSON).content("[{\"x\":10,\"y\":10,\"z\":100,\"width\":10,\"height\":10}," +
+						"{\"x\":20,\"y\":20,\"z\":100,\"width\":10,\"height\":10}]"))
+				.andDo(print()).andExpect(status().isCreated())
+				.andReturn().getResponse().getContentAsString();
+		int firstZ = JsonPath.read(created, "$[0].z");
+		int secondZ = JsonPath.read(created, "$[1].z");
+		assertThat(secondZ).isGreaterThan(firstZ);
+
+		// invalid item
+		this.mockMvc.perform(post("/widget/batch")
+				.contentType(MediaType.APPLICATION_JSON).content("[{\"x\":10,\"y\":10,\"z\":1,\"width\":0,\"height\":10}]"))
+				.andExpect(status().isBadRequest());
+
+		String id = this.mockMvc.perform(get("/widget?page=0"))
+				.andReturn().getResponse().getContentAsString().replaceAll("^.*?\"id\":(\\d+).*$", "$1");
+
+		this.mockMvc.perform(patch("/widget/batch")
+				.contentType(MediaType.APPLICATION_JSON).content("[{\"id\":" + id + ",\"x\":11,\"z\":200}]"))
+				.andDo(print()).andExpect(status().isOk())
+				.andExpect(jsonPath("$[0].x").value(11))
+				.andExpect(jsonPath("$[0].z").value(200));
+
+		this.mockMvc.perform(patch("/widget/batch")
+				.contentType(MediaType.APPLICATION_JSON).content("[{\"id\":-1,\"x\":11}]"))
+				.andExpect(status().isNotFound());
+
+		this.mockMvc.perform(delete("/widget/batch")
+				.contentType(MediaType.APPLICATION_JSON).content("[" + id + "]"))
+				.andExpect(status().isNoContent());
+
+		this.mockMvc.perform(delete("/widget/batch")
+				.contentType(MediaType.APPLICATION_JSON).content("[" + id + "]"))
+				.andExpect(status().isNotFound());
+	}
+
+	@Test
+	@DirtiesContext
+	public void streamAllTest() throws Exception {
+
+		this.mockMvc.perform(post("/widget/batch")
+				.contentType(MediaType.APPLICATION_JSON).content("[{\"x\":10,\"y\":10,\"z\":0,\"width\":10,\"height\":10}," +
+						"{\"x\":20,\"y\":20,\"z\":1,\"width\":10,\"height\":10}]"))
+				.andExpect(status().isCreated());
+
+		MvcResult result = this.mockMvc.perform(get("/widget"))
+				.andExpect(request().asyncStarted())
+				.andReturn();
+
+		this.mockMvc.perform(asyncDispatch(result))
+				.andDo(print())
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$[0].z").value(0))
+				.andExpect(jsonPath("$[1].z").value(ZShiftStrategy.Z_STEP));
+	}
+
+	@Test
+	@DirtiesContext
+	public void keysetPageTest() throws Exception {
+
+		this.mockMvc.perform(post("/widget/batch")
+				.contentType(MediaType.APPLICATION_JSON).content("[{\"x\":10,\"y\":10,\"z\":0,\"width\":10,\"height\":10}," +
+						"{\"x\":20,\"y\":20,\"z\":1,\"width\":10,\"height\":10}]"))
+				.andExpect(status().isCreated());
+
+		this.mockMvc.perform(get("/widget?limit=1"))
+				.andDo(print())
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.elements[0].z").value(0))
+				.andExpect(jsonPath("$.nextAfterZ").value(0));
+
+		this.mockMvc.perform(get("/widget?afterZ=0&limit=1"))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.elements[0].z").value(ZShiftStrategy.Z_STEP));
+
+		this.mockMvc.perform(get("/widget?limit=0"))
+				.andExpect(status().isBadRequest());
+
+		this.mockMvc.perform(get("/widget?afterZ=-2000"))
+				.andExpect(status().isBadRequest());
+	}
+
+	@Test
+	@DirtiesContext
+	public void notModifiedTest() throws Exception {
+
+		this.mockMvc.perform(post("/widget")
+				.contentType(MediaType.APPLICATION_JSON).content("{\"x\":10,\"y\":10,\"z\":10,\"width\":10,\"height\":10}"))
+				.andExpect(status().isCreated());
+
+		String etag = this.mockMvc.perform(get("/widget/1"))
+				.andExpect(status().isOk())
+				.andExpect(header().exists("ETag"))
+				.andReturn().getResponse().getHeader("ETag");
+
+		// version isn't changed - body isn't sent
+		this.mockMvc.perform(get("/widget/1").header("If-None-Match", etag))
+				.andExpect(status().isNotModified())
+				.andExpect(content().string(""));
+
+		this.mockMvc.perform(get("/widget?page=0").header("If-None-Match", etag))
+				.andExpect(status().isNotModified());
+
+		this.mockMvc.perform(patch("/widget/1")
+				.contentType(MediaType.APPLICATION_JSON).content("{\"x\":11}"))
+				.andExpect(status().isOk());
+
+		this.mockMvc.perform(get("/widget/1").header("If-None-Match", etag))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.x").value(11))
+				.andExpect(header().string("ETag", Matchers.not(etag)));
+	}
+
+	@Test
+	@DirtiesContext
+	public void changesStreamTest() throws Exception {
+
+		MvcResult result = this.mockMvc.perform(get("/widget/changes"))
+				.andExpect(request().asyncStarted())
+				.andReturn();
+
+		this.mockMvc.perform(post("/widget")
+				.contentType(MediaType.APPLICATION_JSON).content("{\"x\":3000,\"y\":10,\"z\":10,\"width\":10,\"height\":10}"))
+				.andExpect(status().isCreated());
+
+		// events are sent by other thread
+		String events = "";
+		for(int i=0; i<50 && !events.contains("\"x\":3000"); i++) {
+			Thread.sleep(100);
+			events = result.getResponse().getContentAsString();
+		}
+
+		assertThat(events).contains("event:change");
+		assertThat(events).contains("\"x\":3000");
+	}
+
+	@Test
+	@DirtiesContext
+	public void changesSubscribersLimitTest() throws Exception {
+
+		for(int i=0; i<2; i++) {
+			this.mockMvc.perform(get("/widget/changes"))
+					.andExpect(request().asyncStarted());
+		}
+
+		// every sender thread is busy
+		this.mockMvc.perform(get("/widget/changes"))
+				.andExpect(status().isServiceUnavailable());
+	}
+
+	@Test
+	@DirtiesContext
+	public void changesSinceTest() throws Exception {
+
+		// sequence without epoch (or issued before restart) - widgets must be reloaded
+		String resync = this.mockMvc.perform(get("/widget/changes?since=0"))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.resync").value(true))
+				.andReturn().getResponse().getContentAsString();
+		String since = JsonPath.read(resync, "$.since");
+
+		this.mockMvc.perform(post("/widget")
+				.contentType(MediaType.APPLICATION_JSON).content("{\"x\":4000,\"y\":10,\"z\":10,\"width\":10,\"height\":10}"))
+				.andExpect(status().isCreated());
+
+		this.mockMvc.perform(get("/widget/changes?since=" + since))
+				.andDo(print())
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.resync").value(false))
+				.andExpect(jsonPath("$.since").value(Matchers.not(since)))
+				.andExpect(jsonPath("$.changed[*].delta.x").value(Matchers.hasItem(4000)));
+
+		// sequence isn't published yet
+		this.mockMvc.perform(get("/widget/changes?since=" + since.replaceAll("-\\d+$", "-1000000")))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.resync").value(true));
+
+		this.mockMvc.perform(get("/widget/changes?since=-1"))
+				.andExpect(status().isBadRequest());
+	}
+
+	@Test
+	@DirtiesContext
+	public void changesStreamResyncTest() throws Exception {
+
+		// event id issued before restart - stream is completed by resync
+		MvcResult result = this.mockMvc.perform(get("/widget/changes").header("Last-Event-ID", "0"))
+				.andExpect(request().asyncStarted())
+				.andReturn();
+
+		String events = "";
+		for(int i=0; i<50 && !events.contains("event:resync"); i++) {
+			Thread.sleep(100);
+			events = result.getResponse().getContentAsString();
+		}
+		assertThat(events).contains("event:resync");
+
+		this.mockMvc.perform(get("/widget/changes").header("Last-Event-ID", "x-y"))
+				.andExpect(status().isBadRequest());
+	}
 }
@@ -0,0 +1,171 @@
+package net.rychkov.lab.widgets;
+
+import net.rychkov.lab.widgets.dal.model.Widget;
+import net.rychkov.lab.widgets.dal.model.WidgetDelta;
+import net.rychkov.lab.widgets.dal.repository.ConstraintViolationException;
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.*;
+import net.rychkov.lab.widgets.dal.repository.WidgetRepository;
+import org.junit.jupiter.api.Test;
+
+import javax.transaction.NotSupportedException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * CustomInMemory repository with write-ahead log
+ */
+public class WriteAheadLogWidgetRepositoryTests extends CustomInMemoryWidgetRepositoryTests {
+
+    //region Helpers
+
+    private static Path createLogFile() {
+        try {
+            Path file = Files.createTempFile("widgets", ".wal");
+            file.toFile().deleteOnExit();
+            return file;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static RepositoryImpl open(Path file, WriteAheadLog log) throws IOException {
+        return new RepositoryImpl(new ComplexIndex(), new ObjectWidgetStore(),
+                new FieldIndex<>("Z", true, Widget::getZ, WidgetDelta::getZ), log);
+    }
+
+    private static RepositoryImpl open(Path file) throws IOException {
+        return open(file, new WriteAheadLog(file, 64, 1000));
+    }
+
+    //endregion
+
+    @Override
+    protected WidgetRepository createRepository() {
+        try {
+            return open(createLogFile());
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Test
+    public void restoreAfterRestart() throws IOException, ConstraintViolationException, NotSupportedException {
+
+        Path file = createLogFile();
+
+        List<Widget> expected;
+        int lastId;
+
+        try(RepositoryImpl repository = open(file)) {
+            Widget w1 = repository.add(new WidgetDelta(1,1,1,1,1));
+            Widget w2 = repository.add(new WidgetDelta(2,2,2,2,2));
+            repository.addAll(Arrays.asList(new WidgetDelta(3,3,3,3,3), new WidgetDelta(4,4,4,4,4)));
+            Widget w5 = repository.add(new WidgetDelta(5,5,5,5,5));
+
+            repository.update(w1.getId(), new WidgetDelta(10, null, null, null, null));
+
+            // shift: swap z
+            Map<Integer, WidgetDelta> changes = new HashMap<>();
+            changes.put(w1.getId(), new WidgetDelta(null,null,2,null,null));
+            changes.put(w2.getId(), new WidgetDelta(null,null,1,null,null));
+            repository.updateAll(changes);
+
+            repository.remove(w5.getId());
+            lastId = w5.getId();
+
+            expected = new ArrayList<>(repository.getAllOrderByZ());
+        }
+
+        try(RepositoryImpl repository = open(file)) {
+            assertEquals(expected, new ArrayList<>(repository.getAllOrderByZ()));
+            assertEquals(expected.size(), repository.getFilteredByRectangle(-100, -100, 100, 100).size());
+            assertNull(repository.get(lastId));
+
+            // ID of removed widget is not reused
+            Widget added = repository.add(new WidgetDelta(6,6,6,6,6));
+            assertTrue(added.getId()>lastId);
+
+            repository.removeAll(Arrays.asList(added.getId(), expected.get(0).getId()));
+            expected.remove(0);
+        }
+
+        try(RepositoryImpl repository = open(file)) {
+            assertEquals(expected, new ArrayList<>(repository.getAllOrderByZ()));
+        }
+    }
+
+    @Test
+    public void tornTailIsDropped() throws IOException, ConstraintViolationException {
+
+        Path file = createLogFile();
+
+        try(RepositoryImpl repository = open(file)) {
+            repository.add(new WidgetDelta(1,1,1,1,1));
+            repository.add(new WidgetDelta(2,2,2,2,2));
+        }
+
+        long validSize = Files.size(file);
+
+        // frame header without payload - crash during write
+        Files.write(file, new byte[] {0, 0, 0, 33, 1, 2, 3, 4, 1, 0}, StandardOpenOption.APPEND);
+
+        try(RepositoryImpl repository = open(file)) {
+            assertEquals(2, repository.getAllOrderByZ().size());
+            assertEquals(validSize, Files.size(file));
+
+            repository.add(new WidgetDelta(3,3,3,3,3));
+        }
+
+        try(RepositoryImpl repository = open(file)) {
+            assertEquals(3, repository.getAllOrderByZ().size());
+        }
+    }
+
+    @Test
+    public void groupCommit() throws Exception {
+
+        final int threads = 16;
+        final int perThread = 50;
+
+        Path file = createLogFile();
+        WriteAheadLog log = new WriteAheadLog(file, 256, 2000);
+
+        try(RepositoryImpl repository = open(file, log)) {
+            ExecutorService service = Executors.newFixedThreadPool(threads);
+            List<Future<?>> futures = new ArrayList<>();
+            for(int t=0; t<threads; t++) {
+                final int thread = t;
+                futures.add(service.submit(() -> {
+                    for(int i=0; i<perThread; i++) {
+                        repository.add(new WidgetDelta(i, thread, thread*perThread + i, 1, 1));
+                    }
+                    return null;
+                }));
+            }
+            for(Future<?> f : futures) {
+                f.get(60, TimeUnit.SECONDS);
+            }
+            service.shutdown();
+
+            // concurrent writers shared fsync
+            assertTrue(log.getSyncCount() < threads*perThread,
+                    "fsync count " + log.getSyncCount() + " must be less than operations count");
+        }
+
+        try(RepositoryImpl repository = open(file)) {
+            assertEquals(threads*perThread, repository.getAllOrderByZ().size());
+        }
+    }
+}
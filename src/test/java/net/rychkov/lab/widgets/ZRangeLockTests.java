@@ -0,0 +1,69 @@
+package net.rychkov.lab.widgets;
+
+import net.rychkov.lab.widgets.dal.repository.CustomInMemory.ZRangeLock;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ZRangeLockTests {
+
+    @Test
+    public void disjointRangesDontBlock() throws Exception {
+
+        ZRangeLock lock = new ZRangeLock();
+
+        ZRangeLock.Range range = lock.lock(0, 10);
+
+        ExecutorService service = Executors.newSingleThreadExecutor();
+        try {
+            // other thread locks disjoint range without waiting
+            Future<ZRangeLock.Range> other = service.submit(() -> lock.lock(11, 20));
+            lock.unlock(other.get(5, TimeUnit.SECONDS));
+        }
+        finally {
+            service.shutdownNow();
+        }
+
+        lock.unlock(range);
+    }
+
+    @Test
+    public void overlappingRangesBlock() throws Exception {
+
+        ZRangeLock lock = new ZRangeLock();
+
+        ZRangeLock.Range range = lock.lock(0, 10);
+
+        ExecutorService service = Executors.newSingleThreadExecutor();
+        try {
+            Future<ZRangeLock.Range> other = service.submit(() -> lock.lock(10, 20));
+
+            // other thread waits while range is locked
+            assertThrows(TimeoutException.class, () -> other.get(200, TimeUnit.MILLISECONDS));
+
+            lock.unlock(range);
+
+            ZRangeLock.Range otherRange = other.get(5, TimeUnit.SECONDS);
+            assertEquals(10, otherRange.getFrom());
+            assertEquals(20, otherRange.getTo());
+            lock.unlock(otherRange);
+        }
+        finally {
+            service.shutdownNow();
+        }
+    }
+
+    @Test
+    public void unlockNotLocked() {
+
+        ZRangeLock lock = new ZRangeLock();
+
+        ZRangeLock.Range range = lock.lock(0, 10);
+        lock.unlock(range);
+
+        assertThrows(IllegalMonitorStateException.class, () -> lock.unlock(range));
+        assertThrows(IllegalArgumentException.class, () -> lock.lock(10, 0));
+    }
+}
@@ -0,0 +1,313 @@
+package net.rychkov.lab.widgets;
+
+import net.rychkov.lab.widgets.dal.model.Widget;
+import net.rychkov.lab.widgets.dal.model.WidgetDelta;
+import net.rychkov.lab.widgets.dal.repository.ConstraintViolationException;
+import net.rychkov.lab.widgets.dal.repository.CascadeZShiftStrategy;
+import net.rychkov.lab.widgets.dal.repository.RelabelZShiftStrategy;
+import net.rychkov.lab.widgets.dal.repository.ZSequence;
+import net.rychkov.lab.widgets.dal.repository.ZShiftStrategy;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ZShiftStrategyTests {
+
+    //region Helpers
+
+    /**
+     * Insert widget into ordered list (like service does with repository)
+     * @return Count of shifted widgets
+     */
+    private static int insert(ZShiftStrategy strategy, List<Widget> all, int id, int z) throws ConstraintViolationException {
+        WidgetDelta delta = new WidgetDelta(0, 0, z, 1, 1);
+
+        Map<Integer, WidgetDelta> changes = strategy.shift(delta, all);
+
+        int position = ZShiftStrategy.findInsertPosition(delta.getZ(), all);
+
+        // shifted widgets are placed after inserting one
+        int applied = 0;
+        for(int i=position; applied<changes.size(); i++) {
+            WidgetDelta change = changes.get(all.get(i).getId());
+            if(change!=null) {
+                all.set(i, change.applyTo(all.get(i)));
+                applied++;
+            }
+        }
+
+        all.add(position, delta.createNewWidget(id));
+
+        return changes.size();
+    }
+
+    private static void assertOrdered(List<Widget> all) {
+        for(int i=1; i<all.size(); i++) {
+            assertTrue(all.get(i-1).getZ()<all.get(i).getZ(), "z-sequence must be strictly increasing");
+        }
+    }
+
+    /**
+     * Random inserts into middle of z-sequence
+     * @return Count of shifted widgets
+     */
+    private static long randomMiddleInserts(ZShiftStrategy strategy, List<Widget> all, int count) throws ConstraintViolationException {
+        Random random = new Random(42);
+        long shifted = 0;
+
+        for(int id=1; id<=count; id++) {
+            int z = all.size()<2 ? id*ZShiftStrategy.Z_STEP : all.get(1 + random.nextInt(all.size()-1)).getZ();
+            shifted += insert(strategy, all, id, z);
+        }
+
+        return shifted;
+    }
+
+    /**
+     * Widgets with z 0..count-1 (ID = z+1)
+     */
+    private static List<Widget> generate(int count) {
+        List<Widget> all = new ArrayList<>();
+        for(int i=0; i<count; i++) {
+            all.add(new Widget(i+1, i, i, i, i, i, new Date()));
+        }
+        return all;
+    }
+
+    //endregion
+
+    @Test
+    public void cascadeEdges() throws ConstraintViolationException {
+
+        ZShiftStrategy strategy = new CascadeZShiftStrategy();
+
+        // empty - z is 0
+        WidgetDelta delta = new WidgetDelta(10, 20, 30, 10, 10);
+        assertTrue(strategy.shift(delta, generate(0)).isEmpty());
+        assertEquals(0, delta.getZ());
+
+        // first position
+        delta = new WidgetDelta(10, 20, 0, 10, 10);
+        assertTrue(strategy.shift(delta, generate(5)).isEmpty());
+        assertEquals(-ZShiftStrategy.Z_STEP, delta.getZ());
+
+        // last position
+        delta = new WidgetDelta(10, 20, 5, 10, 10);
+        assertTrue(strategy.shift(delta, generate(5)).isEmpty());
+        assertEquals(4 + ZShiftStrategy.Z_STEP, delta.getZ());
+    }
+
+    @Test
+    public void cascadeMiddleWithShift() throws ConstraintViolationException {
+
+        WidgetDelta delta = new WidgetDelta(10, 20, 6, 10, 10);
+
+        Map<Integer, WidgetDelta> changes = new CascadeZShiftStrategy().shift(delta, generate(8));
+
+        assertEquals(6, delta.getZ());
+        assertEquals(2, changes.size());
+        assertEquals(7, changes.get(7).getZ());
+        assertEquals(23, changes.get(8).getZ());
+    }
+
+    @Test
+    public void cascadeMiddleWithForceRebuildIndex() throws ConstraintViolationException {
+
+        int zCoord = 3;
+        WidgetDelta delta = new WidgetDelta(10, 20, zCoord, 10, 10);
+
+        Map<Integer, WidgetDelta> changes = new CascadeZShiftStrategy().shift(delta, generate(8));
+
+        assertEquals(5, changes.size());
+        for(int id=4; id<=8; id++) {
+            assertEquals(zCoord + ZShiftStrategy.Z_STEP*(id-3), changes.get(id).getZ());
+        }
+    }
+
+    @Test
+    public void cascadeUpdateConflict() throws ConstraintViolationException {
+
+        // widget 3 is moved to z 7
+        List<Widget> all = generate(8);
+        all.remove(2);
+
+        Map<Integer, WidgetDelta> changes = new CascadeZShiftStrategy().shift(new WidgetDelta(10, 10, 7, 10, 10), all);
+
+        assertEquals(1, changes.size());
+        assertEquals(23, changes.get(8).getZ());
+    }
+
+    @Test
+    public void relabelDenseRange() throws ConstraintViolationException {
+
+        ZShiftStrategy strategy = new RelabelZShiftStrategy();
+
+        List<Widget> all = new ArrayList<>();
+        for(int i=0; i<10; i++) {
+            all.add(new Widget(i+1, 0, 0, i, 1, 1, new Date()));
+        }
+
+        insert(strategy, all, 11, 3);
+
+        assertOrdered(all);
+        assertEquals(11, all.size());
+
+        // inserted widget keeps z, order of others is kept
+        assertEquals(11, all.get(3).getId());
+        assertEquals(3, all.get(3).getZ());
+        assertEquals(4, all.get(4).getId());
+        assertEquals(Arrays.asList(0, 1, 2), Arrays.asList(all.get(0).getZ(), all.get(1).getZ(), all.get(2).getZ()));
+    }
+
+    @Test
+    public void relabelNoConflict() throws ConstraintViolationException {
+
+        List<Widget> all = new ArrayList<>();
+        all.add(new Widget(1, 0, 0, 0, 1, 1, new Date()));
+        all.add(new Widget(2, 0, 0, 16, 1, 1, new Date()));
+
+        WidgetDelta delta = new WidgetDelta(0, 0, 8, 1, 1);
+
+        assertTrue(new RelabelZShiftStrategy().shift(delta, all).isEmpty());
+        assertEquals(8, delta.getZ());
+    }
+
+    @Test
+    public void relabelRepeatedInsertsAtSameZ() throws ConstraintViolationException {
+
+        ZShiftStrategy strategy = new RelabelZShiftStrategy();
+
+        List<Widget> all = new ArrayList<>();
+        for(int i=0; i<1000; i++) {
+            all.add(new Widget(i+1, 0, 0, i*ZShiftStrategy.Z_STEP, 1, 1, new Date()));
+        }
+
+        for(int id=1001; id<=11000; id++) {
+            insert(strategy, all, id, 500*ZShiftStrategy.Z_STEP);
+        }
+
+        assertOrdered(all);
+        assertEquals(11000, all.size());
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void randomMiddleInsertsBenchmark() throws ConstraintViolationException {
+
+        final int count = 100_000;
+
+        for(ZShiftStrategy strategy : Arrays.asList(new CascadeZShiftStrategy(), new RelabelZShiftStrategy())) {
+            List<Widget> all = new ArrayList<>(count);
+
+            long start = System.nanoTime();
+            long shifted = randomMiddleInserts(strategy, all, count);
+            long millis = (System.nanoTime() - start) / 1_000_000;
+
+            assertOrdered(all);
+
+            System.out.printf("%s: %d random middle inserts, %d shifted widgets (%.1f per insert), %d ms%n",
+                    strategy.getClass().getSimpleName(), count, shifted, (double)shifted/count, millis);
+        }
+    }
+
+    @Test
+    public void shiftAllOnePass() throws ConstraintViolationException {
+
+        List<WidgetDelta> batch = Arrays.asList(
+                new WidgetDelta(0, 0, 2, 1, 1),
+                new WidgetDelta(1, 0, 2, 1, 1),
+                new WidgetDelta(2, 0, 10, 1, 1),
+                new WidgetDelta(3, 0, 5, 1, 1)
+        );
+
+        Map<Integer, WidgetDelta> changes = new CascadeZShiftStrategy().shiftAll(batch, ZSequence.of(generate(8)));
+
+        // free z is kept, same z inside batch - in order of batch
+        assertEquals(2, batch.get(0).getZ());
+        assertEquals(3, batch.get(1).getZ());
+        assertEquals(7, batch.get(3).getZ());
+        // after last widget - like single insert
+        assertEquals(7 + ZShiftStrategy.Z_STEP, batch.get(2).getZ());
+
+        // widgets with z 2..7 are pushed up keeping order
+        assertEquals(6, changes.size());
+        int[] expected = {4, 5, 6, 8, 9, 16};
+        for(int id=3; id<=8; id++) {
+            assertEquals(expected[id-3], changes.get(id).getZ());
+        }
+    }
+
+    @Test
+    public void moveAllOnePass() throws ConstraintViolationException {
+
+        Map<Integer, WidgetDelta> batch = new LinkedHashMap<>();
+        batch.put(1, new WidgetDelta(null, null, 5, null, null));
+        batch.put(8, new WidgetDelta(null, null, 0, null, null));
+        batch.put(2, new WidgetDelta(100, null, null, null, null));
+
+        Map<Integer, WidgetDelta> changes = new CascadeZShiftStrategy().moveAll(batch, ZSequence.of(generate(8)));
+
+        // moved widgets don't conflict with their old z, other widgets of batch aren't moved
+        assertEquals(5, changes.size());
+        assertEquals(5, changes.get(1).getZ());
+        assertEquals(0, changes.get(8).getZ());
+        assertNull(changes.get(2).getZ());
+        assertEquals(100, changes.get(2).getX());
+        assertEquals(6, changes.get(6).getZ());
+        assertEquals(6 + ZShiftStrategy.Z_STEP, changes.get(7).getZ());
+
+        // batch isn't changed
+        assertEquals(5, batch.get(1).getZ());
+    }
+
+    @Test
+    public void shiftAllEdgesLikeShift() throws ConstraintViolationException {
+
+        int[][] cases = {
+                // empty sequence
+                {100},
+                {100, 100, 5},
+                // before first, after last and both in one batch
+                {100},
+                {500, 1000, 50, 1000, 499},
+        };
+        int[] existed = {0, 0, 500, 500};
+
+        for(int c=0; c<cases.length; c++) {
+            List<Widget> single = new ArrayList<>();
+            List<Widget> initial = new ArrayList<>();
+            for(int i=0; i<existed[c]; i++) {
+                initial.add(new Widget(i+1, 0, 0, 500+i, 1, 1, new Date()));
+            }
+            single.addAll(initial);
+
+            // one at a time
+            List<WidgetDelta> batch = new ArrayList<>();
+            for(int z : cases[c]) {
+                insert(new CascadeZShiftStrategy(), single, 1000 + batch.size(), z);
+                batch.add(new WidgetDelta(0, 0, z, 1, 1));
+            }
+
+            // one batch
+            new CascadeZShiftStrategy().shiftAll(batch, ZSequence.of(initial));
+
+            for(int i=0; i<batch.size(); i++) {
+                final int id = 1000 + i;
+                int z = single.stream().filter(w -> w.getId()==id).findFirst().get().getZ();
+                assertEquals(z, batch.get(i).getZ(), "case " + c + ", widget " + i);
+            }
+        }
+
+        // moving to z of first widget - before it (like moveTo on conflict), free z is kept
+        Map<Integer, WidgetDelta> moves = new LinkedHashMap<>();
+        moves.put(8, new WidgetDelta(null, null, 0, null, null));
+        moves.put(7, new WidgetDelta(null, null, -100, null, null));
+        Map<Integer, WidgetDelta> changes = new CascadeZShiftStrategy().moveAll(moves, ZSequence.of(generate(8)));
+        assertEquals(-ZShiftStrategy.Z_STEP, changes.get(8).getZ());
+        assertEquals(-100, changes.get(7).getZ());
+        assertEquals(2, changes.size());
+    }
+}